@@ -0,0 +1,25 @@
+#!/bin/sh
+#
+# Drain throughput macro-benchmark.
+#
+#   ./macro-benchmark.sh                        # default matrix, appends to drain-results.json
+#   BASELINE=before.json ./macro-benchmark.sh   # also prints the change against a previous run
+#
+# Any bench.* property can be passed through JAVA_OPTS, e.g.
+#   JAVA_OPTS="-Dbench.messages=10000,1000000,10000000 -Dbench.payload=256,4096 -Dbench.stores=1,8" ./macro-benchmark.sh
+
+set -e
+
+DIR=$(cd "$(dirname "$0")" && pwd)
+JAR="$DIR/target/benchmarks.jar"
+
+if [ ! -f "$JAR" ]; then
+    (cd "$DIR/.." && mvn -B -q -Pbenchmark -DskipTests package)
+fi
+
+OPTS="-Dbench.results=${RESULTS:-drain-results.json}"
+if [ -n "$BASELINE" ]; then
+    OPTS="$OPTS -Dbench.baseline=$BASELINE"
+fi
+
+exec java -Xmx2g $JAVA_OPTS $OPTS -cp "$JAR" org.jboss.ce.amq.drain.benchmark.MacroBenchmark
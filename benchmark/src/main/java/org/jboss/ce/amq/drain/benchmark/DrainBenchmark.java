@@ -0,0 +1,110 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wall-clock time of a whole drain, the store is repopulated before every iteration.
+ *
+ * <pre>
+ * java -jar benchmark/target/benchmarks.jar -p messages=100000 -p stores=1,4 -rf json -rff drain.json
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class DrainBenchmark {
+
+    @Param({"10000"})
+    public long messages;
+
+    @Param({"1024"})
+    public int payloadSize;
+
+    @Param({"1", "4"})
+    public int stores;
+
+    @Param({"false", "true"})
+    public boolean persistentTarget;
+
+    @Param({"broker", "journal"})
+    public String engine;
+
+    @Param({"1"})
+    public int parallelism;
+
+    @Param({"drain", "default"})
+    public String profile;
+
+    @Param({"false"})
+    public boolean lean;
+
+    @Param({"random"})
+    public String content;
+
+    @Param({"false"})
+    public boolean compression;
+
+    private DrainRun run;
+    private DrainRun.Result result;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        run = new DrainRun(messages, payloadSize, stores, persistentTarget, engine, parallelism, profile, lean, content, compression);
+        run.setUp();
+        result = null;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        run.tearDown();
+        if (result != null && result.getMeshEnqueues() < messages) {
+            throw new IllegalStateException(String.format("Only %s of %s msgs reached the mesh.", result.getMeshEnqueues(), messages));
+        }
+    }
+
+    @Benchmark
+    public DrainRun.Result drain() throws Exception {
+        result = run.drain();
+        return result;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+
+import org.jboss.ce.amq.drain.BrokerServiceDrainer;
+import org.jboss.ce.amq.drain.DrainMetrics;
+
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_ENGINE;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_KAHADB_PROFILE;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_LEAN;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_PARALLELISM;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_WIRE_COMPRESSION;
+
+/**
+ * One drain of a freshly populated store into a fresh mesh broker.
+ */
+public class DrainRun {
+    private final long messages;
+    private final int payloadSize;
+    private final int stores;
+    private final boolean persistentTarget;
+    private final String engine;
+    private final int parallelism;
+    private final String profile;
+    private final boolean lean;
+    private final String content;
+    private final boolean compression;
+
+    private File workDir;
+    private MeshFixture mesh;
+
+    public DrainRun(long messages, int payloadSize, int stores, boolean persistentTarget, String engine, int parallelism, String profile, boolean lean) {
+        this(messages, payloadSize, stores, persistentTarget, engine, parallelism, profile, lean, FixtureGenerator.CONTENT_RANDOM, false);
+    }
+
+    /**
+     * @param content random or text payloads
+     * @param compression drain with wire compression
+     */
+    public DrainRun(long messages, int payloadSize, int stores, boolean persistentTarget, String engine, int parallelism, String profile, boolean lean,
+                    String content, boolean compression) {
+        this.messages = messages;
+        this.payloadSize = payloadSize;
+        this.stores = stores;
+        this.persistentTarget = persistentTarget;
+        this.engine = engine;
+        this.parallelism = parallelism;
+        this.profile = profile;
+        this.lean = lean;
+        this.content = content;
+        this.compression = compression;
+    }
+
+    /**
+     * Populates the source store and starts the mesh, not part of the measurement.
+     */
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("drain-bench").toFile();
+        new StoreFixture(getSourceDir(), stores).populate(messages, payloadSize, content);
+        mesh = new MeshFixture(persistentTarget, new File(workDir, "mesh"));
+        mesh.start();
+    }
+
+    public Result drain() throws Exception {
+        System.setProperty(AMQ_DRAINER_ENGINE, engine);
+        System.setProperty(AMQ_DRAINER_PARALLELISM, String.valueOf(parallelism));
+        System.setProperty(AMQ_DRAINER_KAHADB_PROFILE, profile);
+        System.setProperty(AMQ_DRAINER_LEAN, String.valueOf(lean));
+        System.setProperty(AMQ_DRAINER_WIRE_COMPRESSION, String.valueOf(compression));
+        long wireBytes = mesh.getWireBytes();
+        try {
+            BrokerServiceDrainer drainer = new BrokerServiceDrainer(getSourceDir().getAbsolutePath());
+            long start = System.nanoTime();
+            drainer.drain();
+            long took = System.nanoTime() - start;
+            DrainMetrics metrics = drainer.getMetrics();
+            return new Result(getKey(), took / 1000000, metrics.getForwardedMessages(), metrics.getForwardedBytes(), mesh.getWireBytes() - wireBytes,
+                mesh.getEnqueues(), metrics.getTimeToFirstMessageMillis(), metrics.getPeakThreads(), metrics.getPeakRssBytes());
+        } finally {
+            System.clearProperty(AMQ_DRAINER_ENGINE);
+            System.clearProperty(AMQ_DRAINER_PARALLELISM);
+            System.clearProperty(AMQ_DRAINER_KAHADB_PROFILE);
+            System.clearProperty(AMQ_DRAINER_LEAN);
+            System.clearProperty(AMQ_DRAINER_WIRE_COMPRESSION);
+        }
+    }
+
+    public void tearDown() throws Exception {
+        try {
+            if (mesh != null) {
+                mesh.stop();
+            }
+        } finally {
+            if (workDir != null) {
+                delete(workDir.toPath());
+            }
+        }
+    }
+
+    /**
+     * @return identifies the configuration, results with the same key are comparable
+     */
+    public String getKey() {
+        return String.format("engine=%s,profile=%s,lean=%s,messages=%s,payload=%s,content=%s,compression=%s,stores=%s,parallelism=%s,persistent=%s",
+            engine, profile, lean, messages, payloadSize, content, compression, stores, parallelism, persistentTarget);
+    }
+
+    private File getSourceDir() {
+        return new File(workDir, "source");
+    }
+
+    static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public static class Result {
+        private final String key;
+        private final long millis;
+        private final long forwarded;
+        private final long forwardedBytes;
+        private final long wireBytes;
+        private final long meshEnqueues;
+        private final long firstMessageMillis;
+        private final int peakThreads;
+        private final long peakRssBytes;
+
+        Result(String key, long millis, long forwarded, long forwardedBytes, long wireBytes, long meshEnqueues, long firstMessageMillis, int peakThreads,
+               long peakRssBytes) {
+            this.key = key;
+            this.millis = millis;
+            this.forwarded = forwarded;
+            this.forwardedBytes = forwardedBytes;
+            this.wireBytes = wireBytes;
+            this.meshEnqueues = meshEnqueues;
+            this.firstMessageMillis = firstMessageMillis;
+            this.peakThreads = peakThreads;
+            this.peakRssBytes = peakRssBytes;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return bytes the mesh received during the drain
+         */
+        public long getWireBytes() {
+            return wireBytes;
+        }
+
+        public long getMeshEnqueues() {
+            return meshEnqueues;
+        }
+
+        public long getFirstMessageMillis() {
+            return firstMessageMillis;
+        }
+
+        public int getPeakThreads() {
+            return peakThreads;
+        }
+
+        /**
+         * @return peak RSS of the whole JVM so far, only meaningful for the first run of a JVM
+         */
+        public long getPeakRssBytes() {
+            return peakRssBytes;
+        }
+
+        public double getMessagesPerSecond() {
+            return millis == 0 ? 0 : meshEnqueues * 1000d / millis;
+        }
+
+        /**
+         * @return one flat JSON object, results files hold one per line
+         */
+        public String toJson() {
+            return String.format(Locale.ROOT,
+                "{\"key\":\"%s\",\"millis\":%s,\"forwarded\":%s,\"forwardedBytes\":%s,\"wireBytes\":%s,\"meshEnqueues\":%s,\"messagesPerSecond\":%.1f,"
+                    + "\"firstMessageMillis\":%s,\"peakThreads\":%s,\"peakRssBytes\":%s}",
+                key, millis, forwarded, forwardedBytes, wireBytes, meshEnqueues, getMessagesPerSecond(), firstMessageMillis, peakThreads, peakRssBytes);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.benchmark;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.BrokerServiceAware;
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.LocalTransactionId;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.store.PersistenceAdapter;
+import org.apache.activemq.store.TransactionStore;
+import org.apache.activemq.store.kahadb.FilteredKahaDBPersistenceAdapter;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.apache.activemq.store.kahadb.MultiKahaDBPersistenceAdapter;
+import org.apache.activemq.util.ByteSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes KahaDB and mKahaDB fixtures straight into the stores, without a broker, to run drains against
+ * production sized data.
+ *
+ * Each destination is filled by its own task in local transactions of batchSize messages, so KahaDB syncs
+ * the journal and updates its index once per batch instead of once per message. Payload sizes, priorities
+ * and time to live are drawn from weighted lists such as "256:70,4096:25,1048576:5", a negative time to
+ * live gives messages that are already expired, and messages can take turns over a number of message groups.
+ * Payloads are random bytes, or XML like text that compresses the way real documents do. The layout is "kahadb", "per-destination" or a list of
+ * queue filters such as "ORDERS.>,AUDIT.>", each with its own store plus one for everything else.
+ *
+ * <pre>
+ * java -Dfixture.messages=5000000 -Dfixture.destinations=64 -Dfixture.layout=per-destination \
+ *      -Dfixture.payload=512:80,16384:20 -Dfixture.content=text -Dfixture.ttl=0:95,-1000:5 \
+ *      -cp benchmark/target/benchmarks.jar org.jboss.ce.amq.drain.benchmark.FixtureGenerator /data/kahadb
+ * </pre>
+ */
+public class FixtureGenerator {
+    private static final Logger log = LoggerFactory.getLogger(FixtureGenerator.class);
+
+    public static final String LAYOUT_KAHADB = "kahadb";
+    public static final String LAYOUT_PER_DESTINATION = "per-destination";
+
+    public static final String CONTENT_RANDOM = "random";
+    public static final String CONTENT_TEXT = "text";
+
+    private static final Runnable NOTHING = new Runnable() {
+        public void run() {
+        }
+    };
+
+    private final File kahaDbDir;
+    private String queuePrefix = StoreFixture.QUEUE_PREFIX;
+    private int destinations = 1;
+    private String layout = LAYOUT_KAHADB;
+    private Weighted payloadSizes = Weighted.parse("1024");
+    private String content = CONTENT_RANDOM;
+    private Weighted priorities = Weighted.parse("4");
+    private Weighted timeToLive = Weighted.parse("0");
+    private int groups;
+    private int batchSize = 1000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long seed = 1;
+
+    public FixtureGenerator(File kahaDbDir) {
+        this.kahaDbDir = kahaDbDir;
+    }
+
+    /**
+     * Usage: FixtureGenerator kahadb-directory, configured with fixture.* system properties.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage: FixtureGenerator <kahadb directory>");
+        }
+        FixtureGenerator generator = new FixtureGenerator(new File(args[0]));
+        generator.setQueuePrefix(System.getProperty("fixture.prefix", StoreFixture.QUEUE_PREFIX));
+        generator.setDestinations(Integer.parseInt(System.getProperty("fixture.destinations", "8")));
+        generator.setLayout(System.getProperty("fixture.layout", LAYOUT_PER_DESTINATION));
+        generator.setPayloadSizes(System.getProperty("fixture.payload", "1024"));
+        generator.setContent(System.getProperty("fixture.content", CONTENT_RANDOM));
+        generator.setPriorities(System.getProperty("fixture.priority", "4"));
+        generator.setTimeToLive(System.getProperty("fixture.ttl", "0"));
+        generator.setGroups(Integer.parseInt(System.getProperty("fixture.groups", "0")));
+        generator.setBatchSize(Integer.parseInt(System.getProperty("fixture.batch", "1000")));
+        generator.setThreads(Integer.parseInt(System.getProperty("fixture.threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        generator.setSeed(Long.parseLong(System.getProperty("fixture.seed", "1")));
+        generator.generate(Long.parseLong(System.getProperty("fixture.messages", "100000")));
+    }
+
+    public void setQueuePrefix(String queuePrefix) {
+        this.queuePrefix = queuePrefix;
+    }
+
+    public void setDestinations(int destinations) {
+        this.destinations = Math.max(1, destinations);
+    }
+
+    public void setLayout(String layout) {
+        this.layout = layout;
+    }
+
+    public void setPayloadSizes(String payloadSizes) {
+        this.payloadSizes = Weighted.parse(payloadSizes);
+    }
+
+    /**
+     * @param content "random" or "text"
+     */
+    public void setContent(String content) {
+        this.content = content;
+    }
+
+    public void setPriorities(String priorities) {
+        this.priorities = Weighted.parse(priorities);
+    }
+
+    /**
+     * @param timeToLive weighted millis, 0 never expires, negative already expired
+     */
+    public void setTimeToLive(String timeToLive) {
+        this.timeToLive = Weighted.parse(timeToLive);
+    }
+
+    /**
+     * @param groups messages take turns over this many JMSXGroupIDs per destination, 0 for no groups
+     */
+    public void setGroups(int groups) {
+        this.groups = Math.max(0, groups);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Spreads messages evenly over the destinations, the same seed gives the same fixture.
+     *
+     * @return bytes of payload written
+     */
+    public long generate(final long messages) throws Exception {
+        final long start = System.currentTimeMillis();
+        // only there for the JMX checks of mKahaDB, never started
+        final BrokerService broker = new BrokerService();
+        broker.setBrokerName("fixture");
+        broker.setUseJmx(false);
+        final PersistenceAdapter adapter = createPersistenceAdapter();
+        ((BrokerServiceAware) adapter).setBrokerService(broker);
+        adapter.start();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, destinations), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Fixture writer-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        try {
+            final TransactionStore transactionStore = adapter.createTransactionStore();
+            final List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < destinations; i++) {
+                final int index = i;
+                final long count = messages / destinations + (i < messages % destinations ? 1 : 0);
+                tasks.add(executor.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            bytes.addAndGet(fill(adapter, transactionStore, index, count, written, messages));
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            adapter.stop();
+        }
+
+        long took = Math.max(1, System.currentTimeMillis() - start);
+        log.info(String.format("Wrote %s msgs, %s payload bytes to %s destinations of %s (%s) in %s ms, %.0f msgs/s, %.1f MB/s.", written.get(), bytes.get(),
+            destinations, kahaDbDir, layout, took, written.get() * 1000d / took, bytes.get() * 1000d / took / (1024 * 1024)));
+        return bytes.get();
+    }
+
+    private byte[] payload(int size, Random random) {
+        if (CONTENT_TEXT.equalsIgnoreCase(content)) {
+            StringBuilder text = new StringBuilder("<orders>");
+            while (text.length() < size) {
+                text.append("<order id=\"").append(random.nextInt(1000000)).append("\"><customer>customer-").append(random.nextInt(1000))
+                    .append("</customer><amount>").append(random.nextInt(100000) / 100d).append("</amount></order>");
+            }
+            return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), size);
+        }
+        // random, so compression sees no better than real binary payloads
+        byte[] payload = new byte[size];
+        random.nextBytes(payload);
+        return payload;
+    }
+
+    private long fill(PersistenceAdapter adapter, TransactionStore transactionStore, int index, long count, AtomicLong written, long total) throws Exception {
+        final Random random = new Random(seed + index);
+        final Map<Integer, byte[]> payloads = new HashMap<>();
+        final ActiveMQQueue queue = new ActiveMQQueue(queuePrefix + index);
+        final MessageStore store = adapter.createQueueMessageStore(queue);
+        final ConnectionId connectionId = new ConnectionId("fixture-" + index);
+        final ProducerId producerId = new ProducerId(connectionId + ":1:1");
+        final ConnectionContext context = new ConnectionContext();
+        long bytes = 0;
+        long transaction = 0;
+        for (long sent = 0; sent < count; ) {
+            final LocalTransactionId transactionId = new LocalTransactionId(connectionId, ++transaction);
+            final long batch = Math.min(batchSize, count - sent);
+            final long now = System.currentTimeMillis();
+            for (long i = 0; i < batch; i++) {
+                int size = (int) payloadSizes.next(random);
+                byte[] payload = payloads.get(size);
+                if (payload == null) {
+                    payload = payload(size, random);
+                    payloads.put(size, payload);
+                }
+                ActiveMQBytesMessage message = new ActiveMQBytesMessage();
+                message.setMessageId(new MessageId(producerId, sent + i + 1));
+                message.setDestination(queue);
+                message.setPersistent(true);
+                message.setTimestamp(now);
+                message.setPriority((byte) priorities.next(random));
+                long ttl = timeToLive.next(random);
+                if (ttl != 0) {
+                    message.setExpiration(now + ttl);
+                }
+                if (groups > 0) {
+                    message.setGroupID("group-" + (sent + i) % groups);
+                }
+                message.setContent(new ByteSequence(payload));
+                message.setTransactionId(transactionId);
+                store.addMessage(context, message);
+                bytes += size;
+            }
+            transactionStore.commit(transactionId, false, NOTHING, NOTHING);
+            sent += batch;
+            long done = written.addAndGet(batch);
+            if (done / 100000 != (done - batch) / 100000) {
+                log.info(String.format("Wrote %s/%s msgs.", done, total));
+            }
+        }
+        return bytes;
+    }
+
+    private PersistenceAdapter createPersistenceAdapter() {
+        if (LAYOUT_KAHADB.equalsIgnoreCase(layout)) {
+            return configure(new KahaDBPersistenceAdapter(), kahaDbDir);
+        }
+        MultiKahaDBPersistenceAdapter adapter = new MultiKahaDBPersistenceAdapter();
+        adapter.setDirectory(kahaDbDir);
+        List<FilteredKahaDBPersistenceAdapter> filtered = new ArrayList<>();
+        if (!LAYOUT_PER_DESTINATION.equalsIgnoreCase(layout)) {
+            for (String filter : layout.split(",")) {
+                FilteredKahaDBPersistenceAdapter template = new FilteredKahaDBPersistenceAdapter();
+                template.setQueue(filter.trim());
+                template.setPersistenceAdapter(configure(new KahaDBPersistenceAdapter(), null));
+                filtered.add(template);
+            }
+        }
+        // everything else, one store per destination or one shared after the filters
+        FilteredKahaDBPersistenceAdapter rest = new FilteredKahaDBPersistenceAdapter();
+        rest.setPersistenceAdapter(configure(new KahaDBPersistenceAdapter(), null));
+        rest.setPerDestination(filtered.isEmpty());
+        filtered.add(rest);
+        adapter.setFilteredPersistenceAdapters(filtered);
+        return adapter;
+    }
+
+    private static KahaDBPersistenceAdapter configure(KahaDBPersistenceAdapter adapter, File directory) {
+        if (directory != null) {
+            adapter.setDirectory(directory);
+        }
+        // the commit of each batch syncs the journal, the index is flushed in large batches
+        adapter.setConcurrentStoreAndDispatchQueues(false);
+        adapter.setIndexWriteBatchSize(10000);
+        adapter.setEnableIndexWriteAsync(true);
+        adapter.setCheckpointInterval(TimeUnit.SECONDS.toMillis(30));
+        return adapter;
+    }
+
+    /**
+     * Values drawn in proportion to their weights, "value:weight,..." where a missing weight is 1.
+     */
+    static class Weighted {
+        private final long[] values;
+        private final long[] cumulative;
+
+        private Weighted(long[] values, long[] cumulative) {
+            this.values = values;
+            this.cumulative = cumulative;
+        }
+
+        static Weighted parse(String spec) {
+            String[] entries = spec.split(",");
+            long[] values = new long[entries.length];
+            long[] cumulative = new long[entries.length];
+            long sum = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                values[i] = Long.parseLong(parts[0].trim());
+                long weight = parts.length > 1 ? Long.parseLong(parts[1].trim()) : 1;
+                if (weight <= 0) {
+                    throw new IllegalArgumentException("Weights must be positive: " + spec);
+                }
+                sum += weight;
+                cumulative[i] = sum;
+            }
+            return new Weighted(values, cumulative);
+        }
+
+        long next(Random random) {
+            long pick = (long) (random.nextDouble() * cumulative[cumulative.length - 1]);
+            for (int i = 0; i < cumulative.length; i++) {
+                if (pick < cumulative[i]) {
+                    return values[i];
+                }
+            }
+            return values[values.length - 1];
+        }
+    }
+}
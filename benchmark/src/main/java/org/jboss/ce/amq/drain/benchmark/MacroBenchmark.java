@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs every combination of the bench.* system properties once and appends one JSON line per run
+ * to bench.results. With bench.baseline set, throughput is compared with a previous results file.
+ *
+ * <pre>
+ * java -Dbench.messages=10000,1000000 -Dbench.stores=1,8 -Dbench.baseline=before.json \
+ *      -Dbench.payload=16384 -Dbench.content=text -Dbench.compression=false,true \
+ *      -cp benchmark/target/benchmarks.jar org.jboss.ce.amq.drain.benchmark.MacroBenchmark
+ * </pre>
+ */
+public class MacroBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(MacroBenchmark.class);
+
+    private static final Pattern KEY = Pattern.compile("\"key\":\"([^\"]*)\"");
+    private static final Pattern RATE = Pattern.compile("\"messagesPerSecond\":([0-9.]+)");
+
+    public static void main(String[] args) throws Exception {
+        final String[] messages = list("bench.messages", "10000,100000");
+        final String[] payloads = list("bench.payload", "1024");
+        final String[] stores = list("bench.stores", "1,4");
+        final String[] persistent = list("bench.persistent", "false,true");
+        final String[] engines = list("bench.engine", "broker,journal");
+        final String[] parallelism = list("bench.parallelism", "1");
+        final String[] profiles = list("bench.profile", "drain,default");
+        final String[] leans = list("bench.lean", "false");
+        final String[] contents = list("bench.content", "random");
+        final String[] compressions = list("bench.compression", "false");
+        final File results = new File(System.getProperty("bench.results", "drain-results.json"));
+        final String baselineFile = System.getProperty("bench.baseline");
+        final Map<String, Double> baseline = baselineFile == null ? new HashMap<String, Double>() : read(new File(baselineFile));
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(results, true), StandardCharsets.UTF_8)) {
+            for (String engine : engines)
+            for (String count : messages)
+            for (String payload : payloads)
+            for (String store : stores)
+            for (String threads : parallelism)
+            for (String profile : profiles)
+            for (String lean : leans)
+            for (String content : contents)
+            for (String compression : compressions)
+            for (String target : persistent) {
+                DrainRun run = new DrainRun(Long.parseLong(count), Integer.parseInt(payload), Integer.parseInt(store),
+                    Boolean.parseBoolean(target), engine, Integer.parseInt(threads), profile, Boolean.parseBoolean(lean), content, Boolean.parseBoolean(compression));
+                log.info("Running " + run.getKey());
+                DrainRun.Result result;
+                run.setUp();
+                try {
+                    result = run.drain();
+                } finally {
+                    run.tearDown();
+                }
+                writer.write(result.toJson());
+                writer.write('\n');
+                writer.flush();
+
+                Double before = baseline.get(result.getKey());
+                if (before == null || before == 0) {
+                    log.info(String.format(Locale.ROOT, "%s: %s ms, %.1f msgs/s, %s bytes on the wire, first msg after %s ms, %s threads", result.getKey(),
+                        result.getMillis(), result.getMessagesPerSecond(), result.getWireBytes(), result.getFirstMessageMillis(), result.getPeakThreads()));
+                } else {
+                    log.info(String.format(Locale.ROOT, "%s: %s ms, %.1f msgs/s (%+.1f%% vs baseline)", result.getKey(), result.getMillis(),
+                        result.getMessagesPerSecond(), (result.getMessagesPerSecond() / before - 1) * 100));
+                }
+            }
+        }
+        log.info(String.format("Results appended to %s.", results.getAbsolutePath()));
+    }
+
+    private static String[] list(String property, String defaultValue) {
+        return System.getProperty(property, defaultValue).split(",");
+    }
+
+    /**
+     * Last result per key wins.
+     */
+    static Map<String, Double> read(File file) throws Exception {
+        Map<String, Double> rates = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher key = KEY.matcher(line);
+                Matcher rate = RATE.matcher(line);
+                if (key.find() && rate.find()) {
+                    rates.put(key.group(1), Double.parseDouble(rate.group(1)));
+                }
+            }
+        }
+        return rates;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.benchmark;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.activemq.broker.BrokerRegistry;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.TransportConnector;
+import org.apache.activemq.broker.region.RegionBroker;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.jboss.ce.amq.drain.CountingTransportServer;
+import org.jboss.ce.amq.drain.KubeDiscoveryFixture;
+
+/**
+ * In-process "mesh" broker the drainer forwards to, found through the fake kube discovery agent
+ * of the drain tests.
+ */
+public class MeshFixture {
+    private static volatile String meshUrl;
+
+    private final boolean persistent;
+    private final File dataDir;
+    private CountingTransportServer server;
+    private BrokerService broker;
+
+    public MeshFixture(boolean persistent, File dataDir) {
+        this.persistent = persistent;
+        this.dataDir = dataDir;
+    }
+
+    public void start() throws Exception {
+        KubeDiscoveryFixture.install(new KubeDiscoveryFixture.Peers() {
+            public List<String> list() {
+                return Collections.singletonList(meshUrl);
+            }
+        });
+
+        broker = new BrokerService();
+        broker.setBrokerName("mesh");
+        broker.setUseJmx(false);
+        broker.setAdvisorySupport(false);
+        broker.setPersistent(persistent);
+        broker.setDataDirectoryFile(dataDir);
+        if (persistent) {
+            KahaDBPersistenceAdapter adapter = new KahaDBPersistenceAdapter();
+            adapter.setDirectory(new File(dataDir, "kahadb"));
+            broker.setPersistenceAdapter(adapter);
+        }
+        server = CountingTransportServer.bindLocal();
+        TransportConnector tcp = broker.addConnector(new TransportConnector(server));
+        broker.start();
+        broker.waitUntilStarted();
+        meshUrl = tcp.getPublishableConnectString();
+        // ensure broker registry findFirst does not mess with drain embedded broker
+        BrokerRegistry.getInstance().unbind(broker.getBrokerName());
+    }
+
+    /**
+     * @return tcp URL of the mesh broker, for clients that skip discovery
+     */
+    public String getConnectUrl() {
+        return meshUrl;
+    }
+
+    /**
+     * @return bytes received from all clients, the drain bridges among them
+     */
+    public long getWireBytes() {
+        return server.getReceivedBytes();
+    }
+
+    public long getEnqueues() {
+        return ((RegionBroker) broker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount();
+    }
+
+    public void stop() throws Exception {
+        if (broker != null) {
+            broker.stop();
+            broker.waitUntilStopped();
+            broker = null;
+        }
+    }
+}
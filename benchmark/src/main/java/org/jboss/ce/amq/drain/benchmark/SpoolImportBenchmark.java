@@ -0,0 +1,138 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+import org.jboss.ce.amq.drain.DrainMetrics;
+import org.jboss.ce.amq.drain.Spool;
+import org.jboss.ce.amq.drain.SpoolImporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wall-clock time of a whole spool import into a fresh mesh broker. One producer with batches of one
+ * is a commit per message, the baseline the batched, partitioned import is compared with.
+ *
+ * <pre>
+ * java -jar benchmark/target/benchmarks.jar SpoolImportBenchmark -p messages=100000 -rf json -rff import.json
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SpoolImportBenchmark {
+
+    @Param({"10000"})
+    public long messages;
+
+    @Param({"1024"})
+    public int payloadSize;
+
+    @Param({"8"})
+    public int destinations;
+
+    @Param({"1", "4"})
+    public int producers;
+
+    @Param({"1", "500"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean persistentTarget;
+
+    private File workDir;
+    private File spool;
+    private MeshFixture mesh;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("spool-bench").toFile();
+        spool = new File(workDir, "bench" + Spool.SUFFIX);
+        writeSpool();
+        mesh = new MeshFixture(persistentTarget, new File(workDir, "mesh"));
+        mesh.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        try {
+            long enqueues = mesh.getEnqueues();
+            mesh.stop();
+            if (enqueues < messages) {
+                throw new IllegalStateException(String.format("Only %s of %s msgs reached the mesh.", enqueues, messages));
+            }
+        } finally {
+            DrainRun.delete(workDir.toPath());
+        }
+    }
+
+    @Benchmark
+    public long replay() throws Exception {
+        SpoolImporter importer = new SpoolImporter(mesh.getConnectUrl(), null, null, producers, batchSize);
+        return importer.replay(spool, new DrainMetrics("bench").store(spool.getName()));
+    }
+
+    private void writeSpool() throws Exception {
+        ProducerId producerId = new ProducerId("bench:1:1:1");
+        ActiveMQBytesMessage template = new ActiveMQBytesMessage();
+        template.setPersistent(true);
+        template.setContent(new ByteSequence(new byte[payloadSize]));
+        Spool.Writer writer = new Spool.Writer(spool, OpenWireFormat.DEFAULT_STORE_VERSION);
+        try {
+            for (long i = 0; i < messages; i++) {
+                Message message = template.copy();
+                message.setMessageId(new MessageId(producerId, i + 1));
+                message.setDestination(new ActiveMQQueue(StoreFixture.QUEUE_PREFIX + (i % destinations)));
+                writer.append(message);
+            }
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+    }
+}
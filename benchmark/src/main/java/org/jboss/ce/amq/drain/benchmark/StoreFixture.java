@@ -0,0 +1,60 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.benchmark;
+
+import java.io.File;
+
+/**
+ * Fills a data directory with a KahaDB (one store) or per destination mKahaDB (several stores) backlog.
+ */
+public class StoreFixture {
+    public static final String QUEUE_PREFIX = "BENCH.";
+
+    private final File dataDir;
+    private final int stores;
+
+    public StoreFixture(File dataDir, int stores) {
+        this.dataDir = dataDir;
+        this.stores = stores;
+    }
+
+    /**
+     * Spreads messages evenly over one queue per store.
+     */
+    public void populate(long messages, int payloadSize) throws Exception {
+        populate(messages, payloadSize, FixtureGenerator.CONTENT_RANDOM);
+    }
+
+    /**
+     * @param content random or text payloads, see {@link FixtureGenerator#setContent(String)}
+     */
+    public void populate(long messages, int payloadSize, String content) throws Exception {
+        FixtureGenerator generator = new FixtureGenerator(new File(dataDir, "kahadb"));
+        generator.setContent(content);
+        generator.setDestinations(stores);
+        generator.setLayout(stores <= 1 ? FixtureGenerator.LAYOUT_KAHADB : FixtureGenerator.LAYOUT_PER_DESTINATION);
+        generator.setPayloadSizes(String.valueOf(payloadSize));
+        generator.generate(messages);
+    }
+}
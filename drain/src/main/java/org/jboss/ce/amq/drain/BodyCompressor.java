@@ -0,0 +1,168 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQMapMessage;
+import org.apache.activemq.command.ActiveMQObjectMessage;
+import org.apache.activemq.command.ActiveMQStreamMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.util.ByteArrayOutputStream;
+import org.apache.activemq.util.ByteSequence;
+
+/**
+ * Compresses message bodies on their way to the mesh, in the format of an ActiveMQ client with useCompression,
+ * so the peers store them compressed and consumers inflate them transparently.
+ *
+ * Every message is judged on its own: small bodies are sent as they are, large ones are tried on a sample
+ * first and a body is only sent compressed when that saves a tenth at least. Already compressed payloads
+ * cost little that way. Messages without a body of their own, such as blob messages, are left alone.
+ */
+public class BodyCompressor {
+    // a compressed body has to save this share of the original
+    static final double MIN_SAVING = 0.1;
+    // bodies of twice this size are tried on their first bytes before the whole body is compressed
+    static final int SAMPLE_SIZE = 4096;
+
+    // fastest level, bandwidth is what a drain runs short of and this gets most of the saving on text
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    private final int minSize;
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong incompressible = new AtomicLong();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+
+    /**
+     * @param minSize bodies below this many bytes are not compressed
+     */
+    public BodyCompressor(int minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * Compresses the body in place, the message must be a copy of its own.
+     *
+     * @return true if the body is compressed now
+     */
+    public boolean compress(Message message) {
+        if (message.isCompressed() || !(message instanceof ActiveMQTextMessage || message instanceof ActiveMQBytesMessage
+            || message instanceof ActiveMQMapMessage || message instanceof ActiveMQObjectMessage || message instanceof ActiveMQStreamMessage)) {
+            return false;
+        }
+        message.storeContent();
+        ByteSequence content = message.getContent();
+        if (content == null || content.getLength() < minSize) {
+            return false;
+        }
+        int length = content.getLength();
+        if (length >= 2 * SAMPLE_SIZE && deflate(content, SAMPLE_SIZE, false) == null) {
+            incompressible.incrementAndGet();
+            return false;
+        }
+        ByteSequence body = deflate(content, length, message instanceof ActiveMQBytesMessage);
+        if (body == null) {
+            incompressible.incrementAndGet();
+            return false;
+        }
+        message.setContent(body);
+        message.setCompressed(true);
+        compressed.incrementAndGet();
+        bytesBefore.addAndGet(length);
+        bytesAfter.addAndGet(body.getLength());
+        return true;
+    }
+
+    /**
+     * Deflates the first bytes of a body the way ActiveMQ inflates it, a bytes message starts with its
+     * length. Gives up as soon as the result would not save enough.
+     *
+     * @return the compressed body, null if it does not pay off
+     */
+    private static ByteSequence deflate(ByteSequence content, int length, boolean lengthPrefix) {
+        int limit = (int) (length * (1 - MIN_SAVING));
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(content.getData(), content.getOffset(), length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(limit, 64 * 1024));
+        if (lengthPrefix) {
+            out.write(length >>> 24);
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+        }
+        byte[] buffer = BUFFER.get();
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+            if (out.size() > limit) {
+                return null;
+            }
+        }
+        return out.toByteSequence();
+    }
+
+    public long getCompressed() {
+        return compressed.get();
+    }
+
+    public long getIncompressible() {
+        return incompressible.get();
+    }
+
+    /**
+     * @return original size of the compressed bodies
+     */
+    public long getBytesBefore() {
+        return bytesBefore.get();
+    }
+
+    /**
+     * @return size of the compressed bodies as sent
+     */
+    public long getBytesAfter() {
+        return bytesAfter.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s msgs compressed from %s to %s bytes, %s msgs left uncompressed as incompressible",
+            getCompressed(), getBytesBefore(), getBytesAfter(), getIncompressible());
+    }
+}
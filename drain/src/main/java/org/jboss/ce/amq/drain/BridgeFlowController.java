@@ -0,0 +1,281 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.broker.BrokerPluginSupport;
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.ConsumerBrokerExchange;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.broker.region.PrefetchSubscription;
+import org.apache.activemq.broker.region.RegionBroker;
+import org.apache.activemq.broker.region.Subscription;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ConsumerId;
+import org.apache.activemq.command.ConsumerInfo;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageDispatch;
+import org.apache.activemq.command.MessageId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the prefetch of the draining bridge subscriptions while the drain runs.
+ *
+ * The time from dispatch to the bridge until its ack is the remote send latency. Prefetch doubles
+ * while that latency stays close to the best seen and is halved when it climbs, which is how a
+ * peer running into memory limits and producer flow control shows up from this side. With the
+ * peers' usage probed by a {@link PeerRateLimiter}, prefetch is also halved while the fullest peer
+ * is at its usage ceiling, and does not grow until it is clear of it.
+ *
+ * Prefetch is the only setting a live bridge takes up. It bounds the messages in flight to the peer,
+ * which is what a producer window would bound. Async dispatch and the producer window are fixed when
+ * the bridge connects and are left at the bridge defaults.
+ */
+public class BridgeFlowController extends BrokerPluginSupport {
+    private static final Logger log = LoggerFactory.getLogger(BridgeFlowController.class);
+
+    static final int MIN_PREFETCH = 10;
+    static final int MAX_PREFETCH = 20000;
+
+    private static final long CONTROL_INTERVAL_MILLIS = 1000;
+    // latency relative to the best seen
+    private static final double GROW_BELOW = 1.5;
+    private static final double BACK_OFF_ABOVE = 3.0;
+    // peer usage relative to its ceiling, the same headroom the rate limiter keeps before it grows
+    private static final double PEER_GROW_BELOW = 0.8;
+    // lets the best latency drift up, so one lucky sample does not pin it
+    private static final double BEST_DECAY = 1.05;
+    private static final long STALE_DISPATCH_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final String name;
+    private final List<Subscription> bridges = new CopyOnWriteArrayList<>();
+    // dispatch times per bridge consumer, message ids repeat across consumers of composite destinations
+    private final Map<ConsumerId, Map<MessageId, Long>> dispatched = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService controller;
+    private volatile int prefetch;
+    private volatile int maxPrefetch = MAX_PREFETCH;
+    private volatile PeerRateLimiter peerUsage;
+
+    // current window, guarded by this
+    private long acked;
+    private long samples;
+    private long latencyNanos;
+
+    private double bestLatencyMillis = -1;
+    private double lastLatencyMillis;
+    private double lastRate;
+    private int lastUsage = -1;
+
+    public BridgeFlowController(String name, int initialPrefetch) {
+        this.name = name;
+        this.prefetch = Math.max(MIN_PREFETCH, Math.min(MAX_PREFETCH, initialPrefetch));
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Lowers the upper bound, e.g. to what the memory budget of a streaming drain holds.
+     */
+    public void setMaxPrefetch(int maxPrefetch) {
+        this.maxPrefetch = Math.max(MIN_PREFETCH, Math.min(MAX_PREFETCH, maxPrefetch));
+        this.prefetch = Math.min(prefetch, this.maxPrefetch);
+    }
+
+    /**
+     * Backs off on the usage the limiter reads from the peers as well, when it has a usage ceiling.
+     */
+    public void setPeerUsage(PeerRateLimiter peerUsage) {
+        this.peerUsage = peerUsage.getUsageCeiling() > 0 ? peerUsage : null;
+    }
+
+    @Override
+    public void start() throws Exception {
+        super.start();
+        controller = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Bridge flow controller " + name));
+        controller.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    adjust();
+                } catch (Throwable t) {
+                    log.warn("Bridge flow control failed: " + t);
+                }
+            }
+        }, CONTROL_INTERVAL_MILLIS, CONTROL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (controller != null) {
+            controller.shutdownNow();
+            log.info(String.format("Bridge flow control of %s converged on prefetch %s, ack latency %.1f ms, %.1f msgs/s, peer usage %s%%.",
+                name, prefetch, lastLatencyMillis, lastRate, lastUsage));
+        }
+        super.stop();
+    }
+
+    /**
+     * Typed as {@link org.apache.activemq.broker.region.Region} declares it, the filter it inherits returns a raw set.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<Destination> getDestinations(ActiveMQDestination destination) {
+        return super.getDestinations(destination);
+    }
+
+    @Override
+    public Subscription addConsumer(ConnectionContext context, ConsumerInfo info) throws Exception {
+        Subscription subscription = super.addConsumer(context, info);
+        if (info.isNetworkSubscription() && info.getDestination().isQueue()) {
+            dispatched.put(info.getConsumerId(), new ConcurrentHashMap<MessageId, Long>());
+            bridges.add(subscription);
+            apply(subscription, prefetch);
+        }
+        return subscription;
+    }
+
+    @Override
+    public void removeConsumer(ConnectionContext context, ConsumerInfo info) throws Exception {
+        super.removeConsumer(context, info);
+        dispatched.remove(info.getConsumerId());
+        for (Subscription subscription : bridges) {
+            if (subscription.getConsumerInfo().getConsumerId().equals(info.getConsumerId())) {
+                bridges.remove(subscription);
+            }
+        }
+    }
+
+    @Override
+    public void postProcessDispatch(MessageDispatch messageDispatch) {
+        super.postProcessDispatch(messageDispatch);
+        Map<MessageId, Long> bridge = dispatched.get(messageDispatch.getConsumerId());
+        if (messageDispatch.getMessage() != null && bridge != null) {
+            bridge.put(messageDispatch.getMessage().getMessageId(), System.nanoTime());
+        }
+    }
+
+    @Override
+    public void acknowledge(ConsumerBrokerExchange consumerExchange, MessageAck ack) throws Exception {
+        super.acknowledge(consumerExchange, ack);
+        Map<MessageId, Long> bridge = dispatched.get(ack.getConsumerId());
+        if ((ack.isStandardAck() || ack.isIndividualAck()) && ack.getLastMessageId() != null && bridge != null) {
+            Long sent = bridge.remove(ack.getLastMessageId());
+            if (sent != null) {
+                synchronized (this) {
+                    acked += ack.getMessageCount();
+                    samples++;
+                    latencyNanos += System.nanoTime() - sent;
+                }
+            }
+        }
+    }
+
+    void adjust() {
+        long count;
+        long sampled;
+        long nanos;
+        synchronized (this) {
+            count = acked;
+            sampled = samples;
+            nanos = latencyNanos;
+            acked = 0;
+            samples = 0;
+            latencyNanos = 0;
+        }
+        expireDispatches();
+        if (bridges.isEmpty()) {
+            return;
+        }
+        if (sampled > 0) {
+            lastRate = count * 1000d / CONTROL_INTERVAL_MILLIS;
+        }
+        int next = nextPrefetch(sampled > 0 ? nanos / (double) sampled / 1000000d : -1);
+        if (next != prefetch) {
+            log.debug(String.format("Bridge prefetch of %s %s -> %s, ack latency %.1f ms (best %.1f ms), %.1f msgs/s, peer usage %s%%.",
+                name, prefetch, next, lastLatencyMillis, bestLatencyMillis, lastRate, lastUsage));
+            prefetch = next;
+            for (Subscription subscription : bridges) {
+                apply(subscription, next);
+            }
+            for (Destination destination : ((RegionBroker) getAdaptor(RegionBroker.class)).getQueueRegion().getDestinationMap().values()) {
+                destination.wakeup();
+            }
+        }
+    }
+
+    /**
+     * @param latency average ack latency of the last interval in ms, -1 if nothing was acked in it
+     */
+    int nextPrefetch(double latency) {
+        PeerRateLimiter limiter = peerUsage;
+        int usage = limiter != null ? limiter.getHighestUsage() : -1;
+        lastUsage = usage;
+        if (usage >= 0 && usage >= limiter.getUsageCeiling()) {
+            return Math.max(MIN_PREFETCH, prefetch / 2);
+        }
+        if (latency < 0) {
+            return prefetch;
+        }
+        lastLatencyMillis = latency;
+        bestLatencyMillis = bestLatencyMillis < 0 ? latency : Math.min(latency, bestLatencyMillis * BEST_DECAY);
+        if (latency > bestLatencyMillis * BACK_OFF_ABOVE) {
+            return Math.max(MIN_PREFETCH, prefetch / 2);
+        }
+        if (latency <= bestLatencyMillis * GROW_BELOW && (usage < 0 || usage < limiter.getUsageCeiling() * PEER_GROW_BELOW)) {
+            return Math.min(maxPrefetch, prefetch * 2);
+        }
+        return prefetch;
+    }
+
+    private void expireDispatches() {
+        long now = System.nanoTime();
+        for (Map<MessageId, Long> bridge : dispatched.values()) {
+            for (Iterator<Long> i = bridge.values().iterator(); i.hasNext(); ) {
+                if (now - i.next() > STALE_DISPATCH_NANOS) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private static void apply(Subscription subscription, int prefetch) {
+        if (subscription instanceof PrefetchSubscription) {
+            ((PrefetchSubscription) subscription).setPrefetchSize(prefetch);
+        } else {
+            subscription.getConsumerInfo().setPrefetchSize(prefetch);
+        }
+    }
+}
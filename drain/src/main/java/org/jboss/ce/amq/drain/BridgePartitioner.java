@@ -0,0 +1,92 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.activemq.command.ActiveMQDestination;
+
+/**
+ * Splits destinations into disjoint sets, one per draining bridge.
+ */
+public class BridgePartitioner {
+    public static final String BY_BACKLOG = "backlog";
+    public static final String BY_HASH = "hash";
+
+    private BridgePartitioner() {
+    }
+
+    /**
+     * @param backlog messages per destination
+     * @param strategy {@link #BY_BACKLOG} puts the largest backlogs on the least loaded bridge first,
+     *                 {@link #BY_HASH} assigns by destination name only
+     * @return at most {@code bridges} non empty partitions
+     */
+    public static List<List<ActiveMQDestination>> partition(Map<ActiveMQDestination, Long> backlog, int bridges, String strategy) {
+        List<List<ActiveMQDestination>> partitions = new ArrayList<>();
+        long[] load = new long[bridges];
+        for (int i = 0; i < bridges; i++) {
+            partitions.add(new ArrayList<ActiveMQDestination>());
+        }
+
+        List<Map.Entry<ActiveMQDestination, Long>> entries = new ArrayList<>(backlog.entrySet());
+        if (BY_HASH.equalsIgnoreCase(strategy)) {
+            for (Map.Entry<ActiveMQDestination, Long> entry : entries) {
+                int bridge = (entry.getKey().getPhysicalName().hashCode() & Integer.MAX_VALUE) % bridges;
+                partitions.get(bridge).add(entry.getKey());
+            }
+        } else if (BY_BACKLOG.equalsIgnoreCase(strategy)) {
+            Collections.sort(entries, new Comparator<Map.Entry<ActiveMQDestination, Long>>() {
+                public int compare(Map.Entry<ActiveMQDestination, Long> a, Map.Entry<ActiveMQDestination, Long> b) {
+                    int result = Long.compare(b.getValue(), a.getValue());
+                    return result != 0 ? result : a.getKey().getPhysicalName().compareTo(b.getKey().getPhysicalName());
+                }
+            });
+            for (Map.Entry<ActiveMQDestination, Long> entry : entries) {
+                int lightest = 0;
+                for (int i = 1; i < bridges; i++) {
+                    if (load[i] < load[lightest]) {
+                        lightest = i;
+                    }
+                }
+                partitions.get(lightest).add(entry.getKey());
+                load[lightest] += entry.getValue();
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown bridge assignment: " + strategy);
+        }
+
+        List<List<ActiveMQDestination>> used = new ArrayList<>();
+        for (List<ActiveMQDestination> partition : partitions) {
+            if (!partition.isEmpty()) {
+                used.add(partition);
+            }
+        }
+        return used;
+    }
+}
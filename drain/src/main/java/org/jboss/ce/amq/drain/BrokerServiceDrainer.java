@@ -25,11 +25,27 @@ package org.jboss.ce.amq.drain;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.activemq.broker.BrokerPlugin;
 import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.Destination;
 import org.apache.activemq.broker.region.RegionBroker;
 import org.apache.activemq.broker.region.policy.PolicyEntry;
 import org.apache.activemq.broker.region.policy.PolicyMap;
@@ -37,9 +53,10 @@ import org.apache.activemq.broker.region.policy.SharedDeadLetterStrategy;
 import org.apache.activemq.command.ActiveMQDestination;
 import org.apache.activemq.command.ActiveMQQueue;
 import org.apache.activemq.network.ConditionalNetworkBridgeFilterFactory;
+import org.apache.activemq.network.DiscoveryNetworkConnector;
 import org.apache.activemq.network.NetworkConnector;
+import org.apache.activemq.openwire.OpenWireFormat;
 import org.apache.activemq.store.PersistenceAdapter;
-import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,14 +72,263 @@ public class BrokerServiceDrainer {
 
     public static final String AMQ_DRAINER_DLQ_PROCESS_EXPIRED = "amq.drainer.dlq.process.expired";
 
+    /**
+     * Max number of KahaDB instances drained at the same time, each by its own embedded broker.
+     */
+    public static final String AMQ_DRAINER_PARALLELISM = "amq.drainer.parallelism";
+
+    /**
+     * Seconds a destination backlog may stay unchanged before it is reported as stalled, 0 disables.
+     */
+    public static final String AMQ_DRAINER_STALL_TIMEOUT = "amq.drainer.stall.timeout";
+
+    /**
+     * How a KahaDB instance is drained: "broker" (default) starts an embedded broker with a draining
+     * network bridge, "journal" replays the journal directly and streams live messages to the mesh,
+     * "spool" moves live messages into local spool files without looking for the mesh.
+     */
+    public static final String AMQ_DRAINER_ENGINE = "amq.drainer.engine";
+
+    public static final String AMQ_DRAINER_JOURNAL_BATCH_SIZE = "amq.drainer.journal.batch.size";
+
+    public static final String AMQ_DRAINER_JOURNAL_OPENWIRE_VERSION = "amq.drainer.journal.openwire.version";
+
+    /**
+     * Journal engine only: forward to every mesh peer found through discovery at once, instead of a single one.
+     * The broker engine always does, its discovery network connector bridges to each peer.
+     */
+    public static final String AMQ_DRAINER_FANOUT = "amq.drainer.fanout";
+
+    /**
+     * Port of the HTTP endpoint serving live drain metrics, disabled unless set.
+     */
+    public static final String AMQ_DRAINER_METRICS_PORT = "amq.drainer.metrics.port";
+
+    /**
+     * Address the metrics endpoint binds to, defaults to the loopback address.
+     */
+    public static final String AMQ_DRAINER_METRICS_HOST = "amq.drainer.metrics.host";
+
+    /**
+     * File the final JSON drain summary is written to, defaults to drain-summary.json in the data directory.
+     */
+    public static final String AMQ_DRAINER_SUMMARY_FILE = "amq.drainer.summary.file";
+
+    /**
+     * Broker engine only: number of draining network connectors, each bridging a disjoint set of queues.
+     */
+    public static final String AMQ_DRAINER_BRIDGES = "amq.drainer.bridges";
+
+    /**
+     * How queues are split over the bridges: "backlog" (default) balances message counts, "hash" uses the name only.
+     */
+    public static final String AMQ_DRAINER_BRIDGES_ASSIGNMENT = "amq.drainer.bridges.assignment";
+
+    /**
+     * Broker engine only: let {@link BridgeFlowController} tune the bridge prefetch from the observed ack latency,
+     * and from the peer usage when a peer usage ceiling is set.
+     */
+    public static final String AMQ_DRAINER_ADAPTIVE_FLOW = "amq.drainer.adaptive.flow";
+
+    /**
+     * Broker engine only: remove expired messages from every queue of a store before its broker loads them, or
+     * move them to the DLQ when expired messages are processed. Runs on the broker's own adapter, one store
+     * transaction per page. Defaults to true.
+     */
+    public static final String AMQ_DRAINER_PURGE_EXPIRED = "amq.drainer.purge.expired";
+
+    /**
+     * Broker engine only: bound the message memory of each drain broker, page in and prefetch only what fits
+     * in it, so memory stays flat whatever the backlog. Defaults to false.
+     */
+    public static final String AMQ_DRAINER_STREAMING = "amq.drainer.streaming";
+
+    /**
+     * Streaming mode: share of the max heap for messages, split over the drain brokers running in parallel. Defaults to 50.
+     */
+    public static final String AMQ_DRAINER_STREAMING_HEAP_PERCENT = "amq.drainer.streaming.heap.percent";
+
+    /**
+     * Streaming mode: message memory of each drain broker in bytes, overrides the heap share.
+     */
+    public static final String AMQ_DRAINER_STREAMING_MEMORY_LIMIT = "amq.drainer.streaming.memory.limit";
+
+    /**
+     * Broker engine only: run the drain brokers on one shared, bounded task pool and without the broker
+     * features a drain does not use (JMX, scheduler, virtual topics). Defaults to false.
+     */
+    public static final String AMQ_DRAINER_LEAN = "amq.drainer.lean";
+
+    /**
+     * Lean mode: size of the shared task pool, defaults to twice the number of processors, at least 8.
+     */
+    public static final String AMQ_DRAINER_LEAN_THREADS = "amq.drainer.lean.threads";
+
+    /**
+     * Lean mode: run the shared task pool on virtual threads where the JVM has them, defaults to true.
+     */
+    public static final String AMQ_DRAINER_VIRTUAL_THREADS = "amq.drainer.virtual.threads";
+
+    /**
+     * Check every store up front and leave out the ones without pending messages, defaults to true. The index of a
+     * cleanly stopped store tells, any other store has its journal replayed, see {@link KahaDBIndex}.
+     */
+    public static final String AMQ_DRAINER_SKIP_EMPTY = "amq.drainer.skip.empty";
+
+    /**
+     * Broker engine only: KahaDB adapter settings, "default" (default) or "drain", see {@link KahaDBProfile}.
+     */
+    public static final String AMQ_DRAINER_KAHADB_PROFILE = "amq.drainer.kahadb.profile";
+
+    /**
+     * Spool the stores locally, see {@link SpoolExporter}, when no mesh peer is found before draining or the cut-off
+     * is reached. The spooled messages reach no peer until imported, defaults to false.
+     */
+    public static final String AMQ_DRAINER_SPOOL_FALLBACK = "amq.drainer.spool.fallback";
+
+    /**
+     * Directory of the spool files, defaults to spool in the data directory.
+     */
+    public static final String AMQ_DRAINER_SPOOL_DIR = "amq.drainer.spool.dir";
+
+    /**
+     * Seconds to wait for a mesh peer before falling back to the spool, defaults to 30.
+     */
+    public static final String AMQ_DRAINER_PEER_TIMEOUT = "amq.drainer.peer.timeout";
+
+    /**
+     * Replay spools left by an earlier drain into the mesh, before draining the stores, see {@link SpoolImporter}.
+     * Defaults to false, spools found without it are only reported.
+     */
+    public static final String AMQ_DRAINER_SPOOL_IMPORT = "amq.drainer.spool.import";
+
+    /**
+     * Spool import: parallel producers, each sending a disjoint set of destinations. Defaults to 4.
+     */
+    public static final String AMQ_DRAINER_SPOOL_PRODUCERS = "amq.drainer.spool.producers";
+
+    /**
+     * Spool import: messages per transaction. Defaults to 500.
+     */
+    public static final String AMQ_DRAINER_SPOOL_BATCH_SIZE = "amq.drainer.spool.batch.size";
+
+    /**
+     * Seconds from the start of the drain until it must be over, typically the termination grace period
+     * of the pod. Unset for no deadline.
+     */
+    public static final String AMQ_DRAINER_DEADLINE = "amq.drainer.deadline";
+
+    /**
+     * Seconds before the deadline when forwarding stops and what is left is spooled, defaults to 10.
+     */
+    public static final String AMQ_DRAINER_DEADLINE_RESERVE = "amq.drainer.deadline.reserve";
+
+    /**
+     * Comma separated queue names or wildcards, drained before all others.
+     */
+    public static final String AMQ_DRAINER_CRITICAL_DESTINATIONS = "amq.drainer.critical.destinations";
+
+    /**
+     * Most messages per second the drain sends to a single mesh peer, unset for no fixed limit, see {@link PeerRateLimiter}.
+     */
+    public static final String AMQ_DRAINER_PEER_RATE = "amq.drainer.peer.rate";
+
+    /**
+     * Percent of memory, store or temp usage of a mesh peer at which the drain to it backs off. Needs the
+     * statistics plugin on the peers, unset to ignore their usage.
+     */
+    public static final String AMQ_DRAINER_PEER_USAGE_CEILING = "amq.drainer.peer.usage.ceiling";
+
+    /**
+     * Compress the message bodies sent to the mesh and pin the OpenWire settings that save bytes on the wire,
+     * see {@link BodyCompressor}. Defaults to false.
+     */
+    public static final String AMQ_DRAINER_WIRE_COMPRESSION = "amq.drainer.wire.compression";
+
+    /**
+     * Wire compression: bodies below this many bytes are sent as they are. Defaults to 1024.
+     */
+    public static final String AMQ_DRAINER_COMPRESSION_MIN_SIZE = "amq.drainer.compression.min.size";
+
+    /**
+     * Journal engine only: split every queue into this many ordered lanes by message group and forward them
+     * concurrently, see {@link GroupPartitioner}. Unset or 0 forwards each store over a single lane per peer.
+     */
+    public static final String AMQ_DRAINER_GROUP_LANES = "amq.drainer.group.lanes";
+
+    /**
+     * Ordered lanes: message property the lanes are split by, defaults to JMSXGroupID.
+     */
+    public static final String AMQ_DRAINER_GROUP_KEY = "amq.drainer.group.key";
+
+    /**
+     * Inventory only: messages per second to estimate the drain time with, instead of the throughput of the
+     * last drain found in its summary.
+     */
+    public static final String AMQ_DRAINER_INVENTORY_RATE = "amq.drainer.inventory.rate";
+
+    /**
+     * File the JSON inventory is written to, defaults to drain-inventory.json in the data directory.
+     */
+    public static final String AMQ_DRAINER_INVENTORY_FILE = "amq.drainer.inventory.file";
+
+    /**
+     * Keep a checkpoint of the drain so a run killed half way is resumed without draining stores twice, nor,
+     * with the journal engine, forwarding its batches twice, see {@link DrainCheckpoint}. Defaults to false.
+     */
+    public static final String AMQ_DRAINER_CHECKPOINT = "amq.drainer.checkpoint";
+
+    /**
+     * File of the checkpoint, defaults to drain-checkpoint in the data directory. Removed once a drain finishes.
+     */
+    public static final String AMQ_DRAINER_CHECKPOINT_FILE = "amq.drainer.checkpoint.file";
+
+    /**
+     * Checkpoint: ids of the last forwarded messages kept per store to suppress duplicates. Defaults to 65536.
+     */
+    public static final String AMQ_DRAINER_CHECKPOINT_IDS = "amq.drainer.checkpoint.ids";
+
+    private static final String COMMAND_INVENTORY = "inventory";
+
+    private static final String ENGINE_BROKER = "broker";
+    private static final String ENGINE_JOURNAL = "journal";
+    private static final String ENGINE_SPOOL = "spool";
+
+    private static final long PROGRESS_REPORT_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    private final String dataDir;
+    private final String meshURL;
+    private final DrainMetrics metrics;
+
+    private LeanRuntime lean;
+    private String engine;
+    private DrainScheduler scheduler = new DrainScheduler(null, 0, 0);
+    private PeerRateLimiter limiter;
+    private BodyCompressor compressor;
+    private DrainCheckpoint checkpoint;
+
+    public BrokerServiceDrainer(String dataDir) {
+        this(dataDir, getMeshURL());
+    }
+
+    BrokerServiceDrainer(String dataDir, String meshURL) {
+        this.dataDir = dataDir;
+        this.meshURL = meshURL;
+        this.metrics = new DrainMetrics(getBrokerName());
+    }
+
+    /**
+     * Drains the data directory given, or that of activemq.data. With "inventory" ahead of it, only reports
+     * what a drain would find, see {@link StoreInventory}.
+     */
     public static void main(final String[] args) throws Exception {
+        final boolean inventory = args.length > 0 && COMMAND_INVENTORY.equals(args[0]);
+        final int dataDirArg = inventory ? 1 : 0;
         final String dataDir;
-        switch(args.length) {
-        case 0:
+        if (args.length > dataDirArg) {
+            dataDir = args[dataDirArg];
+        } else {
             dataDir = Utils.getSystemPropertyOrEnvVar(ACTIVEMQ_DATA);
-            break;
-        default:
-            dataDir = args[0];
         }
 
         if (dataDir == null) {
@@ -76,13 +342,494 @@ public class BrokerServiceDrainer {
             }
         }
 
+        log.info(String.format("Data directory %s.", dataDir));
+        if (inventory) {
+            new BrokerServiceDrainer(dataDir).inventory();
+            return;
+        }
+        new BrokerServiceDrainer(dataDir).drain();
+        log.info("-- [CE] A-MQ migration finished. --");
+    }
+
+    public DrainMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Replays every store of the data directory, without starting a broker or taking the store locks,
+     * and reports what a drain would find and how long it would take.
+     */
+    public StoreInventory inventory() throws Exception {
+        StoreInventory inventory = StoreInventory.take(findKahaDbInstances(new File(dataDir, "kahadb")), Runtime.getRuntime().availableProcessors());
+        double rate = getInventoryRate();
+        double[] measured = StoreInventory.readThroughput(getSummaryFile());
+        if (rate > 0) {
+            inventory.setThroughput(rate, 0, "configured");
+        } else if (measured != null) {
+            inventory.setThroughput(measured[0], measured[1], "last drain");
+        }
+        inventory.report();
+        inventory.write(new File(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_INVENTORY_FILE, new File(dataDir, "drain-inventory.json").getPath())));
+        return inventory;
+    }
+
+    public void drain() throws Exception {
+        List<File> kahaDbDirs = findKahaDbInstances(new File(dataDir, "kahadb"));
+        for (File kahaDbDir : kahaDbDirs) {
+            metrics.store(kahaDbDir.getName());
+        }
+        metrics.start();
+        scheduler = createScheduler();
+        if (getPeerRate() > 0 || getPeerUsageCeiling() > 0) {
+            limiter = new PeerRateLimiter(getPeerRate(), getPeerUsageCeiling(), getUsername(), getPassword());
+        }
+        if (isWireCompression()) {
+            compressor = new BodyCompressor(getCompressionMinSize());
+        }
+        DrainMetricsServer server = null;
+        String port = Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_METRICS_PORT);
+        if (port != null) {
+            String host = Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_METRICS_HOST);
+            server = new DrainMetricsServer(metrics, host != null ? InetAddress.getByName(host) : null, Integer.parseInt(port));
+            server.start();
+        }
+        if (isLean()) {
+            lean = new LeanRuntime(getLeanThreads(), isVirtualThreads());
+        }
+        try {
+            if (isCheckpoint()) {
+                checkpoint = new DrainCheckpoint(getCheckpointFile(), getCheckpointIds());
+                checkpoint.open();
+                kahaDbDirs = resume(kahaDbDirs);
+            }
+            if (isSkipEmpty() || scheduler.isActive()) {
+                kahaDbDirs = scanStores(kahaDbDirs);
+            }
+            final File[] spools = listSpools();
+            if (!kahaDbDirs.isEmpty() || spools.length > 0) {
+                engine = resolveEngine();
+            }
+            if (getGroupLanes() > 0 && ENGINE_BROKER.equalsIgnoreCase(engine)) {
+                log.info("Ordered lanes need the journal engine, the broker engine keeps every queue on a single bridge.");
+            }
+            // under a deadline the stores come first, the spools are safe on disk already
+            if (spools.length > 0 && !ENGINE_SPOOL.equalsIgnoreCase(engine) && !scheduler.hasDeadline()) {
+                importSpools(spools);
+            }
+            final int parallelism = Math.min(getParallelism(), kahaDbDirs.size());
+            if (parallelism <= 1) {
+                for (File kahaDbDir : kahaDbDirs) {
+                    drain(kahaDbDir, getBrokerName(), true);
+                }
+            } else {
+                drainInParallel(kahaDbDirs, parallelism);
+            }
+            if (spools.length > 0 && !ENGINE_SPOOL.equalsIgnoreCase(engine) && scheduler.hasDeadline() && !scheduler.isCutOff()) {
+                importSpools(spools);
+            }
+            if (checkpoint != null && metrics.getUnfinished().isEmpty()) {
+                checkpoint.delete();
+            }
+        } finally {
+            if (checkpoint != null) {
+                checkpoint.close();
+                checkpoint = null;
+            }
+            if (server != null) {
+                server.stop();
+            }
+            if (lean != null) {
+                lean.close();
+                lean = null;
+            }
+            if (limiter != null) {
+                limiter.stop();
+                limiter = null;
+            }
+            if (compressor != null) {
+                log.info(String.format("Wire compression: %s.", compressor));
+            }
+            metrics.stop();
+            metrics.writeSummary(getSummaryFile());
+            log.info(String.format("Forwarded %s msgs, %s bytes in total, peak heap %s MB of %s MB.", metrics.getForwardedMessages(), metrics.getForwardedBytes(),
+                metrics.getPeakHeapBytes() / (1024 * 1024), Runtime.getRuntime().maxMemory() / (1024 * 1024)));
+            log.info(String.format("Peak %s threads, peak RSS %s MB, first message forwarded after %s ms.", metrics.getPeakThreads(),
+                metrics.getPeakRssBytes() / (1024 * 1024), metrics.getTimeToFirstMessageMillis()));
+            for (Map.Entry<String, Map<String, Long>> entry : metrics.getUnfinished().entrySet()) {
+                log.warn(String.format("Left unfinished in %s: %s", entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Leaves out the stores an earlier run drained completely, as long as nothing was written to them since.
+     */
+    private List<File> resume(List<File> kahaDbDirs) {
+        final List<File> left = new ArrayList<>();
+        for (File kahaDbDir : kahaDbDirs) {
+            final String name = kahaDbDir.getName();
+            if (checkpoint.isDone(name, KahaDBJournal.getJournalState(kahaDbDir))) {
+                metrics.store(name).skipped();
+                continue;
+            }
+            final Map<String, Long> progress = checkpoint.getProgress(name);
+            if (!progress.isEmpty()) {
+                log.info(String.format("Resuming %s, an earlier run got through %s.", name, progress));
+            }
+            left.add(kahaDbDir);
+        }
+        if (left.size() < kahaDbDirs.size()) {
+            log.info(String.format("Skipping %s KahaDB stores an earlier run drained, as found in %s.", kahaDbDirs.size() - left.size(), checkpoint.getFile()));
+        }
+        return left;
+    }
+
+    private DrainScheduler createScheduler() {
+        long deadline = 0;
+        String seconds = Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_DEADLINE);
+        if (seconds != null) {
+            deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Long.parseLong(seconds));
+        }
+        DrainScheduler scheduler = new DrainScheduler(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_CRITICAL_DESTINATIONS), deadline,
+            TimeUnit.SECONDS.toMillis(getDeadlineReserve()));
+        if (scheduler.hasDeadline()) {
+            log.info(String.format("Drain deadline in %s s, forwarding stops %s s before.", seconds, getDeadlineReserve()));
+        }
+        return scheduler;
+    }
+
+    /**
+     * @return the spools to import, none unless the import is on
+     */
+    private File[] listSpools() {
+        final File[] spools = Spool.list(getSpoolDir());
+        if (isSpoolImport()) {
+            return spools;
+        }
+        if (spools.length > 0) {
+            log.warn(String.format("Found %s spools of an earlier drain in %s, not importing them without %s=true.", spools.length, getSpoolDir(),
+                AMQ_DRAINER_SPOOL_IMPORT));
+        }
+        return new File[0];
+    }
+
+    /**
+     * Older messages first, the spools were written by an earlier drain.
+     */
+    private void importSpools(File[] spools) throws Exception {
+        SpoolImporter importer = new SpoolImporter("discovery:(" + meshURL + ")", getUsername(), getPassword(), getSpoolProducers(), getSpoolBatchSize());
+        importer.setCompressor(compressor);
+        for (File spool : spools) {
+            long imported = importer.replay(spool, metrics.store(spool.getName()));
+            log.info(String.format("Imported %s msgs from spool %s.", imported, spool));
+        }
+    }
+
+    /**
+     * The configured engine, or the spool when the fallback is on and discovery finds no mesh peer in time.
+     */
+    private String resolveEngine() throws Exception {
+        final String configured = getEngine();
+        if (ENGINE_SPOOL.equalsIgnoreCase(configured) || !isSpoolFallback()) {
+            return configured;
+        }
+        final long start = System.currentTimeMillis();
+        final MeshPeers peers = new MeshPeers(meshURL);
+        peers.start();
+        try {
+            if (peers.awaitPeer(TimeUnit.SECONDS.toMillis(getPeerTimeout()))) {
+                return configured;
+            }
+        } finally {
+            peers.stop();
+            metrics.phase(DrainMetrics.PHASE_DISCOVERY, System.currentTimeMillis() - start);
+        }
+        log.error(String.format("No mesh peer found through %s within %s seconds, spooling to %s instead. "
+            + "The messages are NOT forwarded to the mesh until imported with %s=true.", meshURL, getPeerTimeout(), getSpoolDir(), AMQ_DRAINER_SPOOL_IMPORT));
+        return ENGINE_SPOOL;
+    }
+
+    /**
+     * Scans all stores at once, a store that cannot be scanned is kept and left to the broker.
+     *
+     * @return stores with pending messages when skipping empty ones, in drain order when scheduling
+     */
+    private List<File> scanStores(List<File> kahaDbDirs) throws Exception {
+        final long start = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(kahaDbDirs.size(), Runtime.getRuntime().availableProcessors())), new DaemonThreadFactory("KahaDB scanner"));
+        final Map<File, Future<DrainScheduler.Backlog>> scans = new LinkedHashMap<>();
+        try {
+            for (final File kahaDbDir : kahaDbDirs) {
+                scans.put(kahaDbDir, executor.submit(new Callable<DrainScheduler.Backlog>() {
+                    public DrainScheduler.Backlog call() throws Exception {
+                        return scheduler.scan(kahaDbDir);
+                    }
+                }));
+            }
+
+            final List<DrainScheduler.Backlog> backlogs = new ArrayList<>();
+            final Map<String, File> dirs = new HashMap<>();
+            final List<File> unscanned = new ArrayList<>();
+            for (Map.Entry<File, Future<DrainScheduler.Backlog>> entry : scans.entrySet()) {
+                DrainScheduler.Backlog backlog;
+                try {
+                    backlog = entry.getValue().get();
+                } catch (ExecutionException e) {
+                    log.warn(String.format("Cannot scan %s, draining it anyway: %s", entry.getKey(), e.getCause()));
+                    unscanned.add(entry.getKey());
+                    continue;
+                }
+                if (backlog.isPending() || !isSkipEmpty()) {
+                    backlogs.add(backlog);
+                    dirs.put(backlog.getName(), entry.getKey());
+                } else {
+                    metrics.store(entry.getKey().getName()).skipped();
+                }
+            }
+            if (scheduler.isActive()) {
+                Collections.sort(backlogs, DrainScheduler.ORDER);
+                log.info(String.format("Drain order: %s", backlogs));
+            }
+            final List<File> pending = new ArrayList<>();
+            for (DrainScheduler.Backlog backlog : backlogs) {
+                pending.add(dirs.get(backlog.getName()));
+            }
+            pending.addAll(unscanned);
+            final long took = System.currentTimeMillis() - start;
+            metrics.phase(DrainMetrics.PHASE_SCAN, took);
+            log.info(String.format("Skipping %s empty KahaDB stores out of %s, scan took %s ms.",
+                kahaDbDirs.size() - pending.size(), kahaDbDirs.size(), took));
+            return pending;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void drainInParallel(List<File> kahaDbDirs, int parallelism) throws Exception {
+        log.info(String.format("Draining %s KahaDB instances, %s at a time.", kahaDbDirs.size(), parallelism));
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("KahaDB drainer"));
+        final AtomicInteger completed = new AtomicInteger();
+        final Map<File, Future<Long>> results = new LinkedHashMap<>();
+        try {
+            int index = 0;
+            for (final File kahaDbDir : kahaDbDirs) {
+                // each embedded broker needs its own name, it keys the vm transport, JMX and tmp storage
+                final String brokerName = getBrokerName() + "-" + index;
+                // all brokers register with the platform MBean server, a single remote JMX connector is enough
+                final boolean createJmxConnector = (index++ == 0);
+                results.put(kahaDbDir, executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long start = System.currentTimeMillis();
+                        drain(kahaDbDir, brokerName, createJmxConnector);
+                        long took = System.currentTimeMillis() - start;
+                        log.info(String.format("Drained %s in %s ms [%s/%s].", kahaDbDir, took, completed.incrementAndGet(), results.size()));
+                        return took;
+                    }
+                }));
+            }
+
+            Exception failure = null;
+            for (Map.Entry<File, Future<Long>> entry : results.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    log.error(String.format("Failed to drain %s.", entry.getKey()), e.getCause());
+                    if (failure == null) {
+                        failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void drain(File kahaDbDir, String brokerName, boolean createJmxConnector) throws Exception {
+        final DrainMetrics.Store store = metrics.store(kahaDbDir.getName());
+        boolean success = false;
+        store.started();
+        try {
+            if (ENGINE_SPOOL.equalsIgnoreCase(engine)) {
+                new SpoolExporter(getSpoolDir(), getOpenWireVersion(), isProcessExpired()).export(kahaDbDir, store);
+            } else if (scheduler.isCutOff()) {
+                finishAtCutOff(kahaDbDir, store);
+            } else {
+                if (ENGINE_JOURNAL.equalsIgnoreCase(engine)) {
+                    drainJournal(kahaDbDir, store);
+                } else if (ENGINE_BROKER.equalsIgnoreCase(engine)) {
+                    drainKahaDb(kahaDbDir, store, brokerName, createJmxConnector);
+                } else {
+                    throw new IllegalArgumentException("Unknown drain engine: " + engine);
+                }
+                if (scheduler.isCutOff() && store.getRemaining() != 0) {
+                    finishAtCutOff(kahaDbDir, store);
+                }
+            }
+            success = true;
+        } finally {
+            store.finished(success);
+            log.info(String.format("Phases of %s in ms: %s, first message forwarded after %s ms.", kahaDbDir.getName(), store.getPhases(),
+                store.getTimeToFirstForwardMillis()));
+        }
+        if (checkpoint != null && store.getStatus() != DrainMetrics.Status.UNFINISHED) {
+            checkpoint.done(kahaDbDir.getName(), KahaDBJournal.getJournalState(kahaDbDir));
+        }
+    }
+
+    /**
+     * Past the cut-off the spool is the fastest way out, without it the rest stays in the store.
+     */
+    private void finishAtCutOff(File kahaDbDir, DrainMetrics.Store store) throws Exception {
+        if (isSpoolFallback()) {
+            log.error(String.format("Cut-off reached, spooling what is left of %s to %s. "
+                + "These messages are NOT forwarded to the mesh until imported with %s=true.", kahaDbDir.getName(), getSpoolDir(), AMQ_DRAINER_SPOOL_IMPORT));
+            new SpoolExporter(getSpoolDir(), getOpenWireVersion(), isProcessExpired()).export(kahaDbDir, store);
+        } else {
+            log.warn(String.format("Cut-off reached, leaving what is left of %s in the store.", kahaDbDir.getName()));
+            store.unfinished(KahaDBJournal.countLiveMessages(kahaDbDir));
+        }
+    }
+
+    private void drainJournal(File kahaDbDir, DrainMetrics.Store store) throws Exception {
+        JournalDrainer drainer = new JournalDrainer(
+            "discovery:(" + meshURL + ")",
+            getUsername(),
+            getPassword(),
+            Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_JOURNAL_BATCH_SIZE, "500")),
+            getOpenWireVersion(),
+            isProcessExpired());
+        if (isFanOut()) {
+            drainer.setFanOutDiscoveryURL(meshURL);
+        }
+        if (scheduler.isActive()) {
+            drainer.setScheduler(scheduler);
+        }
+        if (limiter != null) {
+            drainer.setRateLimiter(limiter);
+        }
+        if (compressor != null) {
+            drainer.setCompressor(compressor);
+        }
+        if (checkpoint != null) {
+            drainer.setCheckpoint(checkpoint);
+        }
+        if (getGroupLanes() > 0) {
+            drainer.setGroupPartitioner(new GroupPartitioner(getGroupLanes(), getGroupKey()));
+        }
+        long forwarded = drainer.drain(kahaDbDir, store);
+        log.info(String.format("Forwarded %s msgs from journal %s.", forwarded, kahaDbDir));
+    }
+
+    private void drainKahaDb(File kahaDbDir, DrainMetrics.Store store, String brokerName, boolean createJmxConnector) throws Exception {
+        final StreamingLimits limits = isStreaming() ? createStreamingLimits() : null;
+        final BrokerService broker = createBroker(brokerName, createJmxConnector, limits);
+        final DrainMonitor monitor = new DrainMonitor(store, PROGRESS_REPORT_INTERVAL, TimeUnit.SECONDS.toMillis(getStallTimeout()));
+        final BridgeFlowController flowController = isAdaptiveFlow() ? new BridgeFlowController(kahaDbDir.getName(), new DiscoveryNetworkConnector().getPrefetchSize()) : null;
+        if (flowController != null) {
+            if (limiter != null) {
+                flowController.setPeerUsage(limiter);
+            }
+            broker.setPlugins(new BrokerPlugin[]{monitor, flowController});
+        } else {
+            broker.setPlugins(new BrokerPlugin[]{monitor});
+        }
+
+        final PersistenceAdapter adaptor = KahaDBProfile.create(kahaDbDir, getKahaDbProfile());
+        broker.setPersistenceAdapter(adaptor);
+
+        log.info("Starting broker with data directory " + kahaDbDir);
+        final long recoveryStart = System.currentTimeMillis();
+        long purged = 0;
+        if (isPurgeExpired()) {
+            // the broker takes the started adapter over, its index is recovered once
+            adaptor.start();
+            final long purgeStart = System.currentTimeMillis();
+            try {
+                purgeExpired(adaptor, store);
+            } catch (Exception e) {
+                adaptor.stop();
+                throw e;
+            }
+            purged = System.currentTimeMillis() - purgeStart;
+            store.phase(DrainMetrics.PHASE_PURGE, purged);
+        }
+        broker.start(true);
+        broker.waitUntilStarted();
+        final long recovered = System.currentTimeMillis() - recoveryStart - purged;
+        store.phase(DrainMetrics.PHASE_RECOVERY, recovered);
+        log.info(String.format("Started broker, index recovery took %s ms.", recovered));
+
+        List<NetworkConnector> bridges = new ArrayList<>();
+        long forwardStart = 0;
+        try {
+            if (limits != null) {
+                limits.apply(broker);
+                if (flowController != null) {
+                    flowController.setMaxPrefetch(limits.getPrefetch());
+                }
+            }
+            monitor.transferStarted();
+            forwardStart = System.currentTimeMillis();
+            if (scheduler.hasCritical()) {
+                List<ActiveMQDestination> critical = getCriticalQueues(broker);
+                if (!critical.isEmpty()) {
+                    bridges.add(addCriticalBridge(broker, critical, limits));
+                    if (!monitor.awaitDrained(critical, scheduler.getCutOffTime())) {
+                        return;
+                    }
+                }
+            }
+            if (getBridges() > 1) {
+                List<NetworkConnector> partitioned = addPartitionedBridges(broker, getBridges(), limits);
+                bridges.addAll(partitioned);
+                monitor.setBridges(partitioned);
+            } else {
+                bridges.add(addBridge(broker, limits));
+            }
+            monitor.awaitDrained(null, scheduler.getCutOffTime());
+        } finally {
+            final long stopStart = System.currentTimeMillis();
+            if (forwardStart > 0) {
+                store.transferred(forwardStart, stopStart);
+            }
+            // added after start, stop them before the broker tears down the vm transports under them
+            for (NetworkConnector bridge : bridges) {
+                bridge.stop();
+            }
+            broker.stop();
+            broker.waitUntilStopped();
+            store.phase(DrainMetrics.PHASE_STOP, System.currentTimeMillis() - stopStart);
+        }
+    }
+
+    private void purgeExpired(PersistenceAdapter adapter, DrainMetrics.Store store) throws Exception {
+        for (Map.Entry<String, Long> entry : new ExpiryPurger(adapter, isProcessExpired()).purge().entrySet()) {
+            store.expired(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private StreamingLimits createStreamingLimits() {
+        String memoryLimit = Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_STREAMING_MEMORY_LIMIT);
+        if (memoryLimit != null) {
+            return new StreamingLimits(Long.parseLong(memoryLimit));
+        }
+        return StreamingLimits.forHeap(getStreamingHeapPercent(), getParallelism());
+    }
+
+    private BrokerService createBroker(String brokerName, boolean createJmxConnector, StreamingLimits limits) throws Exception {
         final BrokerService broker = new BrokerService();
         broker.setAdvisorySupport(false);
-        broker.setBrokerName(getBrokerName());
+        broker.setBrokerName(brokerName);
         broker.setUseJmx(true);
+        broker.getManagementContext().setCreateConnector(createJmxConnector);
 
         broker.setDataDirectory(dataDir);
-        log.info(String.format("Data directory %s.", dataDir));
+        if (lean != null) {
+            lean.configure(broker);
+        }
 
         PolicyMap policyMap = new PolicyMap();
         PolicyEntry defaultEntry = new PolicyEntry();
@@ -94,52 +841,108 @@ public class BrokerServiceDrainer {
         ConditionalNetworkBridgeFilterFactory filterFactory = new ConditionalNetworkBridgeFilterFactory();
         filterFactory.setReplayWhenNoConsumers(true);
         defaultEntry.setNetworkBridgeFilterFactory(filterFactory);
+        if (limits != null) {
+            limits.configure(broker, defaultEntry);
+        }
+        if (scheduler.isActive()) {
+            // queues dispatch the highest JMS priority first
+            defaultEntry.setPrioritizedMessages(true);
+        }
         policyMap.setDefaultEntry(defaultEntry);
         broker.setDestinationPolicy(policyMap);
 
-        String meshServiceName = Utils.getSystemPropertyOrEnvVar("amq.mesh.service.name");
-        if (meshServiceName == null) {
-            meshServiceName = getApplicationName() + "-amq-tcp";
-        }
-        String queryInterval = Utils.getSystemPropertyOrEnvVar("amq.mesh.query.interval", "3");
-        String drainerDiscoveryType = Utils.getSystemPropertyOrEnvVar("amq.mesh.discovery.type", "kube");
-        String meshURL = String.format(MESH_URL_FORMAT, drainerDiscoveryType, meshServiceName, queryInterval);
+        // bridges are added once the store is loaded, see drainKahaDb
+        return broker;
+    }
 
+    private NetworkConnector addBridge(BrokerService broker, StreamingLimits limits) throws Exception {
         // programmatically add the draining bridge, depends on the mesh url only (could be in the xml config either)
         log.info("Creating network connector.");
-        NetworkConnector drainingNetworkConnector = broker.addNetworkConnector(meshURL);
-        drainingNetworkConnector.setUserName(getUsername());
-        drainingNetworkConnector.setPassword(getPassword());
-        drainingNetworkConnector.setMessageTTL(-1);
-        drainingNetworkConnector.setConsumerTTL(1);
-        drainingNetworkConnector.setStaticBridge(true);
-        drainingNetworkConnector.setStaticallyIncludedDestinations(Arrays.asList(new ActiveMQDestination[]{new ActiveMQQueue(">")}));
+        NetworkConnector connector = createConnector();
+        configureBridge(connector, Arrays.asList(new ActiveMQDestination[]{new ActiveMQQueue(">")}), limits);
+        startBridge(broker, connector);
+        return connector;
+    }
 
-        for (File kahaDbDir : findKahaDbInstances(new File(dataDir, "kahadb"))) {
+    private NetworkConnector createConnector() throws Exception {
+        if (limiter != null || compressor != null) {
+            return new DrainConnector(new URI(meshURL), limiter, compressor);
+        }
+        return new DiscoveryNetworkConnector(new URI(meshURL));
+    }
 
-            final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
-            ((KahaDBPersistenceAdapter) adaptor).setConcurrentStoreAndDispatchQueues(false);
-            adaptor.setDirectory(kahaDbDir);
-            broker.setPersistenceAdapter(adaptor);
+    private List<ActiveMQDestination> getCriticalQueues(BrokerService broker) {
+        List<ActiveMQDestination> critical = new ArrayList<>();
+        RegionBroker regionBroker = (RegionBroker) broker.getRegionBroker();
+        for (Map.Entry<ActiveMQDestination, Destination> entry : regionBroker.getQueueRegion().getDestinationMap().entrySet()) {
+            if (scheduler.isCritical(entry.getKey().getPhysicalName()) && entry.getValue().getDestinationStatistics().getMessages().getCount() > 0) {
+                critical.add(entry.getKey());
+            }
+        }
+        return critical;
+    }
 
-            log.info("Starting broker with data directory " + kahaDbDir);
-            broker.start(true);
-            broker.waitUntilStarted();
-            log.info("Started broker.");
+    /**
+     * Bridges only the critical queues, the others wait until these are drained.
+     */
+    private NetworkConnector addCriticalBridge(BrokerService broker, List<ActiveMQDestination> critical, StreamingLimits limits) throws Exception {
+        log.info(String.format("Creating network connector for critical queues %s.", critical));
+        NetworkConnector connector = createConnector();
+        connector.setName("drain-bridge-critical");
+        configureBridge(connector, critical, limits);
+        startBridge(broker, connector);
+        return connector;
+    }
 
-            long msgs;
-            while ((msgs = ((RegionBroker)broker.getRegionBroker()).getDestinationStatistics().getMessages().getCount()) > 0) {
-                log.info(String.format("Still %s msgs left to migrate ...", msgs));
-                TimeUnit.SECONDS.sleep(5);
-            }
+    private static void startBridge(BrokerService broker, NetworkConnector connector) throws Exception {
+        // the broker only names the connectors it starts itself, the name is part of the bridge client id on the mesh
+        connector.setBrokerName(broker.getBrokerName());
+        broker.addNetworkConnector(connector);
+        connector.start();
+    }
 
-            broker.stop();
-            broker.waitUntilStopped();
+    private void configureBridge(NetworkConnector connector, List<ActiveMQDestination> destinations, StreamingLimits limits) {
+        connector.setUserName(getUsername());
+        connector.setPassword(getPassword());
+        connector.setMessageTTL(-1);
+        connector.setConsumerTTL(1);
+        connector.setStaticBridge(true);
+        connector.setStaticallyIncludedDestinations(destinations);
+        if (limits != null) {
+            // unacked messages stay in the broker memory, the bridge waits for acks instead of buffering
+            connector.setPrefetchSize(limits.getPrefetch());
         }
-        log.info("-- [CE] A-MQ migration finished. --");
     }
 
-    private static Iterable<? extends File> findKahaDbInstances(File root) {
+    private List<NetworkConnector> addPartitionedBridges(BrokerService broker, int bridges, StreamingLimits limits) throws Exception {
+        final Map<ActiveMQDestination, Long> backlog = new HashMap<>();
+        RegionBroker regionBroker = (RegionBroker) broker.getRegionBroker();
+        for (Map.Entry<ActiveMQDestination, Destination> entry : regionBroker.getQueueRegion().getDestinationMap().entrySet()) {
+            backlog.put(entry.getKey(), entry.getValue().getDestinationStatistics().getMessages().getCount());
+        }
+        // expired messages end up there while draining, even when it does not exist yet
+        ActiveMQDestination dlq = new SharedDeadLetterStrategy().getDeadLetterQueue();
+        if (!backlog.containsKey(dlq)) {
+            backlog.put(dlq, 0L);
+        }
+
+        final List<NetworkConnector> connectors = new ArrayList<>();
+        for (List<ActiveMQDestination> partition : BridgePartitioner.partition(backlog, bridges, getBridgesAssignment())) {
+            long messages = 0;
+            for (ActiveMQDestination destination : partition) {
+                messages += backlog.get(destination);
+            }
+            NetworkConnector connector = createConnector();
+            connector.setName("drain-bridge-" + connectors.size());
+            configureBridge(connector, partition, limits);
+            log.info(String.format("Creating network connector %s for %s queues, %s msgs: %s", connector.getName(), partition.size(), messages, partition));
+            startBridge(broker, connector);
+            connectors.add(connector);
+        }
+        return connectors;
+    }
+
+    private static List<File> findKahaDbInstances(File root) {
         LinkedList<File> dirs = new LinkedList<File>();
         FileFilter destinationNames = new FileFilter() {
             public boolean accept(File file) {
@@ -156,6 +959,160 @@ public class BrokerServiceDrainer {
         return dirs;
     }
 
+    public static String getMeshURL() {
+        String meshServiceName = Utils.getSystemPropertyOrEnvVar("amq.mesh.service.name");
+        if (meshServiceName == null) {
+            meshServiceName = getApplicationName() + "-amq-tcp";
+        }
+        String queryInterval = Utils.getSystemPropertyOrEnvVar("amq.mesh.query.interval", "3");
+        String drainerDiscoveryType = Utils.getSystemPropertyOrEnvVar("amq.mesh.discovery.type", "kube");
+        return String.format(MESH_URL_FORMAT, drainerDiscoveryType, meshServiceName, queryInterval);
+    }
+
+    public static int getParallelism() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_PARALLELISM, "1"));
+    }
+
+    public static int getBridges() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_BRIDGES, "1"));
+    }
+
+    public static String getBridgesAssignment() {
+        return Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_BRIDGES_ASSIGNMENT, BridgePartitioner.BY_BACKLOG);
+    }
+
+    public static String getKahaDbProfile() {
+        return Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_KAHADB_PROFILE, KahaDBProfile.DEFAULT);
+    }
+
+    public static boolean isSkipEmpty() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_SKIP_EMPTY, "true"));
+    }
+
+    public static boolean isPurgeExpired() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_PURGE_EXPIRED, "true"));
+    }
+
+    public static boolean isStreaming() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_STREAMING, "false"));
+    }
+
+    public static int getStreamingHeapPercent() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_STREAMING_HEAP_PERCENT, "50"));
+    }
+
+    public static boolean isLean() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_LEAN, "false"));
+    }
+
+    public static int getLeanThreads() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_LEAN_THREADS,
+            String.valueOf(Math.max(8, 2 * Runtime.getRuntime().availableProcessors()))));
+    }
+
+    public static boolean isVirtualThreads() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_VIRTUAL_THREADS, "true"));
+    }
+
+    public static boolean isAdaptiveFlow() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_ADAPTIVE_FLOW, "false"));
+    }
+
+    public static boolean isFanOut() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_FANOUT, "false"));
+    }
+
+    public static String getEngine() {
+        return Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_ENGINE, ENGINE_BROKER);
+    }
+
+    public static int getOpenWireVersion() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_JOURNAL_OPENWIRE_VERSION, String.valueOf(OpenWireFormat.DEFAULT_STORE_VERSION)));
+    }
+
+    public static boolean isSpoolFallback() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_SPOOL_FALLBACK, "false"));
+    }
+
+    public static boolean isSpoolImport() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_SPOOL_IMPORT, "false"));
+    }
+
+    public static int getSpoolProducers() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_SPOOL_PRODUCERS, "4"));
+    }
+
+    public static int getSpoolBatchSize() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_SPOOL_BATCH_SIZE, "500"));
+    }
+
+    public static long getDeadlineReserve() {
+        return Long.parseLong(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_DEADLINE_RESERVE, "10"));
+    }
+
+    public static long getPeerTimeout() {
+        return Long.parseLong(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_PEER_TIMEOUT, "30"));
+    }
+
+    public static double getPeerRate() {
+        return Double.parseDouble(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_PEER_RATE, "0"));
+    }
+
+    public static int getPeerUsageCeiling() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_PEER_USAGE_CEILING, "0"));
+    }
+
+    public static boolean isWireCompression() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_WIRE_COMPRESSION, "false"));
+    }
+
+    public static int getCompressionMinSize() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_COMPRESSION_MIN_SIZE, "1024"));
+    }
+
+    public static int getGroupLanes() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_GROUP_LANES, "0"));
+    }
+
+    public static String getGroupKey() {
+        return Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_GROUP_KEY, GroupPartitioner.GROUP_ID);
+    }
+
+    public static double getInventoryRate() {
+        return Double.parseDouble(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_INVENTORY_RATE, "0"));
+    }
+
+    public static boolean isCheckpoint() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_CHECKPOINT, "false"));
+    }
+
+    public static int getCheckpointIds() {
+        return Integer.parseInt(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_CHECKPOINT_IDS, "65536"));
+    }
+
+    public File getCheckpointFile() {
+        return new File(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_CHECKPOINT_FILE, new File(dataDir, "drain-checkpoint").getPath()));
+    }
+
+    public File getSummaryFile() {
+        return new File(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_SUMMARY_FILE, new File(dataDir, "drain-summary.json").getPath()));
+    }
+
+    public File getSpoolDir() {
+        return new File(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_SPOOL_DIR, new File(dataDir, "spool").getPath()));
+    }
+
+    /**
+     * Mirrors the default {@link SharedDeadLetterStrategy}, which sends expired messages to the DLQ.
+     */
+    public static boolean isProcessExpired() {
+        return Boolean.parseBoolean(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_DLQ_PROCESS_EXPIRED, "true"));
+    }
+
+    public static long getStallTimeout() {
+        return Long.parseLong(Utils.getSystemPropertyOrEnvVar(AMQ_DRAINER_STALL_TIMEOUT, "30"));
+    }
+
     public static String getApplicationName() {
         return Utils.getSystemPropertyOrEnvVar("application.name");
     }
@@ -0,0 +1,338 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress of a drain that survives the drainer being killed, so the next run picks up where it stopped.
+ *
+ * The checkpoint is an append-only file of lines: stores drained completely with the state of their journal
+ * at the time, and the ids of every batch a peer committed. A store whose journal is unchanged since is
+ * skipped. Lines are appended under the lock and synced outside it by group commit, the writer that syncs
+ * covers every line appended before, the ones queued behind it return without syncing again.
+ *
+ * The ids of the last batches per store are kept in a bounded cache, they cover the window between a commit
+ * on the peer and the removal from the local journal, a message still in the store but in the cache is
+ * removed instead of forwarded again. Only the journal engine records batches; the broker engine's bridges
+ * commit out of its sight, so it gets the skipping of finished stores alone. A batch the drainer was killed
+ * in the middle of sending may still reach the peer twice, its commit never got back.
+ *
+ * The file is rewritten with only what is still needed when it is opened and whenever it grew well past that.
+ */
+public class DrainCheckpoint implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(DrainCheckpoint.class);
+
+    private static final String DONE = "done";
+    private static final String SENT = "sent";
+    private static final String PROGRESS = "progress";
+    private static final String IDS = "ids";
+    private static final char SEPARATOR = '\t';
+    // appended bytes on top of the last compacted size before the file is compacted again
+    private static final long COMPACT_SLACK = 4 * 1024 * 1024;
+
+    private final File file;
+    private final int cacheSize;
+    private final Map<String, String> done = new TreeMap<>();
+    private final Map<String, Map<String, Long>> progress = new TreeMap<>();
+    private final Map<String, LinkedHashSet<String>> ids = new HashMap<>();
+    // held by the writer syncing, taken before the instance lock
+    private final Object syncLock = new Object();
+    private FileOutputStream out;
+    private long length;
+    private long compacted;
+    // bytes appended since opened, and how many of them are known to be on disk
+    private long appended;
+    private long synced;
+
+    /**
+     * @param cacheSize ids kept per store, more than all forwarders have in flight at once
+     */
+    public DrainCheckpoint(File file, int cacheSize) {
+        this.file = file;
+        this.cacheSize = Math.max(1, cacheSize);
+    }
+
+    /**
+     * Reads what an earlier run left and compacts it.
+     */
+    public synchronized void open() throws IOException {
+        if (file.exists()) {
+            byte[] data = Files.readAllBytes(file.toPath());
+            int start = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == '\n') {
+                    read(new String(data, start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+            if (start < data.length) {
+                // torn by a crash, part of an id could pass for another one
+                log.warn(String.format("Ignoring the incomplete last line of checkpoint %s.", file));
+            }
+        }
+        compact();
+    }
+
+    private void read(String line) {
+        String[] fields = line.split(String.valueOf(SEPARATOR));
+        if (DONE.equals(fields[0]) && fields.length == 3) {
+            done.put(fields[1], fields[2]);
+        } else if (PROGRESS.equals(fields[0]) && fields.length == 4) {
+            progress(fields[1]).put(fields[2], Long.parseLong(fields[3]));
+        } else if (SENT.equals(fields[0]) && fields.length > 3) {
+            Map<String, Long> queues = progress(fields[1]);
+            Long previous = queues.get(fields[2]);
+            queues.put(fields[2], (previous == null ? 0 : previous) + fields.length - 3);
+            cache(fields);
+        } else if (IDS.equals(fields[0]) && fields.length > 3) {
+            cache(fields);
+        } else if (!line.isEmpty()) {
+            log.warn(String.format("Ignoring unknown checkpoint line: %s", line));
+        }
+    }
+
+    private Map<String, Long> progress(String store) {
+        Map<String, Long> queues = progress.get(store);
+        if (queues == null) {
+            queues = new TreeMap<>();
+            progress.put(store, queues);
+        }
+        return queues;
+    }
+
+    /**
+     * @param fields line type, store, queue and message ids
+     */
+    private void cache(String[] fields) {
+        LinkedHashSet<String> cached = ids.get(fields[1]);
+        if (cached == null) {
+            cached = new LinkedHashSet<>();
+            ids.put(fields[1], cached);
+        }
+        for (int i = 3; i < fields.length; i++) {
+            cached.add(toKey(fields[2], fields[i]));
+        }
+        // oldest first, their removals reached the journal long ago
+        Iterator<String> oldest = cached.iterator();
+        for (int excess = cached.size() - cacheSize; excess > 0; excess--) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    // composite destinations store a message under the same id in several queues
+    private static String toKey(String queue, String messageId) {
+        return queue + SEPARATOR + messageId;
+    }
+
+    /**
+     * @param state {@link KahaDBJournal#getJournalState(File)} now
+     * @return true if the store was drained completely and not written to since
+     */
+    public synchronized boolean isDone(String store, String state) {
+        return state.equals(done.get(store));
+    }
+
+    /**
+     * @return messages per queue of the store that earlier runs and this one are done with
+     */
+    public synchronized Map<String, Long> getProgress(String store) {
+        Map<String, Long> queues = progress.get(store);
+        return queues != null ? new TreeMap<>(queues) : new TreeMap<String, Long>();
+    }
+
+    /**
+     * @return true if a peer committed the message, whether or not it was removed from the store since
+     */
+    public synchronized boolean isForwarded(String store, String queue, String messageId) {
+        LinkedHashSet<String> cached = ids.get(store);
+        return cached != null && cached.contains(toKey(queue, messageId));
+    }
+
+    /**
+     * A peer committed these messages of a queue, to be recorded before they are removed from the store.
+     */
+    public void forwarded(String store, String queue, Collection<String> messageIds) throws IOException {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(SENT).append(SEPARATOR).append(store).append(SEPARATOR).append(queue);
+        for (String id : messageIds) {
+            line.append(SEPARATOR).append(id);
+        }
+        long position;
+        synchronized (this) {
+            read(line.toString());
+            position = append(line.append('\n').toString());
+        }
+        sync(position);
+    }
+
+    /**
+     * The store is drained, a later run skips it until its journal changes.
+     */
+    public void done(String store, String state) throws IOException {
+        long position;
+        synchronized (this) {
+            done.put(store, state);
+            ids.remove(store);
+            position = append(DONE + SEPARATOR + store + SEPARATOR + state + '\n');
+        }
+        sync(position);
+    }
+
+    /**
+     * @return bytes appended since opened, including the line, to be synced up to
+     */
+    private long append(String line) throws IOException {
+        if (out == null) {
+            throw new IOException("Checkpoint " + file + " is closed.");
+        }
+        byte[] data = line.getBytes(StandardCharsets.UTF_8);
+        out.write(data);
+        length += data.length;
+        appended += data.length;
+        if (length > 2 * compacted + COMPACT_SLACK) {
+            compact();
+        }
+        return appended;
+    }
+
+    /**
+     * Returns once everything appended up to the position is on disk, syncing whatever was appended by then.
+     */
+    private void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            FileChannel channel;
+            long target;
+            synchronized (this) {
+                if (synced >= position) {
+                    return;
+                }
+                if (out == null) {
+                    throw new IOException("Checkpoint " + file + " is closed.");
+                }
+                channel = out.getChannel();
+                target = appended;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                synchronized (this) {
+                    // compacted meanwhile, the new file was synced with all of it
+                    if (synced < target) {
+                        throw e;
+                    }
+                }
+            }
+            synchronized (this) {
+                synced = Math.max(synced, target);
+            }
+        }
+    }
+
+    /**
+     * Replaces the file by one with only the stores done, the progress per queue and the cached ids.
+     */
+    private void compact() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> entry : done.entrySet()) {
+            text.append(DONE).append(SEPARATOR).append(entry.getKey()).append(SEPARATOR).append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Map<String, Long>> store : progress.entrySet()) {
+            for (Map.Entry<String, Long> queue : store.getValue().entrySet()) {
+                text.append(PROGRESS).append(SEPARATOR).append(store.getKey()).append(SEPARATOR).append(queue.getKey())
+                    .append(SEPARATOR).append(queue.getValue()).append('\n');
+            }
+        }
+        for (Map.Entry<String, LinkedHashSet<String>> store : ids.entrySet()) {
+            Map<String, StringBuilder> queues = new LinkedHashMap<>();
+            for (String key : store.getValue()) {
+                int separator = key.lastIndexOf(SEPARATOR);
+                String queue = key.substring(0, separator);
+                StringBuilder line = queues.get(queue);
+                if (line == null) {
+                    line = new StringBuilder(IDS).append(SEPARATOR).append(store.getKey()).append(SEPARATOR).append(queue);
+                    queues.put(queue, line);
+                }
+                line.append(key, separator, key.length());
+            }
+            for (StringBuilder line : queues.values()) {
+                text.append(line).append('\n');
+            }
+        }
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+        if (out != null) {
+            out.close();
+        }
+        File partial = new File(file.getPath() + ".part");
+        try (FileOutputStream compact = new FileOutputStream(partial)) {
+            compact.write(data);
+            compact.getFD().sync();
+        }
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        out = new FileOutputStream(file, true);
+        length = data.length;
+        compacted = data.length;
+        synced = appended;
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Removes the checkpoint once nothing is left to resume.
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.activemq.command.DiscoveryEvent;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.network.DiscoveryNetworkConnector;
+import org.apache.activemq.network.NetworkBridge;
+import org.apache.activemq.transport.FutureResponse;
+import org.apache.activemq.transport.ResponseCallback;
+import org.apache.activemq.transport.Transport;
+import org.apache.activemq.transport.TransportFilter;
+
+/**
+ * Draining network connector that compresses the bodies it forwards, see {@link BodyCompressor}, and
+ * takes a token from the bucket of the peer for every message, see {@link PeerRateLimiter}.
+ * Either one is optional.
+ */
+public class DrainConnector extends DiscoveryNetworkConnector {
+    /**
+     * Tight encoding and marshalling cache are OpenWire defaults, set so a peer cannot be mistaken for one
+     * that turns them off. The bigger cache keeps destinations of large brokers cached, the bigger socket
+     * buffer saves system calls on large bodies.
+     */
+    static final String WIRE_OPTIONS = "wireFormat.tightEncodingEnabled=true&wireFormat.cacheEnabled=true&wireFormat.cacheSize=4096&ioBufferSize=65536";
+
+    private final PeerRateLimiter limiter;
+    private final BodyCompressor compressor;
+    // peer URIs with wire options to the ones discovered
+    private final Map<String, String> peers = new ConcurrentHashMap<>();
+
+    public DrainConnector(URI discoveryUri, PeerRateLimiter limiter, BodyCompressor compressor) throws IOException {
+        super(discoveryUri);
+        this.limiter = limiter;
+        this.compressor = compressor;
+    }
+
+    /**
+     * @return the URI of a TCP peer with {@link #WIRE_OPTIONS}, of a discovery transport with them for every
+     * peer it discovers, other URIs unchanged
+     */
+    public static String withWireOptions(String uri) {
+        if (uri.contains("wireFormat.")) {
+            return uri;
+        }
+        String options;
+        if (uri.startsWith("discovery:")) {
+            options = "discovered." + WIRE_OPTIONS.replace("&", "&discovered.");
+        } else if (uri.matches("(tcp|ssl|nio|nio\\+ssl)://.*")) {
+            options = WIRE_OPTIONS;
+        } else {
+            return uri;
+        }
+        int query = uri.lastIndexOf('?');
+        return uri + (query > uri.lastIndexOf(')') ? "&" : "?") + options;
+    }
+
+    @Override
+    public void onServiceAdd(DiscoveryEvent event) {
+        super.onServiceAdd(tuned(event));
+    }
+
+    @Override
+    public void onServiceRemove(DiscoveryEvent event) {
+        super.onServiceRemove(tuned(event));
+    }
+
+    private DiscoveryEvent tuned(DiscoveryEvent event) {
+        if (compressor == null || event.getServiceName() == null) {
+            return event;
+        }
+        String peer = withWireOptions(event.getServiceName());
+        peers.put(peer, event.getServiceName());
+        DiscoveryEvent tuned = new DiscoveryEvent(peer);
+        tuned.setBrokerName(event.getBrokerName());
+        return tuned;
+    }
+
+    @Override
+    protected NetworkBridge createBridge(Transport localTransport, Transport remoteTransport, DiscoveryEvent event) {
+        String peer = peers.containsKey(event.getServiceName()) ? peers.get(event.getServiceName()) : event.getServiceName();
+        PeerRateLimiter.Bucket bucket = limiter != null ? limiter.bucket(peer) : null;
+        return super.createBridge(localTransport, filter(remoteTransport, bucket, compressor), event);
+    }
+
+    static Transport filter(Transport transport, final PeerRateLimiter.Bucket bucket, final BodyCompressor compressor) {
+        return new TransportFilter(transport) {
+            @Override
+            public void oneway(Object command) throws IOException {
+                take(command);
+                super.oneway(command);
+            }
+
+            @Override
+            public FutureResponse asyncRequest(Object command, ResponseCallback callback) throws IOException {
+                take(command);
+                // TransportFilter drops the callback, the bridge needs it to ack what it forwarded
+                return getNext().asyncRequest(command, callback);
+            }
+
+            @Override
+            public Object request(Object command) throws IOException {
+                take(command);
+                return super.request(command);
+            }
+
+            @Override
+            public Object request(Object command, int timeout) throws IOException {
+                take(command);
+                return super.request(command, timeout);
+            }
+
+            private void take(Object command) throws IOException {
+                if (!(command instanceof Message)) {
+                    return;
+                }
+                if (compressor != null) {
+                    // the bridge sends a copy of its own
+                    compressor.compress((Message) command);
+                }
+                if (bucket != null) {
+                    try {
+                        bucket.acquire(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the rate limit of " + bucket.getPeer());
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,762 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress of a drain run: throughput, backlog per KahaDB instance and destination, and ETA.
+ *
+ * Exposed over JMX, as text or JSON through {@link DrainMetricsServer}, and written as a JSON summary at the end.
+ */
+public class DrainMetrics implements DrainMetricsMXBean {
+    private static final Logger log = LoggerFactory.getLogger(DrainMetrics.class);
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+    // weight of the newest sample in the rate averages
+    private static final double RATE_SMOOTHING = 0.3;
+
+    // phases timed per store, or for the whole run where noted
+    public static final String PHASE_SCAN = "scan"; // whole run
+    public static final String PHASE_DISCOVERY = "discovery"; // whole run
+    public static final String PHASE_PURGE = "purge";
+    public static final String PHASE_RECOVERY = "recovery";
+    public static final String PHASE_REPLAY = "replay";
+    public static final String PHASE_BRIDGE = "bridge";
+    public static final String PHASE_TRANSFER = "transfer";
+    public static final String PHASE_STOP = "stop";
+    public static final String PHASE_EXPORT = "export";
+    public static final String PHASE_IMPORT = "import";
+    // histogram of the time from the start of the transfer until a destination is empty
+    public static final String DESTINATION_TRANSFER = "destination";
+
+    public enum Status {
+        PENDING, DRAINING, DONE, FAILED, SKIPPED, SPOOLED, UNFINISHED
+    }
+
+    private final String name;
+    private final Map<String, Store> stores = Collections.synchronizedMap(new LinkedHashMap<String, Store>());
+    private final Map<String, Long> phases = new ConcurrentSkipListMap<>();
+    private final Map<String, PhaseHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    private ScheduledExecutorService sampler;
+    private ObjectName objectName;
+    private long startTime;
+    private long endTime;
+
+    private long lastSampleTime;
+    private long lastSampleMessages;
+    private long lastSampleBytes;
+    private volatile double messagesPerSecond;
+    private volatile double bytesPerSecond;
+
+    public DrainMetrics(String name) {
+        this.name = name;
+    }
+
+    public Store store(String storeName) {
+        synchronized (stores) {
+            Store store = stores.get(storeName);
+            if (store == null) {
+                store = new Store(this, storeName);
+                stores.put(storeName, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Time spent in a phase of the whole run, not of a single store.
+     */
+    public void phase(String phase, long millis) {
+        synchronized (phases) {
+            Long previous = phases.get(phase);
+            phases.put(phase, previous == null ? millis : previous + millis);
+        }
+        histogram(phase).record(millis);
+    }
+
+    public Map<String, Long> getPhases() {
+        return Collections.unmodifiableMap(phases);
+    }
+
+    public PhaseHistogram histogram(String phase) {
+        synchronized (histograms) {
+            PhaseHistogram histogram = histograms.get(phase);
+            if (histogram == null) {
+                histogram = new PhaseHistogram();
+                histograms.put(phase, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    public void start() {
+        startTime = System.currentTimeMillis();
+        lastSampleTime = startTime;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("org.jboss.ce.amq.drain:type=Drainer,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+        } catch (Exception e) {
+            log.warn("Cannot register drain metrics MBean: " + e);
+            objectName = null;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Drain metrics sampler"));
+        sampler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sample();
+            }
+        }, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        endTime = System.currentTimeMillis();
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                log.debug("Cannot unregister drain metrics MBean: " + e);
+            }
+        }
+    }
+
+    synchronized void sample() {
+        long now = System.currentTimeMillis();
+        long messages = getForwardedMessages();
+        long bytes = getForwardedBytes();
+        double seconds = (now - lastSampleTime) / 1000d;
+        if (seconds > 0) {
+            messagesPerSecond = smooth(messagesPerSecond, (messages - lastSampleMessages) / seconds);
+            bytesPerSecond = smooth(bytesPerSecond, (bytes - lastSampleBytes) / seconds);
+        }
+        lastSampleTime = now;
+        lastSampleMessages = messages;
+        lastSampleBytes = bytes;
+    }
+
+    private static double smooth(double previous, double current) {
+        return previous == 0 ? current : RATE_SMOOTHING * current + (1 - RATE_SMOOTHING) * previous;
+    }
+
+    /**
+     * Sum of the heap pool peaks since the drain started, an upper bound as pools peak at different times.
+     */
+    public long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    public int getPeakThreads() {
+        return ManagementFactory.getThreadMXBean().getPeakThreadCount();
+    }
+
+    /**
+     * @return peak resident set size of the process, -1 where /proc is not available
+     */
+    public long getPeakRssBytes() {
+        File status = new File("/proc/self/status");
+        if (!status.isFile()) {
+            return -1;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(status), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.debug("Cannot read peak RSS: " + e);
+        }
+        return -1;
+    }
+
+    /**
+     * @return from the start of the drain to the first message forwarded by any store, -1 until then
+     */
+    public long getTimeToFirstMessageMillis() {
+        long first = Long.MAX_VALUE;
+        for (Store store : getStores()) {
+            long time = store.firstForwardTime.get();
+            if (time > 0) {
+                first = Math.min(first, time);
+            }
+        }
+        return first == Long.MAX_VALUE ? -1 : first - startTime;
+    }
+
+    public long getForwardedMessages() {
+        long total = 0;
+        for (Store store : getStores()) {
+            total += store.forwarded.get();
+        }
+        return total;
+    }
+
+    public long getForwardedBytes() {
+        long total = 0;
+        for (Store store : getStores()) {
+            total += store.forwardedBytes.get();
+        }
+        return total;
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getRemainingMessages() {
+        long total = 0;
+        boolean known = false;
+        for (Store store : getStores()) {
+            if (store.remaining >= 0) {
+                total += store.remaining;
+                known = true;
+            }
+        }
+        return known ? total : -1;
+    }
+
+    public long getInflightMessages() {
+        long total = 0;
+        for (Store store : getStores()) {
+            total += store.inflight;
+        }
+        return total;
+    }
+
+    public long getEstimatedSecondsRemaining() {
+        long remaining = getRemainingMessages();
+        if (remaining == 0) {
+            return 0;
+        }
+        double rate = messagesPerSecond;
+        if (remaining < 0 || rate <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(remaining / rate);
+    }
+
+    public Map<String, String> getStoreProgress() {
+        Map<String, String> progress = new LinkedHashMap<>();
+        for (Store store : getStores()) {
+            progress.put(store.name, store.status + " " + store.forwarded.get() + "/" + (store.initial >= 0 ? store.initial : "?"));
+        }
+        return progress;
+    }
+
+    public Map<String, Long> getRemainingPerDestination() {
+        Map<String, Long> remaining = new TreeMap<>();
+        for (Store store : getStores()) {
+            for (Map.Entry<String, Long> entry : store.destinations.entrySet()) {
+                remaining.put(store.name + "/" + entry.getKey(), entry.getValue());
+            }
+        }
+        return remaining;
+    }
+
+    public String getSummary() {
+        return toJson();
+    }
+
+    private Store[] getStores() {
+        synchronized (stores) {
+            return stores.values().toArray(new Store[stores.size()]);
+        }
+    }
+
+    public String toText() {
+        StringBuilder builder = new StringBuilder();
+        line(builder, "drain_forwarded_messages", getForwardedMessages());
+        line(builder, "drain_forwarded_bytes", getForwardedBytes());
+        line(builder, "drain_messages_per_second", String.format(Locale.ROOT, "%.1f", getMessagesPerSecond()));
+        line(builder, "drain_bytes_per_second", String.format(Locale.ROOT, "%.1f", getBytesPerSecond()));
+        line(builder, "drain_remaining_messages", getRemainingMessages());
+        line(builder, "drain_inflight_messages", getInflightMessages());
+        line(builder, "drain_eta_seconds", getEstimatedSecondsRemaining());
+        line(builder, "drain_peak_heap_bytes", getPeakHeapBytes());
+        line(builder, "drain_peak_rss_bytes", getPeakRssBytes());
+        line(builder, "drain_peak_threads", getPeakThreads());
+        line(builder, "drain_first_message_millis", getTimeToFirstMessageMillis());
+        for (Store store : getStores()) {
+            String storeLabel = label("store", store.name);
+            String labels = "{" + storeLabel + "}";
+            // the status as a label, a sample value has to be a number
+            line(builder, "drain_store_status{" + storeLabel + "," + label("status", store.status.name()) + "}", 1);
+            line(builder, "drain_store_initial_messages" + labels, store.initial);
+            line(builder, "drain_store_remaining_messages" + labels, store.remaining);
+            line(builder, "drain_store_forwarded_messages" + labels, store.forwarded.get());
+            line(builder, "drain_store_inflight_messages" + labels, store.inflight);
+            line(builder, "drain_store_expired_messages" + labels, store.getExpired());
+            line(builder, "drain_store_spooled_messages" + labels, store.spooled.get());
+            for (Map.Entry<String, Long> entry : store.destinations.entrySet()) {
+                line(builder, "drain_destination_remaining_messages{" + storeLabel + "," + label("destination", entry.getKey()) + "}", entry.getValue());
+            }
+            for (Map.Entry<String, Long> entry : store.unfinished.entrySet()) {
+                line(builder, "drain_destination_unfinished_messages{" + storeLabel + "," + label("destination", entry.getKey()) + "}", entry.getValue());
+            }
+            for (Map.Entry<String, Long> entry : store.getPhases().entrySet()) {
+                line(builder, "drain_store_phase_millis{" + storeLabel + "," + label("phase", entry.getKey()) + "}", entry.getValue());
+            }
+            line(builder, "drain_store_first_forward_millis" + labels, store.getTimeToFirstForwardMillis());
+            for (Map.Entry<String, Long> entry : store.destinationMillis.entrySet()) {
+                line(builder, "drain_destination_transfer_millis{" + storeLabel + "," + label("destination", entry.getKey()) + "}", entry.getValue());
+            }
+        }
+        for (Map.Entry<String, PhaseHistogram> entry : histograms.entrySet()) {
+            entry.getValue().toText(builder, "drain_phase_seconds", label("phase", entry.getKey()));
+        }
+        return builder.toString();
+    }
+
+    private static void line(StringBuilder builder, String key, Object value) {
+        builder.append(key).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * A label of the text format, with backslash, double quote and line feed escaped in the value.
+     */
+    private static String label(String name, String value) {
+        StringBuilder label = new StringBuilder(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                label.append('\\').append(c);
+            } else if (c == '\n') {
+                label.append("\\n");
+            } else {
+                label.append(c);
+            }
+        }
+        return label.append('"').toString();
+    }
+
+    /**
+     * @return unfinished destinations with the messages they had left, per store
+     */
+    public Map<String, Map<String, Long>> getUnfinished() {
+        Map<String, Map<String, Long>> unfinished = new LinkedHashMap<>();
+        for (Store store : getStores()) {
+            if (!store.unfinished.isEmpty()) {
+                unfinished.put(store.name, store.unfinished);
+            }
+        }
+        return unfinished;
+    }
+
+    public String toJson() {
+        long end = endTime > 0 ? endTime : System.currentTimeMillis();
+        long duration = end - startTime;
+        StringBuilder json = new StringBuilder("{");
+        field(json, "name", name).append(',');
+        field(json, "startTime", startTime).append(',');
+        field(json, "durationMillis", duration).append(',');
+        field(json, "forwardedMessages", getForwardedMessages()).append(',');
+        field(json, "forwardedBytes", getForwardedBytes()).append(',');
+        field(json, "messagesPerSecond", duration > 0 ? getForwardedMessages() * 1000d / duration : 0d).append(',');
+        field(json, "bytesPerSecond", duration > 0 ? getForwardedBytes() * 1000d / duration : 0d).append(',');
+        field(json, "remainingMessages", getRemainingMessages()).append(',');
+        field(json, "peakHeapBytes", getPeakHeapBytes()).append(',');
+        field(json, "peakRssBytes", getPeakRssBytes()).append(',');
+        field(json, "peakThreads", getPeakThreads()).append(',');
+        field(json, "timeToFirstMessageMillis", getTimeToFirstMessageMillis()).append(',');
+        field(json, "maxHeapBytes", Runtime.getRuntime().maxMemory()).append(',');
+        json.append("\"phases\":");
+        object(json, phases).append(",\"phaseHistograms\":{");
+        boolean first = true;
+        for (Map.Entry<String, PhaseHistogram> entry : histograms.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            quote(json, entry.getKey()).append(':');
+            entry.getValue().toJson(json);
+            first = false;
+        }
+        json.append("},");
+        json.append("\"stores\":[");
+        Store[] all = getStores();
+        for (int i = 0; i < all.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            all[i].toJson(json);
+        }
+        return json.append("]}").toString();
+    }
+
+    public void writeSummary(File file) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+            writer.write('\n');
+            log.info(String.format("Drain summary written to %s.", file));
+        } catch (IOException e) {
+            log.warn(String.format("Cannot write drain summary to %s: %s", file, e));
+        }
+    }
+
+    static StringBuilder field(StringBuilder json, String key, Object value) {
+        quote(json, key).append(':');
+        if (value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else if (value == null) {
+            json.append("null");
+        } else {
+            quote(json, value.toString());
+        }
+        return json;
+    }
+
+    static StringBuilder object(StringBuilder json, Map<String, Long> values) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            field(json, entry.getKey(), entry.getValue());
+            first = false;
+        }
+        return json.append('}');
+    }
+
+    static StringBuilder quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Progress of a single KahaDB instance, updated by whichever engine drains it.
+     */
+    public static class Store {
+        private final DrainMetrics owner;
+        private final String name;
+        private final AtomicLong forwarded = new AtomicLong();
+        private final AtomicLong forwardedBytes = new AtomicLong();
+        private final AtomicLong firstForwardTime = new AtomicLong();
+        private final AtomicLong spooled = new AtomicLong();
+        private final AtomicLong spooledBytes = new AtomicLong();
+        private final Map<String, Long> expired = new ConcurrentSkipListMap<>();
+        private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+        private final Map<String, Long> destinationMillis = new ConcurrentSkipListMap<>();
+        private volatile Status status = Status.PENDING;
+        private volatile long initial = -1;
+        private volatile long remaining = -1;
+        private volatile long inflight;
+        private volatile Map<String, Long> destinations = Collections.emptyMap();
+        private volatile Map<String, Long> unfinished = Collections.emptyMap();
+        private volatile Map<String, Long> stalled = Collections.emptyMap();
+        private volatile long startTime;
+        private volatile long endTime;
+
+        private Store(DrainMetrics owner, String name) {
+            this.owner = owner;
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void started() {
+            startTime = System.currentTimeMillis();
+            status = Status.DRAINING;
+        }
+
+        public void finished(boolean success) {
+            endTime = System.currentTimeMillis();
+            if (!success) {
+                status = Status.FAILED;
+            } else if (spooled.get() > 0) {
+                status = Status.SPOOLED;
+            } else {
+                status = unfinished.isEmpty() ? Status.DONE : Status.UNFINISHED;
+            }
+        }
+
+        /**
+         * Nothing to drain, found without starting the store.
+         */
+        public void skipped() {
+            setBacklog(0, 0, Collections.<String, Long>emptyMap());
+            status = Status.SKIPPED;
+        }
+
+        public void forwarded(long messages, long bytes) {
+            if (messages > 0 && firstForwardTime.get() == 0) {
+                firstForwardTime.compareAndSet(0, System.currentTimeMillis());
+            }
+            forwarded.addAndGet(messages);
+            forwardedBytes.addAndGet(bytes);
+        }
+
+        /**
+         * Messages moved to a local spool instead of the mesh.
+         */
+        public void spooled(long messages, long bytes) {
+            spooled.addAndGet(messages);
+            spooledBytes.addAndGet(bytes);
+        }
+
+        /**
+         * Destinations the drain stopped on before they reached the mesh, with the messages they had left.
+         */
+        public void unfinished(Map<String, Long> destinations) {
+            Map<String, Long> left = new TreeMap<>();
+            for (Map.Entry<String, Long> entry : destinations.entrySet()) {
+                if (entry.getValue() != 0) {
+                    left.put(entry.getKey(), entry.getValue());
+                }
+            }
+            unfinished = Collections.unmodifiableMap(left);
+        }
+
+        /**
+         * Time spent in a phase of draining this store, also added to the histogram of the phase.
+         */
+        public void phase(String phase, long millis) {
+            synchronized (phases) {
+                Long previous = phases.get(phase);
+                phases.put(phase, previous == null ? millis : previous + millis);
+            }
+            owner.histogram(phase).record(millis);
+        }
+
+        /**
+         * Splits the time from starting to forward until the end into connecting, up to the first
+         * message forwarded, and transfer. Without any message forwarded it all counts as connecting.
+         */
+        public void transferred(long forwardStart, long end) {
+            long first = firstForwardTime.get();
+            if (first > 0 && first >= forwardStart) {
+                phase(PHASE_BRIDGE, first - forwardStart);
+                phase(PHASE_TRANSFER, Math.max(0, end - first));
+            } else {
+                phase(PHASE_BRIDGE, end - forwardStart);
+            }
+        }
+
+        /**
+         * A destination became empty, millis after the transfer started.
+         */
+        public void destinationDrained(String destination, long millis) {
+            if (!destinationMillis.containsKey(destination)) {
+                destinationMillis.put(destination, millis);
+                owner.histogram(DESTINATION_TRANSFER).record(millis);
+            }
+        }
+
+        public Map<String, Long> getPhases() {
+            synchronized (phases) {
+                return new LinkedHashMap<>(phases);
+            }
+        }
+
+        public Map<String, Long> getDestinationMillis() {
+            return Collections.unmodifiableMap(destinationMillis);
+        }
+
+        /**
+         * @return from the start of this store to its first message forwarded, -1 until then
+         */
+        public long getTimeToFirstForwardMillis() {
+            long first = firstForwardTime.get();
+            return first > 0 && startTime > 0 ? first - startTime : -1;
+        }
+
+        /**
+         * Expired messages taken out of a destination before they could be forwarded.
+         */
+        public synchronized void expired(String destination, long messages) {
+            Long previous = expired.get(destination);
+            expired.put(destination, previous == null ? messages : previous + messages);
+        }
+
+        public void setBacklog(long remaining, long inflight, Map<String, Long> destinations) {
+            if (initial < 0) {
+                initial = remaining;
+            }
+            this.remaining = remaining;
+            this.inflight = inflight;
+            this.destinations = destinations;
+        }
+
+        /**
+         * Destinations holding messages that did not move within the stall timeout, with their messages.
+         */
+        public void setStalled(Map<String, Long> destinations) {
+            stalled = Collections.unmodifiableMap(destinations);
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getForwarded() {
+            return forwarded.get();
+        }
+
+        public long getForwardedBytes() {
+            return forwardedBytes.get();
+        }
+
+        public long getSpooled() {
+            return spooled.get();
+        }
+
+        public long getSpooledBytes() {
+            return spooledBytes.get();
+        }
+
+        public long getRemaining() {
+            return remaining;
+        }
+
+        public Map<String, Long> getDestinations() {
+            return destinations;
+        }
+
+        public long getExpired() {
+            long total = 0;
+            for (Long count : expired.values()) {
+                total += count;
+            }
+            return total;
+        }
+
+        public Map<String, Long> getUnfinished() {
+            return unfinished;
+        }
+
+        public Map<String, Long> getStalled() {
+            return stalled;
+        }
+
+        public Map<String, Long> getExpiredPerDestination() {
+            return Collections.unmodifiableMap(expired);
+        }
+
+        private void toJson(StringBuilder json) {
+            json.append('{');
+            field(json, "name", name).append(',');
+            field(json, "status", status).append(',');
+            field(json, "initialMessages", initial).append(',');
+            field(json, "forwardedMessages", forwarded.get()).append(',');
+            field(json, "forwardedBytes", forwardedBytes.get()).append(',');
+            field(json, "remainingMessages", remaining).append(',');
+            field(json, "expiredMessages", getExpired()).append(',');
+            field(json, "spooledMessages", spooled.get()).append(',');
+            field(json, "spooledBytes", spooledBytes.get()).append(',');
+            field(json, "durationMillis", startTime > 0 ? (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime : 0).append(',');
+            field(json, "timeToFirstForwardMillis", getTimeToFirstForwardMillis()).append(',');
+            json.append("\"phases\":");
+            object(json, getPhases()).append(",\"destinationMillis\":");
+            object(json, destinationMillis).append(',');
+            json.append("\"destinations\":{");
+            boolean first = true;
+            for (Map.Entry<String, Long> entry : destinations.entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                field(json, entry.getKey(), entry.getValue());
+                first = false;
+            }
+            json.append("},\"expired\":{");
+            first = true;
+            for (Map.Entry<String, Long> entry : expired.entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                field(json, entry.getKey(), entry.getValue());
+                first = false;
+            }
+            json.append("},\"unfinished\":{");
+            first = true;
+            for (Map.Entry<String, Long> entry : unfinished.entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                field(json, entry.getKey(), entry.getValue());
+                first = false;
+            }
+            json.append("},\"stalled\":");
+            object(json, stalled).append('}');
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.Map;
+
+/**
+ * JMX view of a running drain.
+ */
+public interface DrainMetricsMXBean {
+    long getForwardedMessages();
+
+    long getForwardedBytes();
+
+    double getMessagesPerSecond();
+
+    double getBytesPerSecond();
+
+    /**
+     * @return messages left in stores being drained or already scanned, -1 while unknown
+     */
+    long getRemainingMessages();
+
+    long getInflightMessages();
+
+    /**
+     * @return peak heap used since the drain started
+     */
+    long getPeakHeapBytes();
+
+    /**
+     * @return peak resident set size of the process, -1 where it cannot be read
+     */
+    long getPeakRssBytes();
+
+    int getPeakThreads();
+
+    /**
+     * @return milliseconds until the first message was forwarded, -1 until then
+     */
+    long getTimeToFirstMessageMillis();
+
+    /**
+     * @return seconds to completion at the current rate, -1 while unknown
+     */
+    long getEstimatedSecondsRemaining();
+
+    /**
+     * @return per KahaDB instance status, e.g. "DRAINING 120/400"
+     */
+    Map<String, String> getStoreProgress();
+
+    /**
+     * @return remaining messages per destination, keyed by "store/destination"
+     */
+    Map<String, Long> getRemainingPerDestination();
+
+    String getSummary();
+}
@@ -0,0 +1,98 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plain HTTP endpoint for {@link DrainMetrics}: "/" serves text, "/json" the JSON summary. Only reachable
+ * from the pod itself unless bound to another address.
+ */
+public class DrainMetricsServer {
+    private static final Logger log = LoggerFactory.getLogger(DrainMetricsServer.class);
+
+    private final DrainMetrics metrics;
+    private final InetAddress address;
+    private final int port;
+    private HttpServer server;
+
+    public DrainMetricsServer(DrainMetrics metrics, int port) {
+        this(metrics, null, port);
+    }
+
+    /**
+     * @param address to bind to, null for the loopback address
+     */
+    public DrainMetricsServer(DrainMetrics metrics, InetAddress address, int port) {
+        this.metrics = metrics;
+        this.address = address != null ? address : InetAddress.getLoopbackAddress();
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().startsWith("/json")) {
+                    respond(exchange, "application/json", metrics.toJson());
+                } else {
+                    respond(exchange, "text/plain", metrics.toText());
+                }
+            }
+        });
+        // a single thread is plenty, this is polled by hand or by a scraper
+        server.setExecutor(null);
+        server.start();
+        log.info(String.format("Drain metrics available on http://%s:%s/", address.getHostAddress(), server.getAddress().getPort()));
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
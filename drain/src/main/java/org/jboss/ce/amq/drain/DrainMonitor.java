@@ -0,0 +1,290 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.activemq.broker.BrokerPluginSupport;
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.ConsumerBrokerExchange;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.broker.region.MessageReference;
+import org.apache.activemq.broker.region.RegionBroker;
+import org.apache.activemq.broker.region.Subscription;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageDispatch;
+import org.apache.activemq.network.NetworkBridge;
+import org.apache.activemq.network.NetworkConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wakes up the drain loop on every ack, expiry or discard, so completion is noticed as soon
+ * as the last message is gone, and flags destinations whose backlog stopped moving.
+ */
+public class DrainMonitor extends BrokerPluginSupport {
+    private static final Logger log = LoggerFactory.getLogger(DrainMonitor.class);
+
+    // safety net for removals we are not notified about
+    private static final long MAX_WAIT_MILLIS = 1000;
+
+    private final String name;
+    private final DrainMetrics.Store metrics;
+    private final long reportIntervalMillis;
+    private final long stallTimeoutMillis;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+    private boolean signalled;
+
+    private final Map<ActiveMQDestination, Backlog> backlogs = new HashMap<>();
+    // destinations seen with messages, timed until they are empty
+    private final Set<ActiveMQDestination> pending = new HashSet<>();
+    private long transferStart;
+
+    private List<NetworkConnector> bridges = Collections.emptyList();
+    // bridge counters restart from zero on reconnect, keep the highest seen
+    private final Map<NetworkConnector, Long> bridgeForwarded = new HashMap<>();
+
+    public DrainMonitor(DrainMetrics.Store metrics, long reportIntervalMillis, long stallTimeoutMillis) {
+        this.name = metrics.getName();
+        this.metrics = metrics;
+        this.reportIntervalMillis = reportIntervalMillis;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /**
+     * Blocks until the given destinations, or all with null, hold no messages or the deadline has passed.
+     *
+     * @return false if messages were left at the deadline
+     */
+    public boolean awaitDrained(Collection<ActiveMQDestination> destinations, long deadline) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long lastReport = 0;
+        long msgs;
+        while ((msgs = getRemainingMessages(destinations)) > 0) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                updateBacklog(now);
+                log.warn(String.format("Deadline reached with %s msgs left in %s.", msgs, name));
+                return false;
+            }
+            if (now - lastReport >= reportIntervalMillis) {
+                log.info(String.format("Still %s msgs left to migrate from %s ...", msgs, name));
+                reportBridges(now - start);
+                lastReport = now;
+            }
+            updateBacklog(now);
+
+            lock.lock();
+            try {
+                if (!signalled) {
+                    progress.await(Math.min(MAX_WAIT_MILLIS, deadline - now), TimeUnit.MILLISECONDS);
+                }
+                signalled = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+        updateBacklog(System.currentTimeMillis());
+        reportBridges(System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * Starts the clock of every destination holding messages, call it just before bridging.
+     */
+    public synchronized void transferStarted() {
+        transferStart = System.currentTimeMillis();
+        for (Map.Entry<ActiveMQDestination, Destination> entry : getRegionBroker().getQueueRegion().getDestinationMap().entrySet()) {
+            if (entry.getValue().getDestinationStatistics().getMessages().getCount() > 0) {
+                pending.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Partitioned bridges, their throughput is reported along with the progress.
+     */
+    public void setBridges(List<NetworkConnector> bridges) {
+        this.bridges = bridges;
+    }
+
+    private void reportBridges(long elapsedMillis) {
+        for (NetworkConnector connector : bridges) {
+            long forwarded = 0;
+            for (NetworkBridge bridge : connector.activeBridges()) {
+                forwarded += bridge.getDequeueCounter();
+            }
+            Long previous = bridgeForwarded.get(connector);
+            if (previous != null && previous > forwarded) {
+                forwarded = previous;
+            }
+            bridgeForwarded.put(connector, forwarded);
+            log.info(String.format("Bridge %s of %s forwarded %s msgs, %.1f msgs/s.", connector.getName(), name, forwarded,
+                elapsedMillis > 0 ? forwarded * 1000d / elapsedMillis : 0d));
+        }
+    }
+
+    public long getRemainingMessages() {
+        return getRegionBroker().getDestinationStatistics().getMessages().getCount();
+    }
+
+    private long getRemainingMessages(Collection<ActiveMQDestination> destinations) {
+        if (destinations == null) {
+            return getRemainingMessages();
+        }
+        long remaining = 0;
+        Map<ActiveMQDestination, Destination> all = getRegionBroker().getQueueRegion().getDestinationMap();
+        for (ActiveMQDestination destination : destinations) {
+            Destination queue = all.get(destination);
+            if (queue != null) {
+                remaining += queue.getDestinationStatistics().getMessages().getCount();
+            }
+        }
+        return remaining;
+    }
+
+    private synchronized void updateBacklog(long now) {
+        Map<String, Long> destinations = new TreeMap<>();
+        Map<String, Long> stalled = new TreeMap<>();
+        long inflight = 0;
+        for (Map.Entry<ActiveMQDestination, Destination> entry : getRegionBroker().getQueueRegion().getDestinationMap().entrySet()) {
+            long count = entry.getValue().getDestinationStatistics().getMessages().getCount();
+            inflight += entry.getValue().getDestinationStatistics().getInflight().getCount();
+            destinations.put(entry.getKey().getPhysicalName(), count);
+            if (count > 0) {
+                pending.add(entry.getKey());
+            } else if (pending.remove(entry.getKey()) && transferStart > 0) {
+                metrics.destinationDrained(entry.getKey().getPhysicalName(), now - transferStart);
+            }
+            if (stallTimeoutMillis <= 0) {
+                continue;
+            }
+            Backlog backlog = backlogs.get(entry.getKey());
+            if (backlog == null) {
+                backlogs.put(entry.getKey(), new Backlog(count, now));
+            } else if (backlog.count != count) {
+                backlog.count = count;
+                backlog.lastChange = now;
+                backlog.reported = false;
+            } else if (!backlog.reported && backlog.isStalled(now, stallTimeoutMillis)) {
+                log.warn(String.format("Destination %s in %s has not moved for %s s, %s msgs left.",
+                    entry.getKey().getPhysicalName(), name, TimeUnit.MILLISECONDS.toSeconds(now - backlog.lastChange), count));
+                backlog.reported = true;
+            }
+            if (backlog != null && backlog.reported) {
+                stalled.put(entry.getKey().getPhysicalName(), count);
+            }
+        }
+        metrics.setBacklog(getRemainingMessages(), inflight, destinations);
+        metrics.setStalled(stalled);
+    }
+
+    private RegionBroker getRegionBroker() {
+        return (RegionBroker) getAdaptor(RegionBroker.class);
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            signalled = true;
+            progress.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Typed as {@link org.apache.activemq.broker.region.Region} declares it, the filter it inherits returns a raw set.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<Destination> getDestinations(ActiveMQDestination destination) {
+        return super.getDestinations(destination);
+    }
+
+    @Override
+    public void acknowledge(ConsumerBrokerExchange consumerExchange, MessageAck ack) throws Exception {
+        super.acknowledge(consumerExchange, ack);
+        if (ack.isStandardAck() || ack.isIndividualAck()) {
+            metrics.forwarded(ack.getMessageCount(), 0);
+        }
+        signal();
+    }
+
+    @Override
+    public void postProcessDispatch(MessageDispatch messageDispatch) {
+        super.postProcessDispatch(messageDispatch);
+        if (messageDispatch.getMessage() != null) {
+            metrics.forwarded(0, messageDispatch.getMessage().getSize());
+        }
+    }
+
+    @Override
+    public void messageExpired(ConnectionContext context, MessageReference message, Subscription subscription) {
+        super.messageExpired(context, message, subscription);
+        signal();
+    }
+
+    @Override
+    public void messageDiscarded(ConnectionContext context, Subscription sub, MessageReference messageReference) {
+        super.messageDiscarded(context, sub, messageReference);
+        signal();
+    }
+
+    @Override
+    public boolean sendToDeadLetterQueue(ConnectionContext context, MessageReference messageReference, Subscription subscription, Throwable poisonCause) {
+        boolean answer = super.sendToDeadLetterQueue(context, messageReference, subscription, poisonCause);
+        signal();
+        return answer;
+    }
+
+    private static class Backlog {
+        private long count;
+        private long lastChange;
+        private boolean reported;
+
+        private Backlog(long count, long lastChange) {
+            this.count = count;
+            this.lastChange = lastChange;
+        }
+
+        private boolean isStalled(long now, long stallTimeoutMillis) {
+            return count > 0 && stallTimeoutMillis > 0 && now - lastChange >= stallTimeoutMillis;
+        }
+    }
+}
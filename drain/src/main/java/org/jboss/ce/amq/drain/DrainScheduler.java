@@ -0,0 +1,247 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.jms.Message;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.filter.DestinationFilter;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.store.kahadb.disk.journal.Location;
+
+/**
+ * Decides what is drained first and when to stop draining, for pods with a termination deadline.
+ *
+ * Stores and destinations are ranked critical first, then by their highest JMS priority, then by the
+ * smallest backlog, so as many destinations as possible are complete when time runs out. The cut-off
+ * is a reserve before the deadline, from then on whatever is left goes the fastest way, to the spool.
+ *
+ * The ranking orders the stores for both engines. Within a store the journal engine forwards the queues
+ * in the same order. The broker engine bridges the critical queues first and all others together, those
+ * are not ranked: each of them dispatches its highest priority first, but they empty in whatever order
+ * the bridge drains them.
+ */
+public class DrainScheduler {
+    private final List<DestinationFilter> critical = new ArrayList<>();
+    private final long deadline;
+    private final long cutOff;
+
+    /**
+     * @param criticalDestinations comma separated queue names or wildcards, may be null
+     * @param deadline absolute time in millis, 0 for none
+     * @param reserveMillis time before the deadline kept for the fastest strategy
+     */
+    public DrainScheduler(String criticalDestinations, long deadline, long reserveMillis) {
+        if (criticalDestinations != null) {
+            for (String name : criticalDestinations.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    critical.add(DestinationFilter.parseFilter(new ActiveMQQueue(name.trim())));
+                }
+            }
+        }
+        this.deadline = deadline;
+        this.cutOff = deadline > 0 ? deadline - reserveMillis : Long.MAX_VALUE;
+    }
+
+    public boolean isCritical(String queue) {
+        ActiveMQQueue destination = new ActiveMQQueue(queue);
+        for (DestinationFilter filter : critical) {
+            if (filter.matches(destination)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasCritical() {
+        return !critical.isEmpty();
+    }
+
+    /**
+     * @return false when nothing is configured, stores and destinations are then drained in listing order
+     */
+    public boolean isActive() {
+        return hasDeadline() || hasCritical();
+    }
+
+    public boolean hasDeadline() {
+        return deadline > 0;
+    }
+
+    /**
+     * @return when forwarding stops, Long.MAX_VALUE without a deadline
+     */
+    public long getCutOffTime() {
+        return cutOff;
+    }
+
+    public boolean isCutOff() {
+        return System.currentTimeMillis() >= cutOff;
+    }
+
+    /**
+     * Finds what a store holds without starting it, from its index where that can be trusted, see
+     * {@link KahaDBIndex}, or else by replaying its journal. Priorities are only looked up when this scheduler
+     * orders by them.
+     */
+    public Backlog scan(File kahaDbDir) throws Exception {
+        if (!KahaDBJournal.hasJournalFiles(kahaDbDir)) {
+            return new Backlog(kahaDbDir.getName(), 0, Message.DEFAULT_PRIORITY, false, false);
+        }
+        Map<String, KahaDBIndex.Queue> queues = KahaDBIndex.readQueues(kahaDbDir, isActive());
+        if (queues != null) {
+            long messages = 0;
+            int maxPriority = Message.DEFAULT_PRIORITY;
+            boolean anyCritical = false;
+            for (Map.Entry<String, KahaDBIndex.Queue> entry : queues.entrySet()) {
+                messages += entry.getValue().getMessages();
+                maxPriority = Math.max(maxPriority, entry.getValue().getMaxPriority());
+                anyCritical |= isCritical(entry.getKey());
+            }
+            // the index is only trusted without transactions in progress
+            return new Backlog(kahaDbDir.getName(), messages, maxPriority, anyCritical, false);
+        }
+        KahaDBJournal journal = new KahaDBJournal(kahaDbDir, OpenWireFormat.DEFAULT_STORE_VERSION);
+        journal.open();
+        try {
+            Map<ActiveMQQueue, LinkedHashMap<String, Location>> live = journal.recoverLiveMessages();
+            long messages = 0;
+            int maxPriority = Message.DEFAULT_PRIORITY;
+            boolean anyCritical = false;
+            for (Map.Entry<ActiveMQQueue, LinkedHashMap<String, Location>> entry : live.entrySet()) {
+                messages += entry.getValue().size();
+                maxPriority = Math.max(maxPriority, getMaxPriority(entry.getValue(), journal));
+                anyCritical |= isCritical(entry.getKey().getPhysicalName());
+            }
+            return new Backlog(kahaDbDir.getName(), messages, maxPriority, anyCritical, journal.getPreparedTransactions() > 0);
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Queues of a replayed journal in drain order.
+     */
+    public List<ActiveMQQueue> order(Map<ActiveMQQueue, LinkedHashMap<String, Location>> live, KahaDBJournal journal) {
+        final List<Backlog> backlogs = new ArrayList<>();
+        final Map<String, ActiveMQQueue> queues = new LinkedHashMap<>();
+        for (Map.Entry<ActiveMQQueue, LinkedHashMap<String, Location>> entry : live.entrySet()) {
+            String name = entry.getKey().getPhysicalName();
+            backlogs.add(new Backlog(name, entry.getValue().size(), getMaxPriority(entry.getValue(), journal), isCritical(name), false));
+            queues.put(name, entry.getKey());
+        }
+        Collections.sort(backlogs, ORDER);
+        final List<ActiveMQQueue> ordered = new ArrayList<>();
+        for (Backlog backlog : backlogs) {
+            ordered.add(queues.get(backlog.name));
+        }
+        return ordered;
+    }
+
+    /**
+     * Messages of one queue, highest JMS priority first, journal order within a priority.
+     */
+    public List<Map.Entry<String, Location>> order(LinkedHashMap<String, Location> messages, final KahaDBJournal journal) {
+        List<Map.Entry<String, Location>> ordered = new ArrayList<>(messages.entrySet());
+        // stable, keeps the journal order of equal priorities
+        Collections.sort(ordered, new Comparator<Map.Entry<String, Location>>() {
+            public int compare(Map.Entry<String, Location> a, Map.Entry<String, Location> b) {
+                return Integer.compare(journal.getPriority(b.getKey()), journal.getPriority(a.getKey()));
+            }
+        });
+        return ordered;
+    }
+
+    private static int getMaxPriority(LinkedHashMap<String, Location> messages, KahaDBJournal journal) {
+        int max = Message.DEFAULT_PRIORITY;
+        for (String id : messages.keySet()) {
+            max = Math.max(max, journal.getPriority(id));
+        }
+        return max;
+    }
+
+    /**
+     * Critical first, then highest priority, then smallest backlog.
+     */
+    public static final Comparator<Backlog> ORDER = new Comparator<Backlog>() {
+        public int compare(Backlog a, Backlog b) {
+            if (a.critical != b.critical) {
+                return a.critical ? -1 : 1;
+            }
+            if (a.maxPriority != b.maxPriority) {
+                return Integer.compare(b.maxPriority, a.maxPriority);
+            }
+            if (a.messages != b.messages) {
+                return Long.compare(a.messages, b.messages);
+            }
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    /**
+     * What a store or destination holds, as far as ordering goes.
+     */
+    public static class Backlog {
+        private final String name;
+        private final long messages;
+        private final int maxPriority;
+        private final boolean critical;
+        private final boolean preparedTransactions;
+
+        public Backlog(String name, long messages, int maxPriority, boolean critical, boolean preparedTransactions) {
+            this.name = name;
+            this.messages = messages;
+            this.maxPriority = maxPriority;
+            this.critical = critical;
+            this.preparedTransactions = preparedTransactions;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return true if a broker would find queue messages or prepared transactions in it
+         */
+        public boolean isPending() {
+            return messages > 0 || preparedTransactions;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s msgs, priority %s%s)", name, messages, maxPriority, critical ? ", critical" : "");
+        }
+    }
+}
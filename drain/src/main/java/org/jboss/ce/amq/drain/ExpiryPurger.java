@@ -0,0 +1,198 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.region.RegionBroker;
+import org.apache.activemq.broker.region.policy.SharedDeadLetterStrategy;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.LocalTransactionId;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.store.MessageRecoveryListener;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.store.PersistenceAdapter;
+import org.apache.activemq.store.TransactionStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Takes expired messages out of every queue of a store before a broker loads it. A broker would
+ * page them in and expire them one by one ahead of the bridge. They are dropped, or moved to the
+ * shared DLQ with the same changes the broker makes when it expires them. Each page is one store
+ * transaction: its DLQ copies and removals go to the journal unsynced and are synced once, together,
+ * at commit.
+ */
+public class ExpiryPurger {
+    private static final Logger log = LoggerFactory.getLogger(ExpiryPurger.class);
+
+    // messages loaded from the store at once
+    private static final int PAGE_SIZE = 1000;
+
+    private final PersistenceAdapter adapter;
+    private final boolean processExpired;
+
+    /**
+     * @param adapter started, and whose destinations no broker has loaded yet
+     */
+    public ExpiryPurger(PersistenceAdapter adapter, boolean processExpired) {
+        this.adapter = adapter;
+        this.processExpired = processExpired;
+    }
+
+    /**
+     * @return expired messages removed per queue, only queues which had any
+     */
+    public Map<String, Long> purge() throws Exception {
+        final long start = System.currentTimeMillis();
+        final ConnectionContext context = new ConnectionContext();
+        final ActiveMQQueue dlq = (ActiveMQQueue) new SharedDeadLetterStrategy().getDeadLetterQueue();
+
+        final TransactionStore transactions = adapter.createTransactionStore();
+        final ConnectionId connectionId = new ConnectionId("drainer-expiry");
+
+        Map<String, Long> purged = new TreeMap<>();
+        long total = 0;
+        long transactionCount = 0;
+        MessageStore dlqStore = null;
+        for (ActiveMQDestination destination : adapter.getDestinations()) {
+            // copies in the DLQ never expire, older ones are left as they are
+            if (!destination.isQueue() || destination.equals(dlq)) {
+                continue;
+            }
+            // already joins the adapter's transactions
+            MessageStore store = adapter.createQueueMessageStore((ActiveMQQueue) destination);
+            // from the index, nothing to load
+            if (store.isEmpty()) {
+                continue;
+            }
+            store.resetBatching();
+            long count = 0;
+            long references = 0;
+            Page page;
+            do {
+                page = new Page();
+                store.recoverNextMessages(PAGE_SIZE, page);
+                if (!page.expired.isEmpty()) {
+                    if (processExpired && dlqStore == null) {
+                        dlqStore = adapter.createQueueMessageStore(dlq);
+                    }
+                    LocalTransactionId transactionId = new LocalTransactionId(connectionId, ++transactionCount);
+                    try {
+                        for (Message message : page.expired) {
+                            if (processExpired) {
+                                Message deadLetter = toDeadLetter(message);
+                                deadLetter.getMessageId().setDataLocator(null);
+                                deadLetter.setTransactionId(transactionId);
+                                dlqStore.addMessage(context, deadLetter);
+                            }
+                            MessageAck ack = new MessageAck(message, MessageAck.STANDARD_ACK_TYPE, 1);
+                            ack.setTransactionId(transactionId);
+                            store.removeMessage(context, ack);
+                        }
+                        transactions.commit(transactionId, false, null, null);
+                    } catch (Exception e) {
+                        transactions.rollback(transactionId);
+                        throw e;
+                    }
+                }
+                count += page.expired.size();
+                references += page.references;
+            } while (page.visited == PAGE_SIZE);
+
+            if (references > 0) {
+                log.warn(String.format("Left %s message references in %s as they are, only whole messages tell their expiration.",
+                    references, destination.getPhysicalName()));
+            }
+            if (count > 0) {
+                purged.put(destination.getPhysicalName(), count);
+                total += count;
+                log.info(String.format("%s expired msgs %s from %s.", count, processExpired ? "moved to the DLQ" : "dropped", destination.getPhysicalName()));
+            }
+        }
+        log.info(String.format("Expiry pass removed %s msgs from %s queues in %s ms.", total, purged.size(), System.currentTimeMillis() - start));
+        return purged;
+    }
+
+    /**
+     * Same changes the broker applies to an expired message it routes to the shared DLQ.
+     */
+    static Message toDeadLetter(Message message) throws IOException {
+        Message copy = message.copy();
+        if (copy.getProperty(RegionBroker.ORIGINAL_EXPIRATION) == null) {
+            copy.setProperty(RegionBroker.ORIGINAL_EXPIRATION, copy.getExpiration());
+        }
+        copy.setExpiration(0);
+        if (!copy.isPersistent()) {
+            copy.setPersistent(true);
+            copy.setProperty("originalDeliveryMode", "NON_PERSISTENT");
+        }
+        copy.setProperty("dlqDeliveryFailureCause", new Throwable("Message Expired. Expiration:" + message.getExpiration()).toString());
+        copy.setOriginalDestination(copy.getDestination());
+        copy.setDestination(new SharedDeadLetterStrategy().getDeadLetterQueueFor(copy, null));
+        copy.setRedeliveryCounter(0);
+        return copy;
+    }
+
+    private static class Page implements MessageRecoveryListener {
+        private final List<Message> expired = new ArrayList<>();
+        private int visited;
+        private int references;
+
+        public boolean recoverMessage(Message message) {
+            visited++;
+            if (message.isExpired()) {
+                expired.add(message);
+            }
+            return true;
+        }
+
+        /**
+         * Skipped, the broker expires these itself once it loads them.
+         */
+        public boolean recoverMessageReference(MessageId messageId) {
+            visited++;
+            references++;
+            log.debug(String.format("Skipping message reference %s, its expiration is not in the store.", messageId));
+            return true;
+        }
+
+        public boolean hasSpace() {
+            return visited < PAGE_SIZE;
+        }
+
+        public boolean isDuplicate(MessageId messageId) {
+            return false;
+        }
+    }
+}
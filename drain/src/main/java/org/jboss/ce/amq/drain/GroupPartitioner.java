@@ -0,0 +1,82 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.IOException;
+
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.Message;
+
+/**
+ * Splits the messages of a queue into ordered lanes, by message group or another message property.
+ * All messages with the same key share a lane, so forwarding each lane in order keeps the order
+ * within every group. Messages without a key keep the order of their queue, they share the lane
+ * of the queue name.
+ */
+public class GroupPartitioner {
+    public static final String GROUP_ID = "JMSXGroupID";
+
+    private final int lanes;
+    private final String key;
+
+    /**
+     * @param key {@link #GROUP_ID} or the name of another message property
+     */
+    public GroupPartitioner(int lanes, String key) {
+        this.lanes = Math.max(1, lanes);
+        this.key = key;
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    public int lane(ActiveMQDestination queue, Message message) {
+        Object value = getKey(message);
+        return spread(value != null ? value.hashCode() : queue.getPhysicalName().hashCode()) % lanes;
+    }
+
+    /**
+     * @return the partition key of a message, null if it has none
+     */
+    Object getKey(Message message) {
+        if (GROUP_ID.equals(key)) {
+            return message.getGroupID();
+        }
+        try {
+            return message.getProperty(key);
+        } catch (IOException e) {
+            // properties that cannot be read are no key, the message keeps the queue order
+            return null;
+        }
+    }
+
+    // group ids tend to differ in their last characters only
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash & Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.store.kahadb.disk.journal.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drains a KahaDB instance straight from its journal, no broker, no index recovery.
+ *
+ * Live messages are read in batches and handed to one forwarder per mesh peer, each batch is one
+ * transaction on the peer and is followed by the matching remove records in the local journal.
+ * Peers pull the next batch as soon as their last commit returns, so faster peers get more of them.
+ *
+ * With a {@link GroupPartitioner} every queue is split into ordered lanes instead, forwarded concurrently
+ * by a forwarder per lane. A lane is forwarded one batch after the other and stays with the peer that
+ * took it first, so messages of a group reach a single peer in their original order.
+ */
+public class JournalDrainer {
+    private static final Logger log = LoggerFactory.getLogger(JournalDrainer.class);
+
+    // batches read ahead of the forwarders, per peer
+    private static final int READ_AHEAD = 2;
+    private static final long POLL_MILLIS = 100;
+    private static final long PEER_DISCOVERY_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final String brokerUrl;
+    private final String username;
+    private final String password;
+    private final int batchSize;
+    private final int openWireVersion;
+    private final boolean processExpired;
+
+    private String fanOutDiscoveryURL;
+    private DrainScheduler scheduler;
+    private PeerRateLimiter limiter;
+    private BodyCompressor compressor;
+    private GroupPartitioner partitioner;
+    private DrainCheckpoint checkpoint;
+
+    public JournalDrainer(String brokerUrl, String username, String password, int batchSize, int openWireVersion, boolean processExpired) {
+        this.brokerUrl = brokerUrl;
+        this.username = username;
+        this.password = password;
+        this.batchSize = batchSize;
+        this.openWireVersion = openWireVersion;
+        this.processExpired = processExpired;
+    }
+
+    /**
+     * Forward to every peer found through this discovery URL at once, instead of the single broker url.
+     */
+    public void setFanOutDiscoveryURL(String fanOutDiscoveryURL) {
+        this.fanOutDiscoveryURL = fanOutDiscoveryURL;
+    }
+
+    /**
+     * Drain queues and messages in the order of the scheduler and stop reading at its cut-off.
+     */
+    public void setScheduler(DrainScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Hold the forwarding to each peer to the rate of its bucket.
+     */
+    public void setRateLimiter(PeerRateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Compress the bodies sent to the peers, over connections with the wire options of {@link DrainConnector}.
+     */
+    public void setCompressor(BodyCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Split queues into ordered lanes by message group, forwarded concurrently.
+     */
+    public void setGroupPartitioner(GroupPartitioner partitioner) {
+        this.partitioner = partitioner;
+    }
+
+    /**
+     * Record every committed batch, and remove messages an earlier run committed instead of forwarding them again.
+     */
+    public void setCheckpoint(DrainCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @return number of messages forwarded
+     */
+    public long drain(File kahaDbDir, DrainMetrics.Store metrics) throws Exception {
+        if (!KahaDBJournal.hasJournalFiles(kahaDbDir)) {
+            log.info(String.format("No journal files in %s, nothing to drain.", kahaDbDir));
+            return 0;
+        }
+
+        final long replayStart = System.currentTimeMillis();
+        final KahaDBJournal journal = new KahaDBJournal(kahaDbDir, openWireVersion);
+        journal.open();
+        try {
+            final Map<ActiveMQQueue, LinkedHashMap<String, Location>> live = journal.recoverLiveMessages();
+            metrics.phase(DrainMetrics.PHASE_REPLAY, System.currentTimeMillis() - replayStart);
+            long total = 0;
+            final Map<String, Long> backlog = new TreeMap<>();
+            for (Map.Entry<ActiveMQQueue, LinkedHashMap<String, Location>> entry : live.entrySet()) {
+                total += entry.getValue().size();
+                backlog.put(entry.getKey().getPhysicalName(), (long) entry.getValue().size());
+            }
+            log.info(String.format("Found %s live msgs in %s queues of %s.", total, live.size(), kahaDbDir));
+            metrics.setBacklog(total, 0, new TreeMap<>(backlog));
+            if (total == 0) {
+                return 0;
+            }
+
+            final Pipeline pipeline = new Pipeline(journal, metrics, backlog, total, partitioner != null ? partitioner.getLanes() : 0);
+            MeshPeers peers = null;
+            try {
+                if (fanOutDiscoveryURL == null) {
+                    pipeline.peerAdded(brokerUrl);
+                } else {
+                    peers = new MeshPeers(fanOutDiscoveryURL);
+                    peers.start();
+                    if (!peers.awaitPeer(PEER_DISCOVERY_TIMEOUT)) {
+                        throw new IOException("No mesh peer found through " + fanOutDiscoveryURL);
+                    }
+                    peers.setListener(pipeline);
+                }
+
+                long expired = 0;
+                long duplicates = 0;
+                final List<ActiveMQQueue> queues = scheduler != null ? scheduler.order(live, journal) : new ArrayList<>(live.keySet());
+                for (ActiveMQQueue queue : queues) {
+                    if (scheduler != null && scheduler.isCutOff()) {
+                        log.warn(String.format("Cut-off reached, stopped reading %s.", kahaDbDir.getName()));
+                        break;
+                    }
+                    final LinkedHashMap<String, Location> messages = live.get(queue);
+                    final Batch[] batches = new Batch[pipeline.lanes.length];
+                    long queueExpired = 0;
+                    for (Map.Entry<String, Location> message : scheduler != null ? scheduler.order(messages, journal) : messages.entrySet()) {
+                        Message msg = null;
+                        if (checkpoint != null && checkpoint.isForwarded(metrics.getName(), queue.getPhysicalName(), message.getKey())) {
+                            // committed by a run killed before it removed the message
+                            duplicates++;
+                        } else {
+                            msg = journal.loadMessage(message.getValue());
+                            if (msg.isExpired()) {
+                                msg = processExpired ? ExpiryPurger.toDeadLetter(msg) : null;
+                                queueExpired++;
+                            }
+                        }
+                        int lane = partitioner != null && msg != null ? partitioner.lane(queue, msg) : 0;
+                        if (batches[lane] == null) {
+                            batches[lane] = new Batch(queue, lane);
+                        }
+                        batches[lane].add(message.getKey(), msg);
+                        if (batches[lane].size() >= batchSize) {
+                            pipeline.put(batches[lane]);
+                            batches[lane] = null;
+                            if (scheduler != null && scheduler.isCutOff()) {
+                                break;
+                            }
+                        }
+                    }
+                    for (Batch batch : batches) {
+                        if (batch != null) {
+                            pipeline.put(batch);
+                        }
+                    }
+                    if (queueExpired > 0) {
+                        metrics.expired(queue.getPhysicalName(), queueExpired);
+                        expired += queueExpired;
+                    }
+                    log.info(String.format("Read %s msgs of queue %s from %s.", messages.size(), queue.getPhysicalName(), kahaDbDir.getName()));
+                }
+                pipeline.finish();
+                metrics.transferred(pipeline.start, System.currentTimeMillis());
+                if (expired > 0) {
+                    log.info(String.format("%s expired msgs %s.", expired, processExpired ? "sent to the DLQ" : "dropped"));
+                }
+                if (duplicates > 0) {
+                    log.info(String.format("Removed %s msgs an earlier run had forwarded already.", duplicates));
+                }
+                return pipeline.getForwarded();
+            } finally {
+                pipeline.close();
+                if (peers != null) {
+                    peers.stop();
+                }
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static class Batch {
+        private final ActiveMQQueue queue;
+        private final int lane;
+        private final List<String> ids = new ArrayList<>();
+        private final List<Message> messages = new ArrayList<>();
+        private long bytes;
+
+        private Batch(ActiveMQQueue queue, int lane) {
+            this.queue = queue;
+            this.lane = lane;
+        }
+
+        /**
+         * @param message null to only remove it
+         */
+        private void add(String id, Message message) {
+            ids.add(id);
+            if (message != null) {
+                messages.add(message);
+                bytes += message.getSize();
+            }
+        }
+
+        private int size() {
+            return ids.size();
+        }
+    }
+
+    /**
+     * Batches of one lane, in the order they are to be forwarded.
+     */
+    private static class Lane {
+        private final boolean ordered;
+        private final Deque<Batch> batches = new ArrayDeque<>();
+        private String owner;
+        private int inFlight;
+
+        private Lane(boolean ordered) {
+            this.ordered = ordered;
+        }
+
+        /**
+         * An ordered lane hands out its next batch once the one before is committed, and only to its
+         * owner while that is alive.
+         */
+        private boolean isFree(String peer, Set<String> peers) {
+            return !ordered || (inFlight == 0 && (owner == null || owner.equals(peer) || !peers.contains(owner)));
+        }
+    }
+
+    /**
+     * Hands batches from the journal reader to a forwarding thread per peer and lane. Without ordered lanes
+     * there is a single lane, which all peers take batches from.
+     */
+    private class Pipeline implements MeshPeers.Listener {
+        private final KahaDBJournal journal;
+        private final DrainMetrics.Store metrics;
+        private final Map<String, Long> backlog;
+        private final Lane[] lanes;
+        private final Set<String> peers = new HashSet<>();
+        // forwarding threads per peer
+        private final Map<String, Integer> workers = new HashMap<>();
+        private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("Journal forwarder"));
+
+        private final long start = System.currentTimeMillis();
+        private long remaining;
+        private long pending;
+        private long forwarded;
+        private int queued;
+        private int running;
+        private boolean done;
+        private Exception failure;
+        private Exception fatal;
+
+        /**
+         * @param orderedLanes 0 for a single lane without ordering
+         */
+        private Pipeline(KahaDBJournal journal, DrainMetrics.Store metrics, Map<String, Long> backlog, long remaining, int orderedLanes) {
+            this.journal = journal;
+            this.metrics = metrics;
+            this.backlog = backlog;
+            this.remaining = remaining;
+            this.lanes = new Lane[Math.max(1, orderedLanes)];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new Lane(orderedLanes > 0);
+            }
+        }
+
+        public void peerAdded(final String peer) {
+            synchronized (this) {
+                if (done || !peers.add(peer)) {
+                    return;
+                }
+                // threads of an earlier failure may still be winding down
+                workers.put(peer, (workers.containsKey(peer) ? workers.get(peer) : 0) + lanes.length);
+                running += lanes.length;
+            }
+            for (final Lane lane : lanes) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        forward(peer, lane);
+                    }
+                });
+            }
+        }
+
+        private synchronized void put(Batch batch) throws Exception {
+            while (fatal == null && !peers.isEmpty() && queued >= READ_AHEAD * running) {
+                wait(POLL_MILLIS);
+            }
+            checkFailure();
+            pending += batch.size();
+            lanes[batch.lane].batches.add(batch);
+            queued++;
+            notifyAll();
+        }
+
+        /**
+         * Waits for every batch to be forwarded.
+         */
+        private synchronized void finish() throws Exception {
+            done = true;
+            notifyAll();
+            while (fatal == null && running > 0) {
+                wait(POLL_MILLIS);
+            }
+            if (fatal != null || queued > 0) {
+                checkFailure();
+            }
+        }
+
+        private void checkFailure() throws Exception {
+            if (fatal != null) {
+                throw fatal;
+            } else if (peers.isEmpty()) {
+                throw failure != null ? failure : new IllegalStateException("No mesh peer left to forward to.");
+            }
+        }
+
+        private synchronized long getForwarded() {
+            return forwarded;
+        }
+
+        private void close() {
+            synchronized (this) {
+                done = true;
+            }
+            executor.shutdownNow();
+        }
+
+        /**
+         * @return the next batch of the lane to forward to the peer, null once the lane is done or the peer failed
+         */
+        private synchronized Batch take(String peer, Lane lane) throws InterruptedException {
+            while (peers.contains(peer)) {
+                if (!lane.batches.isEmpty() && lane.isFree(peer, peers)) {
+                    lane.owner = peer;
+                    lane.inFlight++;
+                    queued--;
+                    notifyAll();
+                    return lane.batches.poll();
+                }
+                if (done && lane.batches.isEmpty() && lane.inFlight == 0) {
+                    break;
+                }
+                wait(POLL_MILLIS);
+            }
+            return null;
+        }
+
+        /**
+         * @param failed batch to hand to the next taker, null if it is forwarded
+         */
+        private synchronized void release(Lane lane, Batch failed) {
+            lane.inFlight--;
+            if (failed != null) {
+                // another peer picks it up, ahead of the batches after it
+                lane.batches.addFirst(failed);
+                queued++;
+            }
+            notifyAll();
+        }
+
+        private void forward(String peer, Lane lane) {
+            long count = 0;
+            long messages = 0;
+            long commitNanos = 0;
+            MessageForwarder forwarder = null;
+            PeerRateLimiter.Bucket bucket = limiter != null ? limiter.bucket(peer) : null;
+            try {
+                Batch batch;
+                while ((batch = take(peer, lane)) != null) {
+                    boolean committed = false;
+                    try {
+                        if (forwarder == null) {
+                            // lanes of other peers need no connection
+                            forwarder = new MessageForwarder(compressor != null ? DrainConnector.withWireOptions(peer) : peer, username, password);
+                            forwarder.setCompressor(compressor);
+                            forwarder.start();
+                            log.info(String.format("Forwarding to %s.", peer));
+                        }
+                        if (bucket != null) {
+                            bucket.acquire(batch.messages.size());
+                        }
+                        long start = System.nanoTime();
+                        for (Message message : batch.messages) {
+                            forwarder.send(message);
+                        }
+                        forwarder.commit();
+                        commitNanos += System.nanoTime() - start;
+                        // on the peer now, must not be handed to another one
+                        committed = true;
+                        if (checkpoint != null) {
+                            try {
+                                checkpoint.forwarded(metrics.getName(), batch.queue.getPhysicalName(), batch.ids);
+                            } catch (IOException e) {
+                                // only a crash before the removal below would forward the batch twice
+                                log.warn(String.format("Cannot checkpoint a batch of %s: %s", batch.queue.getPhysicalName(), e));
+                            }
+                        }
+                        try {
+                            journal.removeMessages(batch.queue, batch.ids);
+                        } catch (IOException e) {
+                            synchronized (this) {
+                                fatal = e;
+                            }
+                            throw e;
+                        }
+                        completed(batch);
+                    } finally {
+                        release(lane, committed ? null : batch);
+                    }
+                    count++;
+                    messages += batch.messages.size();
+                }
+                if (count > 0 || lanes.length == 1) {
+                    log.info(String.format("Forwarded %s msgs in %s batches to %s, %s ms per batch.",
+                        messages, count, peer, count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(commitNanos / count)));
+                }
+            } catch (Exception e) {
+                log.warn(String.format("Forwarding to %s failed after %s msgs: %s", peer, messages, e));
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    // its other lanes move on to the remaining peers
+                    peers.remove(peer);
+                }
+            } finally {
+                if (forwarder != null) {
+                    try {
+                        forwarder.close();
+                    } catch (Exception ignore) {
+                    }
+                }
+                synchronized (this) {
+                    int left = workers.get(peer) - 1;
+                    workers.put(peer, left);
+                    if (left == 0) {
+                        workers.remove(peer);
+                        peers.remove(peer);
+                    }
+                    running--;
+                    notifyAll();
+                }
+            }
+        }
+
+        private synchronized void completed(Batch batch) {
+            remaining -= batch.size();
+            pending -= batch.size();
+            forwarded += batch.messages.size();
+            String queue = batch.queue.getPhysicalName();
+            backlog.put(queue, backlog.get(queue) - batch.size());
+            if (backlog.get(queue) == 0) {
+                metrics.destinationDrained(queue, System.currentTimeMillis() - start);
+            }
+            metrics.forwarded(batch.messages.size(), batch.bytes);
+            metrics.setBacklog(remaining, pending, new TreeMap<>(backlog));
+            notifyAll();
+        }
+    }
+}
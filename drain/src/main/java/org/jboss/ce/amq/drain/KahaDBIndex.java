@@ -0,0 +1,316 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.store.kahadb.data.KahaDestination;
+import org.apache.activemq.store.kahadb.disk.index.BTreeIndex;
+import org.apache.activemq.store.kahadb.disk.journal.Location;
+import org.apache.activemq.store.kahadb.disk.page.PageFile;
+import org.apache.activemq.store.kahadb.disk.page.Transaction;
+import org.apache.activemq.store.kahadb.disk.util.LocationMarshaller;
+import org.apache.activemq.store.kahadb.disk.util.LongMarshaller;
+import org.apache.activemq.store.kahadb.disk.util.StringMarshaller;
+import org.apache.activemq.store.kahadb.disk.util.VariableMarshaller;
+import org.apache.activemq.util.LockFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * What a KahaDB store holds according to its index (db.data), read without starting the store and without
+ * replaying the journal.
+ *
+ * The index is only taken at its word when the broker shut it down cleanly and nothing but checkpoint bookkeeping
+ * was appended to the journal after the last update it recorded. A crashed broker leaves its index behind the
+ * journal, and a drain from the journal appends its removals without touching the index, see
+ * {@link KahaDBJournal}. Such a store is left to a replay.
+ */
+public class KahaDBIndex {
+    private static final Logger log = LoggerFactory.getLogger(KahaDBIndex.class);
+
+    // index layouts read below, a broker converts older ones on start
+    private static final int MIN_VERSION = 5;
+    private static final int MAX_VERSION = 6;
+    private static final String QUEUE_PREFIX = KahaDestination.DestinationType.QUEUE.getNumber() + ":";
+    private static final int MAX_PRIORITY = 9;
+    // the page file keeps its own metadata as properties at the start of the file, twice within this
+    private static final int PAGE_FILE_HEADER_SIZE = 4 * 1024;
+
+    private KahaDBIndex() {
+    }
+
+    /**
+     * @return live messages per queue, null if the index cannot tell and the journal has to be replayed
+     */
+    public static Map<String, Long> countQueueMessages(File directory) throws IOException {
+        Map<String, Queue> queues = readQueues(directory, false);
+        if (queues == null) {
+            return null;
+        }
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, Queue> queue : queues.entrySet()) {
+            counts.put(queue.getKey(), queue.getValue().messages);
+        }
+        return counts;
+    }
+
+    /**
+     * @param priorities find the highest JMS priority of each queue, from the journal records of its messages
+     *                   that are not in the index of those below the default priority
+     * @return queues with live messages, null if the index cannot tell and the journal has to be replayed
+     */
+    public static Map<String, Queue> readQueues(File directory, boolean priorities) throws IOException {
+        File data = new File(directory, "db.data");
+        if (!data.isFile()) {
+            return null;
+        }
+        LockFile lockFile = new LockFile(new File(directory, "lock"), true);
+        lockFile.lock();
+        try {
+            if (!isCleanShutdown(data)) {
+                log.debug(String.format("Index of %s not shut down cleanly, replaying the journal.", directory));
+                return null;
+            }
+            PageFile pageFile = new PageFile(directory, "db");
+            // read only, there are no updates to recover
+            pageFile.setEnableRecoveryFile(false);
+            pageFile.load();
+            try {
+                return read(directory, pageFile, priorities);
+            } finally {
+                pageFile.unload();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn(String.format("Cannot read the index of %s, replaying the journal: %s", directory, e));
+            return null;
+        } finally {
+            lockFile.unlock();
+        }
+    }
+
+    private static Map<String, Queue> read(File directory, PageFile pageFile, boolean priorities) throws IOException {
+        Transaction tx = pageFile.tx();
+        Metadata metadata = tx.load(0, new MetadataMarshaller()).get();
+        if (metadata == null || metadata.version < MIN_VERSION || metadata.version > MAX_VERSION) {
+            log.debug(String.format("Index of %s of an unknown version, replaying the journal.", directory));
+            return null;
+        }
+        if (metadata.inProgressTransactions) {
+            return null;
+        }
+        KahaDBJournal journal = new KahaDBJournal(directory, OpenWireFormat.DEFAULT_STORE_VERSION);
+        // the lock is held already
+        journal.open(false);
+        try {
+            // an index that never recorded an update has the whole journal after it
+            if (journal.hasMessageRecordsAfter(metadata.lastUpdate != null ? metadata.lastUpdate : new Location())) {
+                log.debug(String.format("Journal of %s moved on since its index was written, replaying the journal.", directory));
+                return null;
+            }
+
+            BTreeIndex<String, StoredQueue> destinations = new BTreeIndex<>(pageFile, metadata.destinationsPage);
+            destinations.setKeyMarshaller(StringMarshaller.INSTANCE);
+            destinations.setValueMarshaller(new DestinationMarshaller());
+            destinations.load(tx);
+            Map<String, Queue> queues = new TreeMap<>();
+            for (Iterator<Map.Entry<String, StoredQueue>> iterator = destinations.iterator(tx); iterator.hasNext(); ) {
+                Map.Entry<String, StoredQueue> destination = iterator.next();
+                if (!destination.getKey().startsWith(QUEUE_PREFIX)) {
+                    continue;
+                }
+                BTreeIndex<String, Long> messageIds = new BTreeIndex<>(pageFile, destination.getValue().messageIdsPage);
+                messageIds.setKeyMarshaller(StringMarshaller.INSTANCE);
+                messageIds.setValueMarshaller(LongMarshaller.INSTANCE);
+                messageIds.load(tx);
+                long messages = 0;
+                for (Iterator<Map.Entry<String, Long>> ids = messageIds.iterator(tx); ids.hasNext(); ids.next()) {
+                    messages++;
+                }
+                if (messages > 0) {
+                    int maxPriority = priorities ? getMaxPriority(pageFile, tx, destination.getValue(), journal) : -1;
+                    queues.put(destination.getKey().substring(QUEUE_PREFIX.length()), new Queue(messages, maxPriority));
+                }
+            }
+            return queues;
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * A broker with prioritized messages files them in a low, default and high priority order index, without it
+     * all of them go to the default one. The records of the high and default ones are read, the highest first,
+     * until the highest priority there is turns up.
+     */
+    private static int getMaxPriority(PageFile pageFile, Transaction tx, StoredQueue queue, KahaDBJournal journal) throws IOException {
+        int max = javax.jms.Message.DEFAULT_PRIORITY;
+        for (long page : new long[]{queue.highPriorityPage, queue.defaultPriorityPage}) {
+            BTreeIndex<Long, Location> order = new BTreeIndex<>(pageFile, page);
+            order.setKeyMarshaller(LongMarshaller.INSTANCE);
+            order.setValueMarshaller(new MessageKeysMarshaller());
+            order.load(tx);
+            for (Iterator<Map.Entry<Long, Location>> messages = order.iterator(tx); messages.hasNext() && max < MAX_PRIORITY; ) {
+                max = Math.max(max, journal.loadPriority(messages.next().getValue()));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * A broker marks the page file clean only once it has written out all its pages on stop.
+     */
+    private static boolean isCleanShutdown(File data) throws IOException {
+        byte[] header = new byte[PAGE_FILE_HEADER_SIZE / 2];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(data))) {
+            in.readFully(header);
+        }
+        int length = 0;
+        while (length < header.length && header[length] != 0) {
+            length++;
+        }
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(header, 0, length));
+        return Boolean.parseBoolean(properties.getProperty("cleanShutdown"));
+    }
+
+    /**
+     * What the index holds for a queue.
+     */
+    public static class Queue {
+        private final long messages;
+        private final int maxPriority;
+
+        private Queue(long messages, int maxPriority) {
+            this.messages = messages;
+            this.maxPriority = maxPriority;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return highest JMS priority, the default priority when none is higher, -1 if not read
+         */
+        public int getMaxPriority() {
+            return maxPriority;
+        }
+    }
+
+    /**
+     * The part of MessageDatabase.Metadata a count needs.
+     */
+    private static class Metadata {
+        private long destinationsPage;
+        private Location lastUpdate;
+        private boolean inProgressTransactions;
+        private int version;
+    }
+
+    private static class MetadataMarshaller extends VariableMarshaller<Metadata> {
+        public Metadata readPayload(DataInput in) throws IOException {
+            Metadata metadata = new Metadata();
+            // state, which a broker leaves open even on a clean stop
+            in.readInt();
+            metadata.destinationsPage = in.readLong();
+            if (in.readBoolean()) {
+                metadata.lastUpdate = LocationMarshaller.INSTANCE.readPayload(in);
+            }
+            if (in.readBoolean()) {
+                metadata.inProgressTransactions = true;
+                LocationMarshaller.INSTANCE.readPayload(in);
+            }
+            if (in.readBoolean()) {
+                // producer audit
+                LocationMarshaller.INSTANCE.readPayload(in);
+            }
+            metadata.version = in.readInt();
+            return metadata;
+        }
+
+        public void writePayload(Metadata metadata, DataOutput out) {
+            throw new UnsupportedOperationException("The index is only read");
+        }
+    }
+
+    /**
+     * The pages of a MessageDatabase.StoredDestination a count needs.
+     */
+    private static class StoredQueue {
+        private long defaultPriorityPage;
+        private long messageIdsPage;
+        private long highPriorityPage;
+    }
+
+    private static class DestinationMarshaller extends VariableMarshaller<StoredQueue> {
+        public StoredQueue readPayload(DataInput in) throws IOException {
+            StoredQueue queue = new StoredQueue();
+            queue.defaultPriorityPage = in.readLong();
+            // location index
+            in.readLong();
+            queue.messageIdsPage = in.readLong();
+            if (in.readBoolean()) {
+                // subscriptions, subscription acks, ack positions, subscription locations
+                for (int i = 0; i < 4; i++) {
+                    in.readLong();
+                }
+            }
+            // low and high priority order indexes
+            in.readLong();
+            queue.highPriorityPage = in.readLong();
+            return queue;
+        }
+
+        public void writePayload(StoredQueue queue, DataOutput out) {
+            throw new UnsupportedOperationException("The index is only read");
+        }
+    }
+
+    /**
+     * Reads a MessageDatabase.MessageKeys down to the location of the message.
+     */
+    private static class MessageKeysMarshaller extends VariableMarshaller<Location> {
+        public Location readPayload(DataInput in) throws IOException {
+            // message id
+            in.readUTF();
+            return LocationMarshaller.INSTANCE.readPayload(in);
+        }
+
+        public void writePayload(Location location, DataOutput out) {
+            throw new UnsupportedOperationException("The index is only read");
+        }
+    }
+}
@@ -0,0 +1,626 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.store.kahadb.JournalCommand;
+import org.apache.activemq.store.kahadb.data.KahaAddMessageCommand;
+import org.apache.activemq.store.kahadb.data.KahaCommitCommand;
+import org.apache.activemq.store.kahadb.data.KahaDestination;
+import org.apache.activemq.store.kahadb.data.KahaEntryType;
+import org.apache.activemq.store.kahadb.data.KahaPrepareCommand;
+import org.apache.activemq.store.kahadb.data.KahaRemoveDestinationCommand;
+import org.apache.activemq.store.kahadb.data.KahaRemoveMessageCommand;
+import org.apache.activemq.store.kahadb.data.KahaRollbackCommand;
+import org.apache.activemq.store.kahadb.data.KahaTransactionInfo;
+import org.apache.activemq.store.kahadb.data.KahaUpdateMessageCommand;
+import org.apache.activemq.store.kahadb.disk.journal.Journal;
+import org.apache.activemq.store.kahadb.disk.journal.Location;
+import org.apache.activemq.util.ByteSequence;
+import org.apache.activemq.util.DataByteArrayInputStream;
+import org.apache.activemq.util.DataByteArrayOutputStream;
+import org.apache.activemq.util.LockFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Direct access to a KahaDB journal (db-*.log), without loading the index.
+ *
+ * Replaying the journal rebuilds the set of live (added, not removed, committed) queue messages
+ * the same way index recovery would. Removals are appended as regular journal records, so a broker
+ * started on the same directory later on replays them into its index.
+ */
+public class KahaDBJournal implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(KahaDBJournal.class);
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private static final FilenameFilter JOURNAL_FILES = new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+            return name.startsWith(Journal.DEFAULT_FILE_PREFIX) && name.endsWith(Journal.DEFAULT_FILE_SUFFIX);
+        }
+    };
+
+    private final File directory;
+    private final OpenWireFormat wireFormat;
+
+    private LockFile lockFile;
+    private Journal journal;
+    private int preparedTransactions;
+    // only messages with other than the default priority, most stores have none
+    private final Map<String, Integer> priorities = new HashMap<>();
+    private boolean trackExpiration;
+    // only messages with an expiration
+    private final Map<String, Long> expirations = new HashMap<>();
+
+    public KahaDBJournal(File directory, int openWireVersion) {
+        this.directory = directory;
+        this.wireFormat = new OpenWireFormat(openWireVersion);
+    }
+
+    public static boolean hasJournalFiles(File directory) {
+        String[] files = directory.list(JOURNAL_FILES);
+        return files != null && files.length > 0;
+    }
+
+    /**
+     * @return digest of the names, sizes and modification times of the journal files, it changes with
+     * every write to the store
+     */
+    public static String getJournalState(File directory) {
+        CRC32 crc = new CRC32();
+        for (File file : new KahaDBJournal(directory, OpenWireFormat.DEFAULT_STORE_VERSION).listJournalFiles().values()) {
+            crc.update((file.getName() + ':' + file.length() + ':' + file.lastModified() + ',').getBytes(StandardCharsets.UTF_8));
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    public void open() throws IOException {
+        open(true);
+    }
+
+    /**
+     * @param lock false to read a store a broker may have open, nothing must be written to it then
+     */
+    public void open(boolean lock) throws IOException {
+        if (lock) {
+            lockFile = new LockFile(new File(directory, "lock"), true);
+            lockFile.lock();
+        }
+    }
+
+    /**
+     * The journal itself, only started to load or remove messages. Replay reads the files on its own.
+     */
+    private synchronized Journal journal() throws IOException {
+        if (journal == null) {
+            journal = new Journal();
+            journal.setDirectory(directory);
+            journal.setCheckForCorruptionOnStartup(false);
+            journal.start();
+        }
+        return journal;
+    }
+
+    public void close() throws IOException {
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } finally {
+            if (lockFile != null) {
+                lockFile.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays the whole journal.
+     *
+     * @return live queue messages, per queue in journal (FIFO) order, keyed by message id
+     */
+    public Map<ActiveMQQueue, LinkedHashMap<String, Location>> recoverLiveMessages() throws IOException {
+        final Map<ActiveMQQueue, LinkedHashMap<String, Location>> live = new LinkedHashMap<>();
+        final Map<String, List<PendingOperation>> transactions = new HashMap<>();
+        final Set<String> prepared = new HashSet<>();
+        long records = 0;
+        priorities.clear();
+        expirations.clear();
+
+        RecordReader reader = new RecordReader();
+        try {
+            Location location;
+            while ((location = reader.next()) != null) {
+                JournalCommand<?> command;
+                try {
+                    command = parse(reader.record, location);
+                } catch (IOException e) {
+                    log.warn(String.format("Skipping unreadable journal record %s in %s: %s", location, directory, e.getMessage()));
+                    continue;
+                }
+                records++;
+                replay(command, location, live, transactions, prepared);
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (!transactions.isEmpty()) {
+            log.warn(String.format("Ignoring %s uncommitted transactions (%s prepared) in %s.", transactions.size(), prepared.size(), directory));
+        }
+        preparedTransactions = prepared.size();
+        // drop destinations which ended up empty
+        for (Iterator<LinkedHashMap<String, Location>> iterator = live.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().isEmpty()) {
+                iterator.remove();
+            }
+        }
+        log.info(String.format("Replayed %s journal records from %s.", records, directory));
+        return live;
+    }
+
+    private void replay(JournalCommand<?> command, Location location, Map<ActiveMQQueue, LinkedHashMap<String, Location>> live,
+                        Map<String, List<PendingOperation>> transactions, Set<String> prepared) {
+        if (command instanceof KahaAddMessageCommand) {
+            KahaAddMessageCommand add = (KahaAddMessageCommand) command;
+            if (add.hasPriority() && add.getPriority() != javax.jms.Message.DEFAULT_PRIORITY) {
+                priorities.put(add.getMessageId(), add.getPriority());
+            }
+            if (trackExpiration) {
+                long expiration = getExpiration(add);
+                if (expiration > 0) {
+                    expirations.put(add.getMessageId(), expiration);
+                }
+            }
+            apply(live, transactions, add.hasTransactionInfo() ? add.getTransactionInfo() : null, new PendingOperation(add.getDestination(), add.getMessageId(), location));
+        } else if (command instanceof KahaUpdateMessageCommand) {
+            KahaAddMessageCommand update = ((KahaUpdateMessageCommand) command).getMessage();
+            LinkedHashMap<String, Location> messages = getQueueMessages(live, update.getDestination(), false);
+            if (messages != null && messages.containsKey(update.getMessageId())) {
+                // keep the original position, only the content moved
+                messages.put(update.getMessageId(), location);
+            }
+        } else if (command instanceof KahaRemoveMessageCommand) {
+            KahaRemoveMessageCommand remove = (KahaRemoveMessageCommand) command;
+            if (!remove.hasSubscriptionKey()) {
+                apply(live, transactions, remove.hasTransactionInfo() ? remove.getTransactionInfo() : null, new PendingOperation(remove.getDestination(), remove.getMessageId(), null));
+            }
+        } else if (command instanceof KahaCommitCommand) {
+            String key = toKey(((KahaCommitCommand) command).getTransactionInfo());
+            prepared.remove(key);
+            List<PendingOperation> operations = transactions.remove(key);
+            if (operations != null) {
+                for (PendingOperation operation : operations) {
+                    operation.apply(live);
+                }
+            }
+        } else if (command instanceof KahaRollbackCommand) {
+            String key = toKey(((KahaRollbackCommand) command).getTransactionInfo());
+            prepared.remove(key);
+            transactions.remove(key);
+        } else if (command instanceof KahaPrepareCommand) {
+            prepared.add(toKey(((KahaPrepareCommand) command).getTransactionInfo()));
+        } else if (command instanceof KahaRemoveDestinationCommand) {
+            KahaDestination destination = ((KahaRemoveDestinationCommand) command).getDestination();
+            if (destination.getType() == KahaDestination.DestinationType.QUEUE) {
+                live.remove(new ActiveMQQueue(destination.getName()));
+            }
+        }
+    }
+
+    /**
+     * @return prepared XA transactions left by the last {@link #recoverLiveMessages()}, only a broker can resolve those
+     */
+    public int getPreparedTransactions() {
+        return preparedTransactions;
+    }
+
+    /**
+     * @return JMS priority of a message seen by the last {@link #recoverLiveMessages()}
+     */
+    public int getPriority(String messageId) {
+        Integer priority = priorities.get(messageId);
+        return priority == null ? javax.jms.Message.DEFAULT_PRIORITY : priority;
+    }
+
+    /**
+     * Makes {@link #recoverLiveMessages()} record the expiration of every message, which costs
+     * unmarshalling each of them, the journal records carry no expiration.
+     */
+    public void setTrackExpiration(boolean trackExpiration) {
+        this.trackExpiration = trackExpiration;
+    }
+
+    /**
+     * @return expiration time of a message seen by the last {@link #recoverLiveMessages()} with expiration tracked, 0 for none
+     */
+    public long getExpiration(String messageId) {
+        Long expiration = expirations.get(messageId);
+        return expiration == null ? 0 : expiration;
+    }
+
+    /**
+     * Replays the journal of a store without starting it.
+     *
+     * @return true if a broker would find queue messages or prepared transactions in it
+     */
+    public static boolean hasPendingMessages(File directory) throws IOException {
+        if (!hasJournalFiles(directory)) {
+            return false;
+        }
+        KahaDBJournal journal = new KahaDBJournal(directory, OpenWireFormat.DEFAULT_STORE_VERSION);
+        journal.open();
+        try {
+            return !journal.recoverLiveMessages().isEmpty() || journal.getPreparedTransactions() > 0;
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Replays the journal of a store without starting it.
+     *
+     * @return live messages per queue
+     */
+    public static Map<String, Long> countLiveMessages(File directory) throws IOException {
+        Map<String, Long> counts = new TreeMap<>();
+        if (!hasJournalFiles(directory)) {
+            return counts;
+        }
+        KahaDBJournal journal = new KahaDBJournal(directory, OpenWireFormat.DEFAULT_STORE_VERSION);
+        journal.open();
+        try {
+            for (Map.Entry<ActiveMQQueue, LinkedHashMap<String, Location>> entry : journal.recoverLiveMessages().entrySet()) {
+                counts.put(entry.getKey().getPhysicalName(), (long) entry.getValue().size());
+            }
+            return counts;
+        } finally {
+            journal.close();
+        }
+    }
+
+    public Message loadMessage(Location location) throws IOException {
+        JournalCommand<?> command = load(location);
+        KahaAddMessageCommand add;
+        if (command instanceof KahaUpdateMessageCommand) {
+            add = ((KahaUpdateMessageCommand) command).getMessage();
+        } else if (command instanceof KahaAddMessageCommand) {
+            add = (KahaAddMessageCommand) command;
+        } else {
+            throw new IOException("Not a message record at " + location + ": " + command.type());
+        }
+        return (Message) wireFormat.unmarshal(new DataInputStream(add.getMessage().newInput()));
+    }
+
+    /**
+     * JMS priority of the message added at the location, from the record alone without unmarshalling the message.
+     */
+    public int loadPriority(Location location) throws IOException {
+        JournalCommand<?> command = load(location);
+        KahaAddMessageCommand add;
+        if (command instanceof KahaUpdateMessageCommand) {
+            add = ((KahaUpdateMessageCommand) command).getMessage();
+        } else if (command instanceof KahaAddMessageCommand) {
+            add = (KahaAddMessageCommand) command;
+        } else {
+            throw new IOException("Not a message record at " + location + ": " + command.type());
+        }
+        return add.hasPriority() ? add.getPriority() : javax.jms.Message.DEFAULT_PRIORITY;
+    }
+
+    /**
+     * Appends remove records for the given messages, the last one synced to disk.
+     */
+    public void removeMessages(ActiveMQQueue queue, List<String> messageIds) throws IOException {
+        KahaDestination destination = new KahaDestination();
+        destination.setType(KahaDestination.DestinationType.QUEUE);
+        destination.setName(queue.getPhysicalName());
+        for (int i = 0; i < messageIds.size(); i++) {
+            KahaRemoveMessageCommand remove = new KahaRemoveMessageCommand();
+            remove.setDestination(destination);
+            remove.setMessageId(messageIds.get(i));
+            journal().write(toByteSequence(remove), i == messageIds.size() - 1);
+        }
+    }
+
+    public long getDiskSize() throws IOException {
+        return journal().getDiskSize();
+    }
+
+    private long getExpiration(KahaAddMessageCommand add) {
+        try {
+            return ((Message) wireFormat.unmarshal(new DataInputStream(add.getMessage().newInput()))).getExpiration();
+        } catch (IOException e) {
+            log.debug(String.format("Cannot read the expiration of %s in %s: %s", add.getMessageId(), directory, e));
+            return 0;
+        }
+    }
+
+    private JournalCommand<?> load(Location location) throws IOException {
+        return parse(journal().read(location), location);
+    }
+
+    /**
+     * Reads the journal from the file holding the location on, usually only its tail.
+     *
+     * @return true if a record after the location adds, moves or removes messages or belongs to a transaction,
+     * anything but the bookkeeping a broker appends when it checkpoints its index
+     */
+    public boolean hasMessageRecordsAfter(Location location) throws IOException {
+        RecordReader reader = new RecordReader(location.getDataFileId());
+        try {
+            Location next;
+            while ((next = reader.next()) != null) {
+                if (next.compareTo(location) > 0 && !isBookkeeping(KahaEntryType.valueOf(reader.record.getData()[reader.record.getOffset()]))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isBookkeeping(KahaEntryType type) {
+        return type == KahaEntryType.KAHA_TRACE_COMMAND || type == KahaEntryType.KAHA_PRODUCER_AUDIT_COMMAND
+            || type == KahaEntryType.KAHA_ACK_MESSAGE_FILE_MAP_COMMAND;
+    }
+
+    private static JournalCommand<?> parse(ByteSequence data, Location location) throws IOException {
+        DataByteArrayInputStream is = new DataByteArrayInputStream(data);
+        KahaEntryType type = KahaEntryType.valueOf(is.readByte());
+        if (type == null) {
+            throw new IOException("Could not load journal record. Invalid location: " + location);
+        }
+        JournalCommand<?> command = (JournalCommand<?>) type.createMessage();
+        command.mergeFramed(is);
+        return command;
+    }
+
+    private static ByteSequence toByteSequence(JournalCommand<?> data) throws IOException {
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream(data.serializedSizeFramed() + 1);
+        os.writeByte(data.type().getNumber());
+        data.writeFramed(os);
+        return os.toByteSequence();
+    }
+
+    private static void apply(Map<ActiveMQQueue, LinkedHashMap<String, Location>> live, Map<String, List<PendingOperation>> transactions,
+                              KahaTransactionInfo transactionInfo, PendingOperation operation) {
+        // the generated getters create an empty info on access, so check has* before calling them
+        if (transactionInfo != null) {
+            String key = toKey(transactionInfo);
+            List<PendingOperation> operations = transactions.get(key);
+            if (operations == null) {
+                operations = new ArrayList<>();
+                transactions.put(key, operations);
+            }
+            operations.add(operation);
+        } else {
+            operation.apply(live);
+        }
+    }
+
+    private static LinkedHashMap<String, Location> getQueueMessages(Map<ActiveMQQueue, LinkedHashMap<String, Location>> live, KahaDestination destination, boolean create) {
+        if (destination.getType() != KahaDestination.DestinationType.QUEUE) {
+            return null;
+        }
+        ActiveMQQueue queue = new ActiveMQQueue(destination.getName());
+        LinkedHashMap<String, Location> messages = live.get(queue);
+        if (messages == null && create) {
+            messages = new LinkedHashMap<>();
+            live.put(queue, messages);
+        }
+        return messages;
+    }
+
+    private static String toKey(KahaTransactionInfo info) {
+        if (info.hasLocalTransactionId()) {
+            return "L:" + info.getLocalTransactionId().getConnectionId() + ":" + info.getLocalTransactionId().getTransactionId();
+        } else {
+            // a char per byte, the length keeps global id and branch apart
+            byte[] globalId = info.getXaTransactionId().getGlobalTransactionId().toByteArray();
+            return "X:" + info.getXaTransactionId().getFormatId() + ":" + globalId.length
+                + ":" + new String(globalId, StandardCharsets.ISO_8859_1)
+                + new String(info.getXaTransactionId().getBranchQualifier().toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Reads the journal front to back through a buffer, file by file. Far faster than reading each record
+     * where {@link Journal#getNextLocation(Location)} points, which takes two reads of the file per record,
+     * and the journal does not have to scan its last file for the end of the written data on start.
+     */
+    private class RecordReader implements Closeable {
+        private final Iterator<Map.Entry<Integer, File>> files;
+        private byte[] buffer = new byte[READ_BUFFER_SIZE];
+        // unread bytes of the buffer
+        private int position;
+        private int limit;
+        private int dataFileId;
+        private long length;
+        private InputStream in;
+        private int offset;
+        // end of the last complete batch seen
+        private long batchEnd;
+        // content of the user record last returned, only valid until the next one is read
+        private ByteSequence record;
+
+        private RecordReader() {
+            this(Integer.MIN_VALUE);
+        }
+
+        /**
+         * @param firstDataFileId journal files before it are left out
+         */
+        private RecordReader(int firstDataFileId) {
+            files = listJournalFiles().tailMap(firstDataFileId).entrySet().iterator();
+        }
+
+        /**
+         * @return location of the next user record, null at the end of the journal
+         */
+        private Location next() throws IOException {
+            while (true) {
+                if (in == null) {
+                    if (!files.hasNext()) {
+                        return null;
+                    }
+                    Map.Entry<Integer, File> file = files.next();
+                    dataFileId = file.getKey();
+                    length = file.getValue().length();
+                    offset = 0;
+                    batchEnd = 0;
+                    position = limit = 0;
+                    in = new FileInputStream(file.getValue());
+                }
+                if (offset + Journal.RECORD_HEAD_SPACE <= length && fill(Journal.RECORD_HEAD_SPACE)) {
+                    int size = ((buffer[position] & 0xff) << 24) | ((buffer[position + 1] & 0xff) << 16) | ((buffer[position + 2] & 0xff) << 8) | (buffer[position + 3] & 0xff);
+                    byte type = buffer[position + 4];
+                    // anything else is where writing stopped
+                    if (size >= Journal.RECORD_HEAD_SPACE && offset + size <= length && isInBatch(type, size) && fill(size)) {
+                        Location location = new Location(dataFileId, offset);
+                        location.setSize(size);
+                        location.setType(type);
+                        ByteSequence data = new ByteSequence(buffer, position + Journal.RECORD_HEAD_SPACE, size - Journal.RECORD_HEAD_SPACE);
+                        position += size;
+                        offset += size;
+                        if (type == Journal.USER_RECORD_TYPE) {
+                            record = data;
+                            return location;
+                        }
+                        DataByteArrayInputStream batch = new DataByteArrayInputStream(data);
+                        batch.skipBytes(Journal.BATCH_CONTROL_RECORD_MAGIC.length);
+                        batchEnd = offset + batch.readInt();
+                        if (batchEnd > length) {
+                            // torn write, the journal drops the whole batch as well
+                            offset = (int) length;
+                        }
+                        continue;
+                    }
+                }
+                in.close();
+                in = null;
+            }
+        }
+
+        private boolean isInBatch(byte type, int size) {
+            if (type == Journal.BATCH_CONTROL_RECORD_TYPE) {
+                return size == Journal.BATCH_CONTROL_RECORD_SIZE;
+            }
+            return type == Journal.USER_RECORD_TYPE && offset + size <= batchEnd;
+        }
+
+        /**
+         * @return true if the buffer holds the next count bytes, false at the end of the file
+         */
+        private boolean fill(int count) throws IOException {
+            if (limit - position >= count) {
+                return true;
+            }
+            if (count > buffer.length) {
+                buffer = Arrays.copyOfRange(buffer, position, position + Math.max(count, buffer.length * 2));
+            } else {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+            }
+            limit -= position;
+            position = 0;
+            while (limit < count) {
+                int read = in.read(buffer, limit, buffer.length - limit);
+                if (read < 0) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private TreeMap<Integer, File> listJournalFiles() {
+        TreeMap<Integer, File> files = new TreeMap<>();
+        File[] candidates = directory.listFiles(JOURNAL_FILES);
+        for (File file : candidates != null ? candidates : new File[0]) {
+            String name = file.getName();
+            try {
+                files.put(Integer.parseInt(name.substring(Journal.DEFAULT_FILE_PREFIX.length(), name.length() - Journal.DEFAULT_FILE_SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                log.debug(String.format("Not a journal file: %s", file));
+            }
+        }
+        return files;
+    }
+
+    private static class PendingOperation {
+        private final KahaDestination destination;
+        private final String messageId;
+        // null for a removal
+        private final Location location;
+
+        private PendingOperation(KahaDestination destination, String messageId, Location location) {
+            this.destination = destination;
+            this.messageId = messageId;
+            this.location = location;
+        }
+
+        private void apply(Map<ActiveMQQueue, LinkedHashMap<String, Location>> live) {
+            LinkedHashMap<String, Location> messages = getQueueMessages(live, destination, location != null);
+            if (messages == null) {
+                return;
+            }
+            if (location == null) {
+                messages.remove(messageId);
+            } else if (!messages.containsKey(messageId)) {
+                // the index ignores duplicate adds as well
+                messages.put(messageId, location);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.apache.activemq.util.IntrospectionSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * KahaDB adapter settings for a store that is only read, acked and deleted, then thrown away.
+ *
+ * The "default" profile keeps the KahaDB defaults and is used unless "drain" is asked for. "drain" does not
+ * sync the journal, removes since the last checkpoint are lost on a crash and forwarded again by the next run.
+ *
+ * Any adapter property listed in {@link #PROPERTIES} can be overridden with amq.drainer.kahadb.&lt;property&gt;.
+ */
+public class KahaDBProfile {
+    private static final Logger log = LoggerFactory.getLogger(KahaDBProfile.class);
+
+    public static final String DEFAULT = "default";
+    public static final String DRAIN = "drain";
+
+    public static final String OVERRIDE_PREFIX = "amq.drainer.kahadb.";
+
+    static final String[] PROPERTIES = {
+        "indexCacheSize",
+        "indexWriteBatchSize",
+        "enableIndexWriteAsync",
+        "enableIndexDiskSyncs",
+        "enableIndexRecoveryFile",
+        "enableIndexPageCaching",
+        "enableJournalDiskSyncs",
+        "journalMaxWriteBatchSize",
+        "checkpointInterval",
+        "cleanupInterval",
+        "checkForCorruptJournalFiles",
+        "checksumJournalFiles",
+        "ignoreMissingJournalfiles",
+        "forceRecoverIndex",
+        "archiveCorruptedIndex",
+        "maxAsyncJobs",
+        "preallocationStrategy",
+    };
+
+    private KahaDBProfile() {
+    }
+
+    /**
+     * @return the adapter settings of the profile, on top of the KahaDB defaults
+     */
+    public static Map<String, String> getSettings(String profile) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        // the drainer never dispatches a message before it is stored, there is nothing to store
+        settings.put("concurrentStoreAndDispatchQueues", "false");
+        if (DRAIN.equalsIgnoreCase(profile)) {
+            // removes are replayed from the journal anyway, the final checkpoint on stop syncs the lot
+            settings.put("enableJournalDiskSyncs", "false");
+            settings.put("enableIndexWriteAsync", "true");
+            settings.put("indexWriteBatchSize", "10000");
+            // fewer, larger index flushes, and no journal GC while every file is still being read
+            settings.put("checkpointInterval", String.valueOf(TimeUnit.SECONDS.toMillis(30)));
+            settings.put("cleanupInterval", String.valueOf(TimeUnit.MINUTES.toMillis(5)));
+        } else if (!DEFAULT.equalsIgnoreCase(profile)) {
+            throw new IllegalArgumentException("Unknown KahaDB profile: " + profile);
+        }
+        return settings;
+    }
+
+    public static KahaDBPersistenceAdapter create(File directory, String profile) {
+        Map<String, String> settings = getSettings(profile);
+        for (String property : PROPERTIES) {
+            String value = Utils.getSystemPropertyOrEnvVar(OVERRIDE_PREFIX + property);
+            if (value != null) {
+                settings.put(property, value);
+            }
+        }
+
+        KahaDBPersistenceAdapter adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(directory);
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            if (!IntrospectionSupport.setProperty(adapter, setting.getKey(), setting.getValue())) {
+                throw new IllegalArgumentException(String.format("Invalid KahaDB setting %s=%s", setting.getKey(), setting.getValue()));
+            }
+        }
+        log.info(String.format("Using KahaDB profile %s for %s: %s", profile, directory.getName(), settings));
+        return adapter;
+    }
+}
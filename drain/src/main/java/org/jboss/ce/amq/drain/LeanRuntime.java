@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.thread.TaskRunnerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Trims the drain brokers down to what a drain needs, for pods that are already shutting down.
+ *
+ * All drain brokers share one task runner pool, bounded or on virtual threads where the JVM has them,
+ * and run without broker JMX, scheduler, virtual topics and shutdown hook.
+ */
+public class LeanRuntime {
+    private static final Logger log = LoggerFactory.getLogger(LeanRuntime.class);
+
+    private static final long IDLE_SECONDS = 10;
+
+    private final SharedTaskRunnerFactory taskRunnerFactory;
+
+    /**
+     * @param maxThreads bound of the platform thread pool, unused with virtual threads
+     */
+    public LeanRuntime(int maxThreads, boolean virtualThreads) {
+        taskRunnerFactory = new SharedTaskRunnerFactory(Math.max(1, maxThreads), virtualThreads);
+        taskRunnerFactory.init();
+    }
+
+    public void configure(BrokerService broker) {
+        broker.setUseJmx(false);
+        broker.setSchedulerSupport(false);
+        broker.setUseVirtualTopics(false);
+        // the drainer stops its brokers itself, a hook only races it on exit
+        broker.setUseShutdownHook(false);
+        broker.setDedicatedTaskRunner(false);
+        broker.setTaskRunnerFactory(taskRunnerFactory);
+        broker.setPersistenceTaskRunnerFactory(taskRunnerFactory);
+    }
+
+    TaskRunnerFactory getTaskRunnerFactory() {
+        return taskRunnerFactory;
+    }
+
+    /**
+     * Once every drain broker has stopped.
+     */
+    public void close() {
+        taskRunnerFactory.close();
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, null before Java 21
+     */
+    static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Brokers shut down their task runner factory when they stop, this one outlives them.
+     */
+    private static class SharedTaskRunnerFactory extends TaskRunnerFactory {
+        private final boolean virtualThreads;
+
+        private SharedTaskRunnerFactory(int maxThreads, boolean virtualThreads) {
+            super("Drainer Task", Thread.NORM_PRIORITY, true, 1000, false, maxThreads);
+            this.virtualThreads = virtualThreads;
+        }
+
+        @Override
+        protected ExecutorService createDefaultExecutor() {
+            if (virtualThreads) {
+                ExecutorService executor = createVirtualThreadExecutor();
+                if (executor != null) {
+                    log.info("Drain brokers run their tasks on virtual threads.");
+                    return executor;
+                }
+                log.info("Virtual threads are not available, falling back to a bounded pool.");
+            }
+            // hands each task straight to a thread, past the bound it runs on the thread that woke it: a queue behind
+            // busy threads could hold the very task they wait for
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(0, getMaxThreadPoolSize(), IDLE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new DaemonThreadFactory(getName()));
+            executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+            log.info(String.format("Drain brokers share a pool of %s task threads.", getMaxThreadPoolSize()));
+            return executor;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public void shutdownNow() {
+        }
+
+        @Override
+        public void shutdownGraceful() {
+        }
+
+        private void close() {
+            super.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.net.URI;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.activemq.command.DiscoveryEvent;
+import org.apache.activemq.transport.discovery.DiscoveryAgent;
+import org.apache.activemq.transport.discovery.DiscoveryAgentFactory;
+import org.apache.activemq.transport.discovery.DiscoveryListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the live mesh peers through the same discovery agent the network connector uses.
+ */
+public class MeshPeers implements DiscoveryListener {
+    private static final Logger log = LoggerFactory.getLogger(MeshPeers.class);
+
+    /**
+     * Notified of every peer as it shows up, including the ones found before the listener was set.
+     */
+    public interface Listener {
+        void peerAdded(String peer);
+    }
+
+    private final String discoveryURL;
+    private final Set<String> peers = new LinkedHashSet<>();
+    private DiscoveryAgent agent;
+    private Listener listener;
+
+    public MeshPeers(String discoveryURL) {
+        this.discoveryURL = discoveryURL;
+    }
+
+    public void start() throws Exception {
+        agent = DiscoveryAgentFactory.createDiscoveryAgent(new URI(discoveryURL));
+        agent.setDiscoveryListener(this);
+        agent.start();
+    }
+
+    public void stop() throws Exception {
+        if (agent != null) {
+            agent.stop();
+        }
+    }
+
+    public void setListener(Listener listener) {
+        String[] known;
+        synchronized (this) {
+            this.listener = listener;
+            known = peers.toArray(new String[peers.size()]);
+        }
+        for (String peer : known) {
+            listener.peerAdded(peer);
+        }
+    }
+
+    /**
+     * Blocks until at least one peer is known.
+     *
+     * @return false if none showed up in time
+     */
+    public synchronized boolean awaitPeer(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left;
+        while (peers.isEmpty() && (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+        return !peers.isEmpty();
+    }
+
+    public synchronized Set<String> getPeers() {
+        return new LinkedHashSet<>(peers);
+    }
+
+    public void onServiceAdd(DiscoveryEvent event) {
+        String peer = event.getServiceName();
+        Listener current;
+        synchronized (this) {
+            if (!peers.add(peer)) {
+                return;
+            }
+            notifyAll();
+            current = listener;
+        }
+        log.info(String.format("Found mesh peer %s.", peer));
+        if (current != null) {
+            current.peerAdded(peer);
+        }
+    }
+
+    public void onServiceRemove(DiscoveryEvent event) {
+        synchronized (this) {
+            if (!peers.remove(event.getServiceName())) {
+                return;
+            }
+        }
+        log.info(String.format("Lost mesh peer %s.", event.getServiceName()));
+    }
+}
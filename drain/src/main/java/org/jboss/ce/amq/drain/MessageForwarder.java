@@ -0,0 +1,136 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.concurrent.atomic.AtomicReference;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.TransactionContext;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.ProducerInfo;
+import org.apache.activemq.command.SessionInfo;
+
+/**
+ * Sends already stored messages to a broker in local transactions, keeping message id,
+ * destination, expiration and all other headers untouched, the same way a network bridge forwards them.
+ *
+ * Sends within a transaction are asynchronous, {@link #commit()} is the only round trip.
+ */
+public class MessageForwarder implements AutoCloseable {
+    private final String brokerUrl;
+    private final String username;
+    private final String password;
+
+    private final AtomicReference<JMSException> asyncFailure = new AtomicReference<>();
+
+    private ActiveMQConnection connection;
+    private ProducerInfo producerInfo;
+    private TransactionContext transactionContext;
+    private BodyCompressor compressor;
+
+    private long forwarded;
+    private long forwardedBytes;
+
+    public MessageForwarder(String brokerUrl, String username, String password) {
+        this.brokerUrl = brokerUrl;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Compress the bodies of the messages sent from now on, null for none.
+     */
+    public void setCompressor(BodyCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    public void start() throws JMSException {
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(brokerUrl);
+        connection = (ActiveMQConnection) factory.createConnection(username, password);
+        connection.setExceptionListener(new ExceptionListener() {
+            public void onException(JMSException e) {
+                asyncFailure.compareAndSet(null, e);
+            }
+        });
+        connection.start();
+
+        // no JMS session or producer, those would assign new message ids
+        SessionInfo sessionInfo = new SessionInfo(connection.getConnectionInfo(), 1);
+        connection.syncSendPacket(sessionInfo);
+        producerInfo = new ProducerInfo(sessionInfo, 1);
+        connection.syncSendPacket(producerInfo);
+        transactionContext = new TransactionContext(connection);
+    }
+
+    public void send(Message message) throws JMSException {
+        if (!transactionContext.isInLocalTransaction()) {
+            transactionContext.begin();
+        }
+        Message copy = message.copy();
+        copy.setProducerId(producerInfo.getProducerId());
+        copy.setTransactionId(transactionContext.getTransactionId());
+        copy.setResponseRequired(false);
+        if (compressor != null) {
+            compressor.compress(copy);
+        }
+        connection.asyncSendPacket(copy);
+        forwarded++;
+        forwardedBytes += message.getSize();
+    }
+
+    public void commit() throws JMSException {
+        if (!transactionContext.isInLocalTransaction()) {
+            return;
+        }
+        JMSException failure = asyncFailure.getAndSet(null);
+        if (failure != null) {
+            transactionContext.rollback();
+            throw failure;
+        }
+        transactionContext.commit();
+    }
+
+    public void rollback() throws JMSException {
+        if (transactionContext.isInLocalTransaction()) {
+            transactionContext.rollback();
+        }
+    }
+
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    public long getForwardedBytes() {
+        return forwardedBytes;
+    }
+
+    public void close() throws JMSException {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
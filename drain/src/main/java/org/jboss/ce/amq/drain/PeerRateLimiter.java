@@ -0,0 +1,292 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caps how fast the drain sends to each mesh peer, so pods taking over the load of a rolling restart
+ * stay clear of producer flow control.
+ *
+ * Every peer gets a token bucket. Once a second the memory, store and temp usage of the peer is read
+ * from its statistics plugin (ActiveMQ.Statistics.Broker). The rate is halved while the highest of them
+ * is at or above the usage ceiling and grows again once it falls back, up to the configured maximum.
+ * A busy peer may answer late, that round goes without a sample and the late reply serves the next one.
+ * A peer without the plugin, which never answers or answers with anything but statistics, is held at the
+ * maximum rate only.
+ */
+public class PeerRateLimiter {
+    private static final Logger log = LoggerFactory.getLogger(PeerRateLimiter.class);
+
+    static final String STATISTICS_DESTINATION = "ActiveMQ.Statistics.Broker";
+
+    private static final long PROBE_INTERVAL_MILLIS = 1000;
+    private static final long PROBE_TIMEOUT_MILLIS = 500;
+    // unanswered probes in a row, with no answer ever, before a peer is taken to lack the plugin
+    private static final int MAX_UNANSWERED_PROBES = 5;
+    // never throttle a peer down to nothing, the drain has to finish
+    static final double MIN_RATE = 10;
+    private static final double GROWTH = 1.25;
+    // grow only with some headroom under the ceiling, so the rate does not flap around it
+    private static final double GROW_BELOW = 0.8;
+    private static final double BURST_SECONDS = 0.1;
+
+    private final double maxRate;
+    private final int usageCeiling;
+    private final String username;
+    private final String password;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService prober;
+
+    /**
+     * @param maxRate messages per second per peer, 0 for no fixed maximum
+     * @param usageCeiling percent of peer memory, store or temp usage to back off at, 0 to ignore usage
+     */
+    public PeerRateLimiter(double maxRate, int usageCeiling, String username, String password) {
+        this.maxRate = maxRate > 0 ? maxRate : Double.POSITIVE_INFINITY;
+        this.usageCeiling = usageCeiling;
+        this.username = username;
+        this.password = password;
+        this.prober = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Peer usage prober"));
+    }
+
+    /**
+     * The bucket of a peer, created and probed from the first call on.
+     */
+    public Bucket bucket(String peer) {
+        synchronized (buckets) {
+            Bucket bucket = buckets.get(peer);
+            if (bucket == null) {
+                bucket = new Bucket(peer, maxRate);
+                buckets.put(peer, bucket);
+                if (usageCeiling > 0) {
+                    final Bucket probed = bucket;
+                    prober.scheduleWithFixedDelay(new Runnable() {
+                        public void run() {
+                            probe(probed);
+                        }
+                    }, 0, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+            return bucket;
+        }
+    }
+
+    public int getUsageCeiling() {
+        return usageCeiling;
+    }
+
+    /**
+     * @return highest usage in percent last read from any peer, -1 if none told yet
+     */
+    public int getHighestUsage() {
+        int highest = -1;
+        for (Bucket bucket : buckets.values()) {
+            highest = Math.max(highest, bucket.lastUsage);
+        }
+        return highest;
+    }
+
+    public void stop() {
+        prober.shutdownNow();
+        for (Bucket bucket : buckets.values()) {
+            bucket.closeProbe();
+            log.info(String.format("Drain to %s ended at %.0f msgs/s, %s msgs held back for %s ms, last peer usage %s%%.", bucket.peer,
+                bucket.getRate(), bucket.delayed, TimeUnit.NANOSECONDS.toMillis(bucket.waitedNanos), bucket.lastUsage));
+        }
+    }
+
+    private void probe(Bucket bucket) {
+        try {
+            int usage = bucket.readUsage();
+            if (usage >= 0) {
+                bucket.adjust(usage, usageCeiling);
+            }
+        } catch (Exception e) {
+            log.debug(String.format("Cannot read the usage of %s: %s", bucket.peer, e));
+            bucket.closeProbe();
+        }
+    }
+
+    /**
+     * Messages per second to one peer. Sends may overdraw it, the next ones wait until it is paid back.
+     */
+    public class Bucket {
+        private final String peer;
+        private double rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private long granted;
+        private long lastGranted;
+        private long lastAdjust = System.nanoTime();
+        private long delayed;
+        private long waitedNanos;
+        private volatile int lastUsage = -1;
+
+        // probe state, only touched by the prober thread
+        private Connection connection;
+        private Session session;
+        private MessageProducer producer;
+        private TemporaryQueue replies;
+        private MessageConsumer consumer;
+        private boolean unsupported;
+        private boolean answered;
+        private int unanswered;
+
+        private Bucket(String peer, double rate) {
+            this.peer = peer;
+            this.rate = rate;
+        }
+
+        public void acquire(int permits) throws InterruptedException {
+            long waitNanos;
+            synchronized (this) {
+                granted += permits;
+                if (Double.isInfinite(rate)) {
+                    return;
+                }
+                long now = System.nanoTime();
+                tokens = Math.min(Math.max(1, rate * BURST_SECONDS), tokens + (now - lastRefill) / 1e9 * rate);
+                lastRefill = now;
+                tokens -= permits;
+                if (tokens >= 0) {
+                    return;
+                }
+                waitNanos = (long) (-tokens / rate * 1e9);
+                delayed += permits;
+                waitedNanos += waitNanos;
+            }
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+
+        public synchronized double getRate() {
+            return rate;
+        }
+
+        /**
+         * Halves the rate at or above the ceiling, below it grows by a quarter up to the maximum.
+         */
+        synchronized void adjust(int usage, int ceiling) {
+            long now = System.nanoTime();
+            double observed = (granted - lastGranted) / Math.max(1e-3, (now - lastAdjust) / 1e9);
+            lastGranted = granted;
+            lastAdjust = now;
+            lastUsage = usage;
+
+            double next = rate;
+            if (usage >= ceiling) {
+                // an unlimited bucket starts from what actually went through
+                next = Math.max(MIN_RATE, (Double.isInfinite(rate) ? Math.max(observed, MIN_RATE) : rate) / 2);
+            } else if (usage < ceiling * GROW_BELOW && !Double.isInfinite(rate)) {
+                next = rate * GROWTH;
+                if (next >= maxRate) {
+                    next = maxRate;
+                }
+            }
+            if (next != rate) {
+                log.info(String.format("Drain rate to %s %.0f -> %.0f msgs/s, peer usage %s%% (ceiling %s%%).", peer, rate, next, usage, ceiling));
+                if (Double.isInfinite(rate)) {
+                    tokens = 0;
+                    lastRefill = now;
+                }
+                rate = next;
+            }
+        }
+
+        /**
+         * @return highest of memory, store and temp usage in percent, -1 if the peer does not tell
+         */
+        private int readUsage() throws JMSException {
+            if (unsupported) {
+                return -1;
+            }
+            if (connection == null) {
+                connection = new ActiveMQConnectionFactory(peer).createConnection(username, password);
+                connection.start();
+                session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                replies = session.createTemporaryQueue();
+                consumer = session.createConsumer(replies);
+                producer = session.createProducer(session.createQueue(STATISTICS_DESTINATION));
+                producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+                producer.setTimeToLive(PROBE_TIMEOUT_MILLIS * 4);
+            }
+            javax.jms.Message request = session.createMessage();
+            request.setJMSReplyTo(replies);
+            producer.send(request);
+            javax.jms.Message reply = consumer.receive(PROBE_TIMEOUT_MILLIS);
+            if (reply == null) {
+                unanswered++;
+                if (answered || unanswered < MAX_UNANSWERED_PROBES) {
+                    log.debug(String.format("No statistics from %s within %s ms, no usage sample this round.", peer, PROBE_TIMEOUT_MILLIS));
+                    return -1;
+                }
+            }
+            if (!(reply instanceof MapMessage)) {
+                log.info(String.format("%s publishes no broker statistics, only the maximum rate applies to it.", peer));
+                unsupported = true;
+                closeProbe();
+                return -1;
+            }
+            answered = true;
+            unanswered = 0;
+            MapMessage statistics = (MapMessage) reply;
+            return Math.max(percent(statistics, "memoryPercentUsage"), Math.max(percent(statistics, "storePercentUsage"), percent(statistics, "tempPercentUsage")));
+        }
+
+        private void closeProbe() {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (JMSException ignore) {
+                }
+                connection = null;
+            }
+        }
+    }
+
+    private static int percent(MapMessage statistics, String name) throws JMSException {
+        Object value = statistics.getObject(name);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+}
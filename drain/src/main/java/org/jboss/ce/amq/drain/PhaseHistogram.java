@@ -0,0 +1,91 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.Locale;
+
+/**
+ * Durations of one drain phase over all stores, in fixed buckets so runs can be added up.
+ */
+public class PhaseHistogram {
+    // upper bounds in millis, the last bucket takes everything above
+    static final long[] BOUNDS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000};
+
+    private final long[] counts = new long[BOUNDS.length + 1];
+    private long count;
+    private long sum;
+    private long max;
+
+    public synchronized void record(long millis) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        count++;
+        sum += millis;
+        max = Math.max(max, millis);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getSumMillis() {
+        return sum;
+    }
+
+    public synchronized long getMaxMillis() {
+        return max;
+    }
+
+    /**
+     * Prometheus histogram lines, cumulative buckets in seconds.
+     */
+    synchronized void toText(StringBuilder builder, String metric, String labels) {
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String le = i < BOUNDS.length ? String.format(Locale.ROOT, "%.3f", BOUNDS[i] / 1000d) : "+Inf";
+            builder.append(metric).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+        builder.append(metric).append("_sum{").append(labels).append("} ").append(String.format(Locale.ROOT, "%.3f", sum / 1000d)).append('\n');
+        builder.append(metric).append("_count{").append(labels).append("} ").append(count).append('\n');
+    }
+
+    synchronized void toJson(StringBuilder json) {
+        json.append('{');
+        DrainMetrics.field(json, "count", count).append(',');
+        DrainMetrics.field(json, "sumMillis", sum).append(',');
+        DrainMetrics.field(json, "maxMillis", max).append(',');
+        json.append("\"buckets\":{");
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            DrainMetrics.field(json, i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf", counts[i]);
+        }
+        json.append("}}");
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.activemq.command.Message;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+
+/**
+ * Append-only file of messages taken out of a store while no mesh peer was there to take them.
+ *
+ * A spool is a header (magic, format version, OpenWire version) followed by one record per message,
+ * its length and the OpenWire encoding of the whole message, destination, headers and properties
+ * included. It is written under a ".part" name and renamed once synced, so a spool with the final
+ * name is always complete.
+ */
+public class Spool {
+    public static final String SUFFIX = ".spool";
+    static final String PARTIAL_SUFFIX = SUFFIX + ".part";
+
+    private static final byte[] MAGIC = "AMQSPOOL".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 8;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private Spool() {
+    }
+
+    /**
+     * @return complete spools in the directory, oldest first by name
+     */
+    public static File[] list(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static OpenWireFormat createWireFormat(int openWireVersion) {
+        OpenWireFormat wireFormat = new OpenWireFormat(openWireVersion);
+        // records are read back one at a time, none may depend on another
+        wireFormat.setCacheEnabled(false);
+        wireFormat.setTightEncodingEnabled(true);
+        wireFormat.setSizePrefixDisabled(true);
+        return wireFormat;
+    }
+
+    public static class Writer implements Closeable {
+        private final File file;
+        private final File partial;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private final OpenWireFormat wireFormat;
+        private long messages;
+        private long bytes;
+        private boolean committed;
+
+        public Writer(File file, int openWireVersion) throws IOException {
+            this.file = file;
+            this.partial = new File(file.getPath().substring(0, file.getPath().length() - SUFFIX.length()) + PARTIAL_SUFFIX);
+            this.wireFormat = createWireFormat(openWireVersion);
+            this.fileOut = new FileOutputStream(partial);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+            out.write(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(openWireVersion);
+        }
+
+        public void append(Message message) throws IOException {
+            ByteSequence data = wireFormat.marshal(message);
+            out.writeInt(data.getLength());
+            out.write(data.getData(), data.getOffset(), data.getLength());
+            messages++;
+            bytes += 4 + data.getLength();
+        }
+
+        /**
+         * Syncs the spool to disk and gives it its final name.
+         */
+        public void commit() throws IOException {
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Without a commit the partial spool is deleted.
+         */
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(partial.toPath());
+            }
+        }
+    }
+
+    /**
+     * Reads records straight from memory-mapped windows of the spool, remapped as the reader moves on.
+     */
+    public static class Reader implements Closeable {
+        private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+        private final File file;
+        private final FileChannel channel;
+        private final long size;
+        private final OpenWireFormat wireFormat;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        public Reader(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                this.size = channel.size();
+                ByteBuffer header = ensure(HEADER_SIZE);
+                byte[] magic = new byte[MAGIC.length];
+                if (header != null) {
+                    header.get(magic);
+                }
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException("Not a spool: " + file);
+                }
+                int version = header.getInt();
+                if (version != FORMAT_VERSION) {
+                    throw new IOException(String.format("Unsupported spool format %s in %s", version, file));
+                }
+                this.wireFormat = createWireFormat(header.getInt());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the next message, null at the end of the spool
+         */
+        public Message next() throws IOException {
+            ByteBuffer buffer = ensure(4);
+            if (buffer == null) {
+                if (getOffset() < size) {
+                    throw new IOException("Truncated record in " + file);
+                }
+                return null;
+            }
+            int length = buffer.getInt();
+            buffer = ensure(length);
+            if (buffer == null) {
+                throw new IOException("Truncated record in " + file);
+            }
+            // unmarshalling needs an array, this is the only copy of the record
+            byte[] data = new byte[length];
+            buffer.get(data);
+            return (Message) wireFormat.unmarshal(new ByteSequence(data));
+        }
+
+        /**
+         * @return offset of the next record
+         */
+        public long getOffset() {
+            return window == null ? windowStart : windowStart + window.position();
+        }
+
+        /**
+         * Moves to a record offset, as returned by {@link #getOffset()}.
+         */
+        public void seek(long offset) throws IOException {
+            if (offset < HEADER_SIZE || offset > size) {
+                throw new IOException(String.format("Offset %s out of %s", offset, file));
+            }
+            window = null;
+            windowStart = offset;
+        }
+
+        /**
+         * @return the window with at least the given number of bytes left, null past the end of the spool
+         */
+        private ByteBuffer ensure(int bytes) throws IOException {
+            if (window != null && window.remaining() >= bytes) {
+                return window;
+            }
+            long position = getOffset();
+            if (size - position < bytes) {
+                return null;
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(bytes, Math.min(WINDOW_SIZE, size - position)));
+            windowStart = position;
+            return window;
+        }
+
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+}
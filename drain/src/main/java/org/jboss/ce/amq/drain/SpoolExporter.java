@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.store.kahadb.disk.journal.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the live messages of a KahaDB instance into a {@link Spool}, straight from its journal.
+ *
+ * Messages are removed from the store only once the spool is synced, a failure in between leaves
+ * them in both rather than in neither.
+ */
+public class SpoolExporter {
+    private static final Logger log = LoggerFactory.getLogger(SpoolExporter.class);
+
+    private final File spoolDir;
+    private final int openWireVersion;
+    private final boolean processExpired;
+
+    public SpoolExporter(File spoolDir, int openWireVersion, boolean processExpired) {
+        this.spoolDir = spoolDir;
+        this.openWireVersion = openWireVersion;
+        this.processExpired = processExpired;
+    }
+
+    /**
+     * @return number of messages spooled
+     */
+    public long export(File kahaDbDir, DrainMetrics.Store metrics) throws Exception {
+        if (!KahaDBJournal.hasJournalFiles(kahaDbDir)) {
+            log.info(String.format("No journal files in %s, nothing to spool.", kahaDbDir));
+            return 0;
+        }
+
+        final long start = System.currentTimeMillis();
+        final KahaDBJournal journal = new KahaDBJournal(kahaDbDir, openWireVersion);
+        journal.open();
+        try {
+            final Map<ActiveMQQueue, LinkedHashMap<String, Location>> live = journal.recoverLiveMessages();
+            final long exportStart = System.currentTimeMillis();
+            metrics.phase(DrainMetrics.PHASE_REPLAY, exportStart - start);
+            long total = 0;
+            final Map<String, Long> backlog = new TreeMap<>();
+            for (Map.Entry<ActiveMQQueue, LinkedHashMap<String, Location>> entry : live.entrySet()) {
+                total += entry.getValue().size();
+                backlog.put(entry.getKey().getPhysicalName(), (long) entry.getValue().size());
+            }
+            log.info(String.format("Found %s live msgs in %s queues of %s.", total, live.size(), kahaDbDir));
+            metrics.setBacklog(total, 0, backlog);
+            if (total == 0) {
+                return 0;
+            }
+
+            if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+                throw new IOException("Cannot create spool directory " + spoolDir);
+            }
+            if (journal.getPreparedTransactions() > 0) {
+                log.warn(String.format("%s prepared transactions in %s stay in the store, only a broker can resolve them.",
+                    journal.getPreparedTransactions(), kahaDbDir));
+            }
+            final Spool.Writer writer = new Spool.Writer(new File(spoolDir, kahaDbDir.getName() + "-" + start + Spool.SUFFIX), openWireVersion);
+            try {
+                for (Map.Entry<ActiveMQQueue, LinkedHashMap<String, Location>> entry : live.entrySet()) {
+                    long expired = 0;
+                    for (Location location : entry.getValue().values()) {
+                        Message message = journal.loadMessage(location);
+                        if (!message.isExpired()) {
+                            writer.append(message);
+                        } else {
+                            if (processExpired) {
+                                writer.append(ExpiryPurger.toDeadLetter(message));
+                            }
+                            expired++;
+                        }
+                    }
+                    if (expired > 0) {
+                        metrics.expired(entry.getKey().getPhysicalName(), expired);
+                    }
+                }
+                writer.commit();
+            } finally {
+                writer.close();
+            }
+
+            // the spool is on disk, only now the store lets go of the messages
+            for (Map.Entry<ActiveMQQueue, LinkedHashMap<String, Location>> entry : live.entrySet()) {
+                journal.removeMessages(entry.getKey(), new ArrayList<>(entry.getValue().keySet()));
+            }
+            metrics.spooled(writer.getMessages(), writer.getBytes());
+            metrics.unfinished(backlog);
+            metrics.setBacklog(0, 0, Collections.<String, Long>emptyMap());
+            metrics.phase(DrainMetrics.PHASE_EXPORT, System.currentTimeMillis() - exportStart);
+
+            long took = Math.max(1, System.currentTimeMillis() - start);
+            log.info(String.format("Spooled %s msgs of %s to %s, %s bytes in %s ms (%.1f MB/s).", writer.getMessages(), kahaDbDir.getName(),
+                writer.getFile(), writer.getBytes(), took, writer.getBytes() * 1000d / took / (1024 * 1024)));
+            return writer.getMessages();
+        } finally {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.command.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays {@link Spool} files into a broker, any ActiveMQ URL: tcp://, vm:// or discovery:(...).
+ *
+ * Messages go to one producer per partition, destinations are hashed over the partitions so each keeps
+ * its order. Every producer sends a batch asynchronously and commits it in one transaction. The offset
+ * before which every record is committed is checkpointed next to the spool, an interrupted import resumes
+ * there and only resends what was in flight. A fully imported spool is deleted.
+ */
+public class SpoolImporter {
+    private static final Logger log = LoggerFactory.getLogger(SpoolImporter.class);
+
+    static final String CHECKPOINT_SUFFIX = ".offset";
+
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+    private static final long POLL_MILLIS = 100;
+
+    private final String brokerUrl;
+    private final String username;
+    private final String password;
+    private final int producers;
+    private final int batchSize;
+    private BodyCompressor compressor;
+
+    public SpoolImporter(String brokerUrl, String username, String password, int producers, int batchSize) {
+        this.brokerUrl = brokerUrl;
+        this.username = username;
+        this.password = password;
+        this.producers = Math.max(1, producers);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Compress the bodies sent to the broker, over connections with the wire options of {@link DrainConnector}.
+     */
+    public void setCompressor(BodyCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Usage: SpoolImporter broker-url spool-file-or-directory
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage: SpoolImporter <broker url> <spool file or directory>");
+        }
+        File source = new File(args[1]);
+        File[] spools = source.isDirectory() ? Spool.list(source) : new File[]{source};
+        SpoolImporter importer = new SpoolImporter(args[0], BrokerServiceDrainer.getUsername(), BrokerServiceDrainer.getPassword(),
+            BrokerServiceDrainer.getSpoolProducers(), BrokerServiceDrainer.getSpoolBatchSize());
+        DrainMetrics metrics = new DrainMetrics(BrokerServiceDrainer.getBrokerName());
+        for (File spool : spools) {
+            importer.replay(spool, metrics.store(spool.getName()));
+        }
+    }
+
+    public static File getCheckpointFile(File spool) {
+        return new File(spool.getPath() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * @return number of messages sent
+     */
+    public long replay(File spool, DrainMetrics.Store metrics) throws Exception {
+        final long start = System.currentTimeMillis();
+        final File checkpointFile = getCheckpointFile(spool);
+        final Progress progress = new Progress(checkpointFile, metrics);
+        final Partition[] partitions = new Partition[producers];
+        final Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            partitions[i] = new Partition(progress);
+            threads[i] = new Thread(partitions[i], "Spool importer-" + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        boolean success = false;
+        metrics.started();
+        try {
+            try (Spool.Reader reader = new Spool.Reader(spool)) {
+                long resumeAt = readCheckpoint(checkpointFile);
+                if (resumeAt > 0) {
+                    log.info(String.format("Resuming %s at offset %s.", spool, resumeAt));
+                    reader.seek(resumeAt);
+                }
+                progress.read(reader.getOffset());
+                while (true) {
+                    long offset = reader.getOffset();
+                    Message message = reader.next();
+                    if (message == null) {
+                        break;
+                    }
+                    Record record = new Record(offset, message);
+                    progress.dispatched(record, reader.getOffset());
+                    Partition partition = partitions[(message.getDestination().hashCode() & Integer.MAX_VALUE) % partitions.length];
+                    while (!partition.records.offer(record, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        progress.checkFailure();
+                    }
+                    progress.checkFailure();
+                }
+            } finally {
+                for (Partition partition : partitions) {
+                    partition.finish();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                progress.checkpoint();
+            }
+            progress.checkFailure();
+            Files.delete(spool.toPath());
+            Files.deleteIfExists(checkpointFile.toPath());
+            success = true;
+        } finally {
+            metrics.phase(DrainMetrics.PHASE_IMPORT, System.currentTimeMillis() - start);
+            metrics.finished(success);
+        }
+
+        long took = Math.max(1, System.currentTimeMillis() - start);
+        log.info(String.format("Imported %s msgs from %s to %s in %s ms (%.0f msgs/s), %s producers.", progress.sent, spool.getName(), brokerUrl,
+            took, progress.sent * 1000d / took, producers));
+        return progress.sent;
+    }
+
+    static long readCheckpoint(File checkpointFile) throws IOException {
+        if (!checkpointFile.isFile()) {
+            return 0;
+        }
+        return Long.parseLong(new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.US_ASCII).trim());
+    }
+
+    /**
+     * Synced under a ".part" name and renamed, a crash leaves the old offset or the new one, never a torn one.
+     */
+    static void writeCheckpoint(File checkpointFile, long offset) throws IOException {
+        File partial = new File(checkpointFile.getPath() + ".part");
+        try (FileOutputStream out = new FileOutputStream(partial)) {
+            out.write(String.valueOf(offset).getBytes(StandardCharsets.US_ASCII));
+            out.getFD().sync();
+        }
+        Files.move(partial.toPath(), checkpointFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class Record {
+        private final long offset;
+        private final Message message;
+
+        private Record(long offset, Message message) {
+            this.offset = offset;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Tracks which records are committed, the checkpoint never passes one that is not.
+     */
+    private static class Progress {
+        private final File checkpointFile;
+        private final DrainMetrics.Store metrics;
+        private final TreeSet<Long> outstanding = new TreeSet<>();
+        private long readOffset;
+        private long checkpointed = -1;
+        private long lastCheckpoint;
+        private long sent;
+        private Exception failure;
+
+        private Progress(File checkpointFile, DrainMetrics.Store metrics) {
+            this.checkpointFile = checkpointFile;
+            this.metrics = metrics;
+        }
+
+        private synchronized void read(long offset) {
+            readOffset = offset;
+        }
+
+        private synchronized void dispatched(Record record, long nextOffset) {
+            outstanding.add(record.offset);
+            readOffset = nextOffset;
+        }
+
+        private void committed(List<Record> records) throws IOException {
+            long bytes = 0;
+            for (Record record : records) {
+                bytes += record.message.getSize();
+            }
+            metrics.forwarded(records.size(), bytes);
+            synchronized (this) {
+                for (Record record : records) {
+                    outstanding.remove(record.offset);
+                }
+                sent += records.size();
+                if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL_MILLIS) {
+                    checkpoint();
+                }
+            }
+        }
+
+        private synchronized void checkpoint() throws IOException {
+            if (readOffset == 0) {
+                // the spool could not even be opened
+                return;
+            }
+            long offset = outstanding.isEmpty() ? readOffset : outstanding.first();
+            if (offset != checkpointed) {
+                writeCheckpoint(checkpointFile, offset);
+                checkpointed = offset;
+            }
+            lastCheckpoint = System.currentTimeMillis();
+        }
+
+        private synchronized void failed(Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        private synchronized void checkFailure() throws Exception {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private class Partition implements Runnable {
+        private final Progress progress;
+        private final BlockingQueue<Record> records = new ArrayBlockingQueue<>(2 * batchSize);
+        private volatile boolean finished;
+
+        private Partition(Progress progress) {
+            this.progress = progress;
+        }
+
+        private void finish() {
+            finished = true;
+        }
+
+        public void run() {
+            final List<Record> batch = new ArrayList<>(batchSize);
+            final MessageForwarder forwarder = new MessageForwarder(compressor != null ? DrainConnector.withWireOptions(brokerUrl) : brokerUrl, username, password);
+            forwarder.setCompressor(compressor);
+            try {
+                forwarder.start();
+                while (true) {
+                    Record record = records.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (record == null) {
+                        if (finished && records.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    batch.add(record);
+                    records.drainTo(batch, batchSize - 1);
+                    for (Record next : batch) {
+                        forwarder.send(next.message);
+                    }
+                    forwarder.commit();
+                    progress.committed(batch);
+                    batch.clear();
+                }
+            } catch (Exception e) {
+                log.warn(String.format("Importing to %s failed: %s", brokerUrl, e));
+                progress.failed(e);
+            } finally {
+                try {
+                    forwarder.close();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.apache.activemq.broker.BrokerRegistry;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.ProducerBrokerExchange;
+import org.apache.activemq.broker.TransportConnector;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerInfo;
+import org.apache.activemq.state.ProducerState;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_ENGINE;
+
+/**
+ * Drains a generated store with both engines into a local mesh broker, so a JVM recording class-data
+ * sharing archives sees the classes a real drain loads. Run it once at image build time:
+ *
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=drain.jsa -cp ... org.jboss.ce.amq.drain.StartupTraining
+ * java -XX:SharedArchiveFile=drain.jsa -cp ... org.jboss.ce.amq.drain.BrokerServiceDrainer
+ * </pre>
+ *
+ * Before Java 13, the same run with -XX:DumpLoadedClassList gives the class list for -Xshare:dump.
+ * Other amq.drainer.* settings apply as they would at drain time, so train with the ones the pod uses.
+ */
+public class StartupTraining {
+    private static final Logger log = LoggerFactory.getLogger(StartupTraining.class);
+
+    private static final int MESSAGES = 200;
+
+    public static void main(String[] args) throws Exception {
+        final long start = System.currentTimeMillis();
+        final File workDir = Files.createTempDirectory("drain-training").toFile();
+        final BrokerService mesh = new BrokerService();
+        mesh.setBrokerName("training-mesh");
+        mesh.setPersistent(false);
+        mesh.setUseJmx(false);
+        mesh.setAdvisorySupport(false);
+        TransportConnector tcp = mesh.addConnector("tcp://localhost:0");
+        mesh.start();
+        // keeps vm:// lookups of the drain brokers away from the mesh
+        BrokerRegistry.getInstance().unbind(mesh.getBrokerName());
+
+        final String engine = System.getProperty(AMQ_DRAINER_ENGINE);
+        try {
+            String meshURL = "static:(" + tcp.getPublishableConnectString() + ")";
+            for (String trained : new String[]{"broker", "journal"}) {
+                File dataDir = new File(workDir, trained);
+                populate(new File(dataDir, "kahadb"));
+                System.setProperty(AMQ_DRAINER_ENGINE, trained);
+                new BrokerServiceDrainer(dataDir.getAbsolutePath(), meshURL).drain();
+            }
+        } finally {
+            if (engine == null) {
+                System.clearProperty(AMQ_DRAINER_ENGINE);
+            } else {
+                System.setProperty(AMQ_DRAINER_ENGINE, engine);
+            }
+            mesh.stop();
+            mesh.waitUntilStopped();
+            delete(workDir);
+        }
+        log.info(String.format("Startup training finished in %s ms.", System.currentTimeMillis() - start));
+    }
+
+    private static void populate(File kahaDbDir) throws Exception {
+        BrokerService source = new BrokerService();
+        source.setBrokerName("training-source");
+        source.setUseJmx(false);
+        source.setAdvisorySupport(false);
+        source.setDataDirectoryFile(kahaDbDir.getParentFile());
+        KahaDBPersistenceAdapter adapter = new KahaDBPersistenceAdapter();
+        adapter.setDirectory(kahaDbDir);
+        source.setPersistenceAdapter(adapter);
+        source.start();
+        try {
+            ProducerBrokerExchange exchange = new ProducerBrokerExchange();
+            exchange.setConnectionContext(source.getAdminConnectionContext());
+            exchange.setProducerState(new ProducerState(new ProducerInfo()));
+            ActiveMQTextMessage message = new ActiveMQTextMessage();
+            message.setPersistent(true);
+            message.setText("training");
+            message.setDestination(new ActiveMQQueue("TRAINING.A,TRAINING.B"));
+            for (int i = 0; i < MESSAGES; i++) {
+                ActiveMQTextMessage copy = (ActiveMQTextMessage) message.copy();
+                copy.setMessageId(new MessageId("training:1:1:1:" + i));
+                source.getBroker().send(exchange, copy);
+            }
+        } finally {
+            source.stop();
+            source.waitUntilStopped();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            log.debug("Cannot delete " + file);
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.store.kahadb.disk.journal.Journal;
+import org.apache.activemq.store.kahadb.disk.journal.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.jboss.ce.amq.drain.DrainMetrics.field;
+import static org.jboss.ce.amq.drain.DrainMetrics.quote;
+
+/**
+ * What a drain would find in the stores of a data directory, taken from their journals without starting
+ * a broker, see {@link KahaDBJournal}. The stores are replayed in parallel and without taking their lock,
+ * so an inventory can also be taken while the broker still runs, of what it has written so far.
+ *
+ * The drain time is estimated from the throughput of the last drain, as recorded in its summary, or from
+ * a configured rate. Expired messages are left out of it, the drain purges them.
+ */
+public class StoreInventory {
+    private static final Logger log = LoggerFactory.getLogger(StoreInventory.class);
+
+    // assumed when there is neither a configured rate nor an earlier drain to measure it
+    static final double DEFAULT_MESSAGES_PER_SECOND = 1000;
+
+    private static final Pattern MESSAGES_PER_SECOND = Pattern.compile("\"messagesPerSecond\":([0-9.E-]+)");
+    private static final Pattern BYTES_PER_SECOND = Pattern.compile("\"bytesPerSecond\":([0-9.E-]+)");
+    private static final Pattern FORWARDED_MESSAGES = Pattern.compile("\"forwardedMessages\":([0-9]+)");
+
+    private final List<Store> stores;
+    private final long scanMillis;
+    private double messagesPerSecond = DEFAULT_MESSAGES_PER_SECOND;
+    private double bytesPerSecond;
+    private String throughputSource = "default";
+
+    private StoreInventory(List<Store> stores, long scanMillis) {
+        this.stores = stores;
+        this.scanMillis = scanMillis;
+    }
+
+    /**
+     * Replays the journals of the given stores, as many at once as there are threads.
+     */
+    public static StoreInventory take(List<File> kahaDbDirs, int threads) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(kahaDbDirs.size(), threads)), new DaemonThreadFactory("KahaDB inventory"));
+        try {
+            final Map<File, Future<Store>> scans = new LinkedHashMap<>();
+            for (final File kahaDbDir : kahaDbDirs) {
+                scans.put(kahaDbDir, executor.submit(new Callable<Store>() {
+                    public Store call() throws Exception {
+                        return scan(kahaDbDir, start);
+                    }
+                }));
+            }
+            List<Store> stores = new ArrayList<>();
+            for (Map.Entry<File, Future<Store>> entry : scans.entrySet()) {
+                try {
+                    stores.add(entry.getValue().get());
+                } catch (ExecutionException e) {
+                    log.warn(String.format("Cannot take the inventory of %s: %s", entry.getKey(), e.getCause()));
+                    Store store = new Store(entry.getKey());
+                    store.error = String.valueOf(e.getCause());
+                    stores.add(store);
+                }
+            }
+            return new StoreInventory(stores, System.currentTimeMillis() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param now messages which expire before are counted as expired
+     */
+    static Store scan(File kahaDbDir, long now) throws IOException {
+        long start = System.currentTimeMillis();
+        Store store = new Store(kahaDbDir);
+        store.indexBytes = length(new File(kahaDbDir, "db.data")) + length(new File(kahaDbDir, "db.redo"));
+        if (KahaDBJournal.hasJournalFiles(kahaDbDir)) {
+            KahaDBJournal journal = new KahaDBJournal(kahaDbDir, OpenWireFormat.DEFAULT_STORE_VERSION);
+            journal.setTrackExpiration(true);
+            journal.open(false);
+            try {
+                Map<ActiveMQQueue, LinkedHashMap<String, Location>> live = journal.recoverLiveMessages();
+                for (Map.Entry<ActiveMQQueue, LinkedHashMap<String, Location>> entry : live.entrySet()) {
+                    Destination destination = new Destination();
+                    for (Map.Entry<String, Location> message : entry.getValue().entrySet()) {
+                        long expiration = journal.getExpiration(message.getKey());
+                        destination.add(message.getValue().getSize(), journal.getPriority(message.getKey()), expiration > 0 && expiration < now);
+                    }
+                    store.destinations.put(entry.getKey().getPhysicalName(), destination);
+                }
+                store.preparedTransactions = journal.getPreparedTransactions();
+            } finally {
+                journal.close();
+            }
+            store.journalBytes = journalBytes(kahaDbDir);
+        }
+        store.scanMillis = System.currentTimeMillis() - start;
+        return store;
+    }
+
+    /**
+     * Throughput to estimate the drain time with.
+     *
+     * @param bytesPerSecond 0 to estimate from the message count only
+     */
+    public void setThroughput(double messagesPerSecond, double bytesPerSecond, String source) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.throughputSource = source;
+    }
+
+    /**
+     * @return messages and bytes per second of the drain recorded in a summary, see {@link DrainMetrics#writeSummary(File)},
+     * null if there is none or it forwarded nothing
+     */
+    public static double[] readThroughput(File summary) {
+        if (!summary.isFile()) {
+            return null;
+        }
+        String json;
+        try {
+            json = new String(Files.readAllBytes(summary.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warn(String.format("Cannot read drain summary %s: %s", summary, e));
+            return null;
+        }
+        // the totals come first, ahead of the stores
+        Matcher forwarded = FORWARDED_MESSAGES.matcher(json);
+        Matcher messages = MESSAGES_PER_SECOND.matcher(json);
+        Matcher bytes = BYTES_PER_SECOND.matcher(json);
+        if (!forwarded.find() || Long.parseLong(forwarded.group(1)) == 0 || !messages.find() || !bytes.find()) {
+            return null;
+        }
+        return new double[]{Double.parseDouble(messages.group(1)), Double.parseDouble(bytes.group(1))};
+    }
+
+    public List<Store> getStores() {
+        return Collections.unmodifiableList(stores);
+    }
+
+    public long getMessages() {
+        long messages = 0;
+        for (Store store : stores) {
+            messages += store.getMessages();
+        }
+        return messages;
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Store store : stores) {
+            bytes += store.getBytes();
+        }
+        return bytes;
+    }
+
+    public long getExpired() {
+        long expired = 0;
+        for (Store store : stores) {
+            expired += store.getExpired();
+        }
+        return expired;
+    }
+
+    public long getScanMillis() {
+        return scanMillis;
+    }
+
+    /**
+     * @return time to forward the messages which have not expired, bound by the message and, if known, the byte rate
+     */
+    public long getEstimatedDrainMillis() {
+        long messages = 0;
+        long bytes = 0;
+        for (Store store : stores) {
+            for (Destination destination : store.destinations.values()) {
+                messages += destination.messages - destination.expired;
+                bytes += destination.bytes - destination.expiredBytes;
+            }
+        }
+        double seconds = messagesPerSecond > 0 ? messages / messagesPerSecond : 0;
+        if (bytesPerSecond > 0) {
+            seconds = Math.max(seconds, bytes / bytesPerSecond);
+        }
+        return (long) Math.ceil(seconds * 1000);
+    }
+
+    public void report() {
+        for (Store store : stores) {
+            if (store.error != null) {
+                log.warn(String.format("Store %s: no inventory, %s", store.name, store.error));
+                continue;
+            }
+            log.info(String.format("Store %s: %s msgs, %s bytes, %s expired, journal %s bytes, index %s bytes, %s prepared transactions, scanned in %s ms.",
+                store.name, store.getMessages(), store.getBytes(), store.getExpired(), store.journalBytes, store.indexBytes, store.preparedTransactions, store.scanMillis));
+            for (Map.Entry<String, Destination> entry : store.destinations.entrySet()) {
+                Destination destination = entry.getValue();
+                log.info(String.format("  %s: %s msgs, %s bytes, %s expired, priorities %s", entry.getKey(), destination.messages, destination.bytes,
+                    destination.expired, destination.getPriorities()));
+            }
+        }
+        log.info(String.format("Inventory of %s stores in %s ms: %s msgs, %s bytes, %s expired. Estimated drain time %s s at %.0f msgs/s%s (%s).",
+            stores.size(), scanMillis, getMessages(), getBytes(), getExpired(), (getEstimatedDrainMillis() + 999) / 1000, messagesPerSecond,
+            bytesPerSecond > 0 ? String.format(" and %.0f bytes/s", bytesPerSecond) : "", throughputSource));
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        field(json, "scanMillis", scanMillis).append(',');
+        field(json, "messages", getMessages()).append(',');
+        field(json, "bytes", getBytes()).append(',');
+        field(json, "expiredMessages", getExpired()).append(',');
+        field(json, "messagesPerSecond", messagesPerSecond).append(',');
+        field(json, "bytesPerSecond", bytesPerSecond).append(',');
+        field(json, "throughputSource", throughputSource).append(',');
+        field(json, "estimatedDrainMillis", getEstimatedDrainMillis()).append(',');
+        json.append("\"stores\":[");
+        for (int i = 0; i < stores.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            stores.get(i).toJson(json);
+        }
+        return json.append("]}").toString();
+    }
+
+    public void write(File file) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+            writer.write('\n');
+            log.info(String.format("Inventory written to %s.", file));
+        } catch (IOException e) {
+            log.warn(String.format("Cannot write inventory to %s: %s", file, e));
+        }
+    }
+
+    private static long length(File file) {
+        return file.isFile() ? file.length() : 0;
+    }
+
+    private static long journalBytes(File kahaDbDir) {
+        File[] files = kahaDbDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(Journal.DEFAULT_FILE_PREFIX) && name.endsWith(Journal.DEFAULT_FILE_SUFFIX);
+            }
+        });
+        long bytes = 0;
+        for (File file : files != null ? files : new File[0]) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Live queue messages of a single KahaDB instance.
+     */
+    public static class Store {
+        private final String name;
+        private final Map<String, Destination> destinations = new TreeMap<>();
+        private long journalBytes;
+        private long indexBytes;
+        private int preparedTransactions;
+        private long scanMillis;
+        private String error;
+
+        private Store(File kahaDbDir) {
+            this.name = kahaDbDir.getName();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Map<String, Destination> getDestinations() {
+            return Collections.unmodifiableMap(destinations);
+        }
+
+        public long getMessages() {
+            long messages = 0;
+            for (Destination destination : destinations.values()) {
+                messages += destination.messages;
+            }
+            return messages;
+        }
+
+        /**
+         * @return size of the journal records of the messages
+         */
+        public long getBytes() {
+            long bytes = 0;
+            for (Destination destination : destinations.values()) {
+                bytes += destination.bytes;
+            }
+            return bytes;
+        }
+
+        public long getExpired() {
+            long expired = 0;
+            for (Destination destination : destinations.values()) {
+                expired += destination.expired;
+            }
+            return expired;
+        }
+
+        /**
+         * @return size of the db-*.log files, live and dead records
+         */
+        public long getJournalBytes() {
+            return journalBytes;
+        }
+
+        /**
+         * @return size of db.data and db.redo
+         */
+        public long getIndexBytes() {
+            return indexBytes;
+        }
+
+        public int getPreparedTransactions() {
+            return preparedTransactions;
+        }
+
+        /**
+         * @return why the store could not be read, null if it could
+         */
+        public String getError() {
+            return error;
+        }
+
+        private void toJson(StringBuilder json) {
+            json.append('{');
+            field(json, "name", name).append(',');
+            field(json, "messages", getMessages()).append(',');
+            field(json, "bytes", getBytes()).append(',');
+            field(json, "expiredMessages", getExpired()).append(',');
+            field(json, "journalBytes", journalBytes).append(',');
+            field(json, "indexBytes", indexBytes).append(',');
+            field(json, "preparedTransactions", preparedTransactions).append(',');
+            field(json, "scanMillis", scanMillis).append(',');
+            field(json, "error", error).append(',');
+            json.append("\"destinations\":{");
+            boolean first = true;
+            for (Map.Entry<String, Destination> entry : destinations.entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                quote(json, entry.getKey()).append(':');
+                entry.getValue().toJson(json);
+                first = false;
+            }
+            json.append("}}");
+        }
+    }
+
+    /**
+     * Live messages of a single queue.
+     */
+    public static class Destination {
+        private long messages;
+        private long bytes;
+        private long expired;
+        private long expiredBytes;
+        private final long[] priorities = new long[10];
+
+        private void add(int size, int priority, boolean isExpired) {
+            messages++;
+            bytes += size;
+            priorities[Math.max(0, Math.min(9, priority))]++;
+            if (isExpired) {
+                expired++;
+                expiredBytes += size;
+            }
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getExpired() {
+            return expired;
+        }
+
+        /**
+         * @return messages per JMS priority, only the priorities which have any
+         */
+        public Map<String, Long> getPriorities() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (int i = priorities.length - 1; i >= 0; i--) {
+                if (priorities[i] > 0) {
+                    counts.put(String.valueOf(i), priorities[i]);
+                }
+            }
+            return counts;
+        }
+
+        private void toJson(StringBuilder json) {
+            json.append('{');
+            field(json, "messages", messages).append(',');
+            field(json, "bytes", bytes).append(',');
+            field(json, "expiredMessages", expired).append(',');
+            json.append("\"priorities\":");
+            DrainMetrics.object(json, getPriorities()).append('}');
+        }
+    }
+}
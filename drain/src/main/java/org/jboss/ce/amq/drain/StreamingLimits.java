@@ -0,0 +1,132 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.Destination;
+import org.apache.activemq.broker.region.Queue;
+import org.apache.activemq.broker.region.RegionBroker;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.store.MessageStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Message memory budget of a drain broker in streaming mode.
+ *
+ * The budget is the memory limit of the broker, so the queue cursors stop paging in once it is used up
+ * and the bridge only gets more messages as it acks the ones it has. Page-in windows and the bridge
+ * prefetch are sized from the average message size of the store, so both fit in the budget.
+ */
+public class StreamingLimits {
+    private static final Logger log = LoggerFactory.getLogger(StreamingLimits.class);
+
+    static final int MIN_PAGE_SIZE = 10;
+    static final int MAX_PAGE_SIZE = 1000;
+    static final int MIN_PREFETCH = 10;
+    static final int MAX_PREFETCH = 1000;
+    static final long MIN_MEMORY_LIMIT = 1024 * 1024;
+
+    // shares of the budget, the rest is headroom for the DLQ and broker internals
+    private static final double PAGE_IN_SHARE = 0.5;
+    private static final double PREFETCH_SHARE = 0.25;
+    private static final int CURSOR_HIGH_WATER_MARK = 70;
+
+    private final long memoryLimit;
+    private volatile int prefetch = MIN_PREFETCH;
+
+    public StreamingLimits(long memoryLimit) {
+        this.memoryLimit = Math.max(MIN_MEMORY_LIMIT, memoryLimit);
+    }
+
+    /**
+     * @param brokers drain brokers running at the same time, they share the heap
+     */
+    public static StreamingLimits forHeap(int heapPercent, int brokers) {
+        return new StreamingLimits(Runtime.getRuntime().maxMemory() / 100 * heapPercent / Math.max(1, brokers));
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @return bridge prefetch per queue, known once {@link #apply} has seen the store
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Before the broker starts, queues are created with the smallest page-in window.
+     */
+    public void configure(BrokerService broker, PolicyEntry entry) {
+        broker.getSystemUsage().getMemoryUsage().setLimit(memoryLimit);
+        entry.setMaxPageSize(MIN_PAGE_SIZE);
+        entry.setMaxBrowsePageSize(MIN_PAGE_SIZE);
+        entry.setCursorMemoryHighWaterMark(CURSOR_HIGH_WATER_MARK);
+        // nothing is produced while draining, every message is read from the store on demand
+        entry.setUseCache(false);
+    }
+
+    /**
+     * Once the store is loaded, sizes the page-in window of each queue and the bridge prefetch.
+     */
+    public void apply(BrokerService broker) throws Exception {
+        int queues = 0;
+        long messages = 0;
+        long bytes = 0;
+        RegionBroker regionBroker = (RegionBroker) broker.getRegionBroker();
+        for (Destination destination : regionBroker.getQueueRegion().getDestinationMap().values()) {
+            MessageStore store = destination.getMessageStore();
+            if (store != null && store.getMessageCount() > 0) {
+                queues++;
+                messages += store.getMessageCount();
+                bytes += store.getMessageSize();
+            }
+        }
+        // memory usage counts a message as at least the minimum size, however small it is on disk
+        long messageSize = Math.max(Message.DEFAULT_MINIMUM_MESSAGE_SIZE, messages > 0 ? bytes / messages : 0);
+        int pageSize = fit(PAGE_IN_SHARE, messageSize, queues, MIN_PAGE_SIZE, MAX_PAGE_SIZE);
+        prefetch = fit(PREFETCH_SHARE, messageSize, queues, MIN_PREFETCH, MAX_PREFETCH);
+
+        for (Destination destination : regionBroker.getQueueRegion().getDestinationMap().values()) {
+            if (destination instanceof Queue) {
+                ((Queue) destination).setMaxPageSize(pageSize);
+                ((Queue) destination).setMaxBrowsePageSize(pageSize);
+            }
+        }
+        log.info(String.format("Streaming drain of %s: memory limit %s KB, %s queues, average message %s bytes, page size %s, bridge prefetch %s.",
+            broker.getBrokerName(), memoryLimit / 1024, queues, messageSize, pageSize, prefetch));
+    }
+
+    /**
+     * @return messages per queue that fit in the given share of the budget
+     */
+    int fit(double share, long messageSize, int queues, int min, int max) {
+        long fits = (long) (memoryLimit * share) / Math.max(1, messageSize) / Math.max(1, queues);
+        return (int) Math.max(min, Math.min(max, fits));
+    }
+}
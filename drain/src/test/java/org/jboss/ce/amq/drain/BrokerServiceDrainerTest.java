@@ -24,32 +24,61 @@
 
 package org.jboss.ce.amq.drain;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.net.URI;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.MapMessage;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerPlugin;
 import org.apache.activemq.broker.BrokerRegistry;
 import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.ProducerBrokerExchange;
 import org.apache.activemq.broker.TransportConnector;
+import org.apache.activemq.broker.region.Queue;
 import org.apache.activemq.broker.region.RegionBroker;
+import org.apache.activemq.command.ActiveMQBytesMessage;
 import org.apache.activemq.command.ActiveMQQueue;
 import org.apache.activemq.command.ActiveMQTextMessage;
-import org.apache.activemq.command.DiscoveryEvent;
 import org.apache.activemq.command.Message;
 import org.apache.activemq.command.MessageId;
 import org.apache.activemq.command.ProducerInfo;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.plugin.StatisticsBrokerPlugin;
 import org.apache.activemq.state.ProducerState;
 import org.apache.activemq.store.PersistenceAdapter;
 import org.apache.activemq.store.kahadb.FilteredKahaDBPersistenceAdapter;
 import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
 import org.apache.activemq.store.kahadb.MultiKahaDBPersistenceAdapter;
-import org.apache.activemq.transport.discovery.DiscoveryAgent;
-import org.apache.activemq.transport.discovery.DiscoveryAgentFactory;
-import org.apache.activemq.transport.discovery.DiscoveryListener;
-import org.apache.activemq.util.FactoryFinder;
+import org.apache.activemq.thread.TaskRunnerFactory;
+import org.apache.activemq.util.ByteSequence;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -59,7 +88,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_DLQ_PROCESS_EXPIRED;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_ADAPTIVE_FLOW;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_BRIDGES;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_CHECKPOINT;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_CRITICAL_DESTINATIONS;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_DEADLINE;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_DEADLINE_RESERVE;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_ENGINE;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_FANOUT;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_GROUP_LANES;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_JOURNAL_BATCH_SIZE;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_LEAN;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_LEAN_THREADS;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_PARALLELISM;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_PEER_RATE;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_PEER_TIMEOUT;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_PEER_USAGE_CEILING;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_SPOOL_BATCH_SIZE;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_SPOOL_FALLBACK;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_SPOOL_IMPORT;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_SPOOL_PRODUCERS;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_STREAMING;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_STREAMING_MEMORY_LIMIT;
+import static org.jboss.ce.amq.drain.BrokerServiceDrainer.AMQ_DRAINER_WIRE_COMPRESSION;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class BrokerServiceDrainerTest {
    private static final Logger log = LoggerFactory.getLogger(BrokerServiceDrainerTest.class);
@@ -67,10 +122,12 @@ public class BrokerServiceDrainerTest {
    @Rule
    public TemporaryFolder folder= new TemporaryFolder();
 
-   final static FactoryFinder.ObjectFactory fallback = FactoryFinder.getObjectFactory();
-
    BrokerService meshBroker;
    static String meshUrl;
+   // more peers announced by the fake discovery agent
+   static final List<String> otherMeshUrls = new CopyOnWriteArrayList<>();
+   // the fake discovery agent announces no peer at all
+   static volatile boolean meshDown;
 
    @Before
    public void initMeshBrokerTarget() throws Exception {
@@ -79,6 +136,8 @@ public class BrokerServiceDrainerTest {
       meshBroker.setPersistent(false);
       meshBroker.setUseJmx(false);
       meshBroker.setAdvisorySupport(false);
+      // publishes the usage the drain rate limiter backs off on
+      meshBroker.setPlugins(new BrokerPlugin[]{new StatisticsBrokerPlugin()});
       TransportConnector tcp = meshBroker.addConnector("tcp://localhost:0");
       meshBroker.start();
       meshUrl = tcp.getPublishableConnectString();
@@ -88,6 +147,7 @@ public class BrokerServiceDrainerTest {
 
    @After
    public void stopMeshBroker() throws Exception {
+      meshDown = false;
       if (meshBroker != null) {
          meshBroker.stop();
       }
@@ -95,48 +155,14 @@ public class BrokerServiceDrainerTest {
 
    @BeforeClass
    public static void setUpDiscoveryKubeAgent() throws Exception {
-      FactoryFinder.setObjectFactory(new FactoryFinder.ObjectFactory() {
-         @Override
-         public Object create(String s) throws IllegalAccessException, InstantiationException, IOException, ClassNotFoundException {
-            log.info("Create: " + s);
-            if (s.endsWith("kube")) {
-               return new DiscoveryAgentFactory() {
-                  @Override
-                  protected DiscoveryAgent doCreateDiscoveryAgent(URI uri) throws IOException {
-                     final DiscoveryListener[] listener = new DiscoveryListener[1];
-                     return new DiscoveryAgent() {
-                        @Override
-                        public void setDiscoveryListener(DiscoveryListener discoveryListener) {
-                           listener[0] = discoveryListener;
-                        }
-
-                        @Override
-                        public void registerService(String s) throws IOException {
-
-                        }
-
-                        @Override
-                        public void serviceFailed(DiscoveryEvent discoveryEvent) throws IOException {
-
-                        }
-
-                        @Override
-                        public void start() throws Exception {
-                           DiscoveryEvent event = new DiscoveryEvent();
-                           event.setServiceName(getMeshUrl());
-                           listener[0].onServiceAdd(event);
-                        }
-
-                        @Override
-                        public void stop() throws Exception {
-
-                        }
-                     };
-                  }
-               };
-            } else {
-               return fallback.create(s);
+      KubeDiscoveryFixture.install(new KubeDiscoveryFixture.Peers() {
+         public List<String> list() {
+            List<String> peers = new ArrayList<>();
+            if (!meshDown) {
+               peers.add(getMeshUrl());
+               peers.addAll(otherMeshUrls);
             }
+            return peers;
          }
       });
    }
@@ -291,6 +317,132 @@ public class BrokerServiceDrainerTest {
    }
 
 
+   @org.junit.Test
+   public void testDrainMultiKahaDbInParallel() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-mkahadb-parallel");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final MultiKahaDBPersistenceAdapter multiKahaDBPersistenceAdapter = new MultiKahaDBPersistenceAdapter();
+      multiKahaDBPersistenceAdapter.setDirectory(kahaDataDir);
+
+      ArrayList<FilteredKahaDBPersistenceAdapter> adapters = new ArrayList<>();
+
+      FilteredKahaDBPersistenceAdapter template = new FilteredKahaDBPersistenceAdapter();
+      template.setPersistenceAdapter(new KahaDBPersistenceAdapter());
+      template.setPerDestination(true);
+      adapters.add(template);
+      multiKahaDBPersistenceAdapter.setFilteredPersistenceAdapters(adapters);
+      brokerToDrain.setPersistenceAdapter(multiKahaDBPersistenceAdapter);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+
+      assertEquals("all messages present", 20,
+                   ((RegionBroker)brokerToDrain.getRegionBroker()).getDestinationStatistics().getMessages().getCount());
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      log.info("do parallel drain..");
+
+      System.setProperty(AMQ_DRAINER_PARALLELISM, "2");
+      try {
+         BrokerServiceDrainer.main(new String[]{dataDir.getAbsolutePath(), "mkahadb"});
+      } finally {
+         System.clearProperty(AMQ_DRAINER_PARALLELISM);
+      }
+
+      assertEquals("all messages forwarded to mesh", 20,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+   }
+
+
+   @org.junit.Test
+   public void testDrainMultiKahaDbLean() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-mkahadb-lean");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final MultiKahaDBPersistenceAdapter multiKahaDBPersistenceAdapter = new MultiKahaDBPersistenceAdapter();
+      multiKahaDBPersistenceAdapter.setDirectory(kahaDataDir);
+
+      ArrayList<FilteredKahaDBPersistenceAdapter> adapters = new ArrayList<>();
+
+      FilteredKahaDBPersistenceAdapter template = new FilteredKahaDBPersistenceAdapter();
+      template.setPersistenceAdapter(new KahaDBPersistenceAdapter());
+      template.setPerDestination(true);
+      adapters.add(template);
+      multiKahaDBPersistenceAdapter.setFilteredPersistenceAdapters(adapters);
+      brokerToDrain.setPersistenceAdapter(multiKahaDBPersistenceAdapter);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      log.info("do lean drain..");
+
+      // one store after the other, the shared task pool has to outlive the first drain broker
+      System.setProperty(AMQ_DRAINER_LEAN, "true");
+      System.setProperty(AMQ_DRAINER_LEAN_THREADS, "2");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_LEAN);
+         System.clearProperty(AMQ_DRAINER_LEAN_THREADS);
+      }
+
+      assertEquals("all messages forwarded to mesh", 20,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertTrue("first message time measured", drainer.getMetrics().getTimeToFirstMessageMillis() >= 0);
+      assertTrue("peak threads measured", drainer.getMetrics().getPeakThreads() > 0);
+   }
+
+   @org.junit.Test
+   public void testLeanTaskWaitingOnAnotherTask() throws Exception {
+      LeanRuntime lean = new LeanRuntime(1, false);
+      try {
+         final TaskRunnerFactory tasks = lean.getTaskRunnerFactory();
+         final CountDownLatch inner = new CountDownLatch(1);
+         final CountDownLatch outer = new CountDownLatch(1);
+         // the only pool thread waits on a task it started, as a broker task waiting on a store task does
+         tasks.execute(new Runnable() {
+            public void run() {
+               tasks.execute(new Runnable() {
+                  public void run() {
+                     inner.countDown();
+                  }
+               });
+               try {
+                  if (inner.await(5, TimeUnit.SECONDS)) {
+                     outer.countDown();
+                  }
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               }
+            }
+         });
+         assertTrue("inner task ran while the outer one waited", outer.await(10, TimeUnit.SECONDS));
+      } finally {
+         lean.close();
+      }
+   }
+
    @org.junit.Test
    public void testDrainIgnoresExpired() throws Exception {
       File dataDir = folder.newFolder("data-dir");
@@ -332,6 +484,1324 @@ public class BrokerServiceDrainerTest {
 
    }
 
+   @org.junit.Test
+   public void testPurgeExpiredToDlqBeforeBridging() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-purge");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain, 2000);
+      populateBroker(brokerToDrain, 0);
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      // allow expiry
+      TimeUnit.SECONDS.sleep(2);
+      log.info("do drain with expiry pass..");
+
+      System.setProperty(AMQ_DRAINER_DLQ_PROCESS_EXPIRED, "true");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_DLQ_PROCESS_EXPIRED);
+      }
+
+      DrainMetrics.Store store = drainer.getMetrics().store("kahadb");
+      assertEquals("expired messages purged", 20, store.getExpired());
+      assertEquals("expired per destination", 10, store.getExpiredPerDestination().get("ONE.A").longValue());
+      assertEquals("expired per destination", 10, store.getExpiredPerDestination().get("TWO.A").longValue());
+
+      // the composite send stored each message id in both queues, the DLQ keeps one copy per id
+      assertEquals("live messages and the DLQ copies of expired ones forwarded to mesh", 30,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertEquals("expired messages in the mesh DLQ", 10,
+                   meshBroker.getDestination(new ActiveMQQueue("ActiveMQ.DLQ")).getDestinationStatistics().getEnqueues().getCount());
+   }
+
+   @org.junit.Test
+   public void testDrainKahaDbFromJournal() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-journal");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain, 2000);
+      populateBroker(brokerToDrain, 0);
+
+      assertEquals("all messages present", 40,
+                   ((RegionBroker)brokerToDrain.getRegionBroker()).getDestinationStatistics().getMessages().getCount());
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      // allow expiry
+      TimeUnit.SECONDS.sleep(2);
+      log.info("do journal drain..");
+
+      System.setProperty(AMQ_DRAINER_ENGINE, "journal");
+      System.setProperty(AMQ_DRAINER_DLQ_PROCESS_EXPIRED, "false");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_ENGINE);
+         System.clearProperty(AMQ_DRAINER_DLQ_PROCESS_EXPIRED);
+      }
+
+      assertEquals("all non expired messages forwarded to mesh", 20,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+
+      assertEquals("forwarded messages metered", 20, drainer.getMetrics().getForwardedMessages());
+      assertEquals("nothing remaining", 0, drainer.getMetrics().getRemainingMessages());
+      assertTrue("summary written", new File(dataDir, "drain-summary.json").isFile());
+
+      log.info("do broker drain of the journal drained store..");
+      BrokerServiceDrainer.main(new String[]{dataDir.getAbsolutePath()});
+
+      assertEquals("nothing left to forward", 20,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+   }
+
+   @org.junit.Test
+   public void testDrainMetricsExposed() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-metrics");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      System.setProperty(AMQ_DRAINER_ENGINE, "journal");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_ENGINE);
+      }
+
+      // exposed again the way it is during a drain
+      DrainMetrics metrics = drainer.getMetrics();
+      metrics.start();
+      DrainMetricsServer server = new DrainMetricsServer(metrics, 0);
+      server.start();
+      Locale locale = Locale.getDefault();
+      Locale.setDefault(Locale.GERMANY);
+      try {
+         MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+         Set<ObjectName> names = mbeans.queryNames(new ObjectName("org.jboss.ce.amq.drain:type=Drainer,*"), null);
+         assertEquals("one drainer registered", 1, names.size());
+         ObjectName name = names.iterator().next();
+         assertEquals("forwarded over JMX", 20L, mbeans.getAttribute(name, "ForwardedMessages"));
+         assertEquals("remaining over JMX", 0L, mbeans.getAttribute(name, "RemainingMessages"));
+         assertTrue("summary over JMX", ((String) mbeans.getAttribute(name, "Summary")).contains("\"forwardedMessages\":20"));
+
+         String base = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort();
+         String text = fetch(base + "/");
+         assertTrue("forwarded over HTTP", text.contains("drain_forwarded_messages 20\n"));
+         assertTrue("status as a label", text.contains("drain_store_status{store=\"kahadb\",status=\"DONE\"} 1\n"));
+         for (String line : text.split("\n")) {
+            // every sample value a number, rates included
+            Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+         }
+         assertTrue("JSON over HTTP", fetch(base + "/json").startsWith("{\"name\":"));
+
+         DrainMetrics odd = new DrainMetrics("odd");
+         odd.store("a\\b\"c\nd").setBacklog(1, 0, Collections.singletonMap("Q\"1", 1L));
+         String oddText = odd.toText();
+         assertTrue(oddText, oddText.contains("drain_store_status{store=\"a\\\\b\\\"c\\nd\",status=\"PENDING\"} 1\n"));
+         assertTrue(oddText, oddText.contains("destination=\"Q\\\"1\"} 1\n"));
+      } finally {
+         Locale.setDefault(locale);
+         server.stop();
+         metrics.stop();
+      }
+   }
+
+   private static String fetch(String url) throws IOException {
+      try (InputStream in = new URL(url).openStream()) {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         byte[] buffer = new byte[4096];
+         int read;
+         while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+         }
+         return new String(out.toByteArray(), StandardCharsets.UTF_8);
+      }
+   }
+
+   @org.junit.Test
+   public void testSkipEmptyMultiKahaDbStores() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-mkahadb-empty");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final MultiKahaDBPersistenceAdapter multiKahaDBPersistenceAdapter = new MultiKahaDBPersistenceAdapter();
+      multiKahaDBPersistenceAdapter.setDirectory(kahaDataDir);
+
+      ArrayList<FilteredKahaDBPersistenceAdapter> adapters = new ArrayList<>();
+
+      FilteredKahaDBPersistenceAdapter template = new FilteredKahaDBPersistenceAdapter();
+      template.setPersistenceAdapter(new KahaDBPersistenceAdapter());
+      template.setPerDestination(true);
+      adapters.add(template);
+      multiKahaDBPersistenceAdapter.setFilteredPersistenceAdapters(adapters);
+      brokerToDrain.setPersistenceAdapter(multiKahaDBPersistenceAdapter);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      ((Queue) brokerToDrain.getDestination(new ActiveMQQueue("TWO.A"))).purge();
+
+      assertEquals("one queue left", 10,
+                   ((RegionBroker)brokerToDrain.getRegionBroker()).getDestinationStatistics().getMessages().getCount());
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      drainer.drain();
+
+      assertEquals("all messages forwarded to mesh", 10,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      int skipped = 0;
+      for (String progress : drainer.getMetrics().getStoreProgress().values()) {
+         if (progress.startsWith(DrainMetrics.Status.SKIPPED.name())) {
+            skipped++;
+         }
+      }
+      assertEquals("empty store skipped", 1, skipped);
+   }
+
+   @org.junit.Test
+   public void testCountMessagesFromIndex() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-index");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      ProducerBrokerExchange exchange = new ProducerBrokerExchange();
+      exchange.setConnectionContext(brokerToDrain.getAdminConnectionContext());
+      exchange.setProducerState(new ProducerState(new ProducerInfo()));
+      ActiveMQTextMessage urgent = new ActiveMQTextMessage();
+      urgent.setPersistent(true);
+      urgent.setPriority((byte) 7);
+      urgent.setDestination(new ActiveMQQueue("ONE.A"));
+      urgent.setMessageId(new MessageId(idRoot + ":2:3:5:1"));
+      brokerToDrain.getBroker().send(exchange, urgent);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      Map<String, Long> counts = KahaDBIndex.countQueueMessages(kahaDataDir);
+      assertEquals("counted from the index", KahaDBJournal.countLiveMessages(kahaDataDir), counts);
+      assertEquals("ONE.A in the index", Long.valueOf(11), counts.get("ONE.A"));
+      Map<String, KahaDBIndex.Queue> queues = KahaDBIndex.readQueues(kahaDataDir, true);
+      assertEquals("highest priority read from the records of the live messages", 7, queues.get("ONE.A").getMaxPriority());
+      assertEquals("default priority without any above it", javax.jms.Message.DEFAULT_PRIORITY, queues.get("TWO.A").getMaxPriority());
+
+      System.setProperty(AMQ_DRAINER_ENGINE, "journal");
+      try {
+         new BrokerServiceDrainer(dataDir.getAbsolutePath()).drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_ENGINE);
+      }
+      assertNull("index behind the removals appended to the journal", KahaDBIndex.countQueueMessages(kahaDataDir));
+
+      final BrokerService restarted = new BrokerService();
+      restarted.setUseJmx(false);
+      restarted.setAdvisorySupport(false);
+      restarted.setBrokerName("source-index-restarted");
+      restarted.setDataDirectoryFile(dataDir);
+      final PersistenceAdapter recovered = new KahaDBPersistenceAdapter();
+      recovered.setDirectory(kahaDataDir);
+      restarted.setPersistenceAdapter(recovered);
+      restarted.start();
+      restarted.stop();
+      restarted.waitUntilStopped();
+
+      assertTrue("empty once a broker replayed the removals", KahaDBIndex.countQueueMessages(kahaDataDir).isEmpty());
+   }
+
+   @org.junit.Test
+   public void testMonitorReportsStallAndCompletion() throws Exception {
+      final DrainMetrics.Store store = new DrainMetrics("monitor").store("monitored");
+      final DrainMonitor monitor = new DrainMonitor(store, TimeUnit.SECONDS.toMillis(5), 500);
+
+      final BrokerService broker = new BrokerService();
+      broker.setUseJmx(false);
+      broker.setAdvisorySupport(false);
+      broker.setPersistent(false);
+      broker.setBrokerName("source-monitor");
+      broker.setPlugins(new BrokerPlugin[]{monitor});
+      broker.start();
+      try {
+         populateBroker(broker);
+
+         // nothing takes the messages, as with a mesh that is down
+         long deadline = System.currentTimeMillis() + 2000;
+         assertFalse("messages left at the deadline", monitor.awaitDrained(null, deadline));
+         assertEquals("stall reported for both queues", 2, store.getStalled().size());
+         assertEquals("stalled backlog", Long.valueOf(10), store.getStalled().get("ONE.A"));
+
+         final AtomicLong lastReceived = new AtomicLong();
+         Thread consumer = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  javax.jms.Connection connection = new ActiveMQConnectionFactory("vm://source-monitor?create=false").createConnection();
+                  connection.start();
+                  Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                  for (String queue : new String[]{"ONE.A", "TWO.A"}) {
+                     MessageConsumer messageConsumer = session.createConsumer(session.createQueue(queue));
+                     for (int i = 0; i < 10; i++) {
+                        messageConsumer.receive(5000);
+                     }
+                     messageConsumer.close();
+                  }
+                  lastReceived.set(System.currentTimeMillis());
+                  connection.close();
+               } catch (Exception e) {
+                  log.warn("Consumer failed", e);
+               }
+            }
+         });
+         consumer.start();
+         assertTrue("drained before the deadline", monitor.awaitDrained(null, System.currentTimeMillis() + 30000));
+         long returned = System.currentTimeMillis();
+         consumer.join();
+         assertTrue("stall cleared once the backlog moved", store.getStalled().isEmpty());
+         assertEquals("nothing remaining", 0, store.getRemaining());
+         log.info(String.format("Completion noticed %s ms after the last message.", returned - lastReceived.get()));
+         assertTrue("woken by the last ack rather than the poll", returned - lastReceived.get() < 1000);
+      } finally {
+         broker.stop();
+         broker.waitUntilStopped();
+      }
+   }
+
+   @org.junit.Test
+   public void testKahaDbProfileOverrides() throws Exception {
+      File kahaDbDir = folder.newFolder("kahadb");
+
+      KahaDBPersistenceAdapter drain = KahaDBProfile.create(kahaDbDir, KahaDBProfile.DRAIN);
+      assertFalse("no journal syncs while draining", drain.isEnableJournalDiskSyncs());
+      assertFalse(drain.isConcurrentStoreAndDispatchQueues());
+
+      System.setProperty(KahaDBProfile.OVERRIDE_PREFIX + "enableJournalDiskSyncs", "true");
+      System.setProperty(KahaDBProfile.OVERRIDE_PREFIX + "indexCacheSize", "1234");
+      try {
+         KahaDBPersistenceAdapter overridden = KahaDBProfile.create(kahaDbDir, KahaDBProfile.DRAIN);
+         assertTrue(overridden.isEnableJournalDiskSyncs());
+         assertEquals(1234, overridden.getIndexCacheSize());
+      } finally {
+         System.clearProperty(KahaDBProfile.OVERRIDE_PREFIX + "enableJournalDiskSyncs");
+         System.clearProperty(KahaDBProfile.OVERRIDE_PREFIX + "indexCacheSize");
+      }
+
+      assertTrue("KahaDB defaults", KahaDBProfile.create(kahaDbDir, KahaDBProfile.DEFAULT).isEnableJournalDiskSyncs());
+      assertEquals("drain profile is opt-in", KahaDBProfile.DEFAULT, BrokerServiceDrainer.getKahaDbProfile());
+   }
+
+   @org.junit.Test
+   public void testDrainKahaDbWithPartitionedBridges() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-bridges");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      System.setProperty(AMQ_DRAINER_BRIDGES, "2");
+      try {
+         BrokerServiceDrainer.main(new String[]{dataDir.getAbsolutePath()});
+      } finally {
+         System.clearProperty(AMQ_DRAINER_BRIDGES);
+      }
+
+      assertEquals("all messages forwarded to mesh", 20,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+   }
+
+   @org.junit.Test
+   public void testDrainKahaDbWithAdaptiveFlow() throws Exception {
+      BridgeFlowController controller = new BridgeFlowController("adaptive", 100);
+      assertEquals("grows while acks keep up", 200, controller.nextPrefetch(5));
+      assertEquals("backs off when ack latency climbs", 50, controller.nextPrefetch(20));
+      assertEquals("held without acks", 100, controller.nextPrefetch(-1));
+
+      PeerRateLimiter limiter = new PeerRateLimiter(0, 90, null, null);
+      try {
+         PeerRateLimiter.Bucket bucket = limiter.bucket("vm://no-peer?create=false");
+         controller.setPeerUsage(limiter);
+         bucket.adjust(95, 90);
+         assertEquals("backs off when the peer is full", 50, controller.nextPrefetch(5));
+         bucket.adjust(80, 90);
+         assertEquals("held close to the peer ceiling", 100, controller.nextPrefetch(5));
+         bucket.adjust(10, 90);
+         assertEquals("grows again with headroom on the peer", 200, controller.nextPrefetch(5));
+      } finally {
+         limiter.stop();
+      }
+
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-adaptive");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      for (int i = 0; i < 50; i++) {
+         populateBroker(brokerToDrain);
+      }
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      System.setProperty(AMQ_DRAINER_ADAPTIVE_FLOW, "true");
+      try {
+         BrokerServiceDrainer.main(new String[]{dataDir.getAbsolutePath()});
+      } finally {
+         System.clearProperty(AMQ_DRAINER_ADAPTIVE_FLOW);
+      }
+
+      assertEquals("all messages forwarded to mesh", 1000,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+   }
+
+   @org.junit.Test
+   public void testDrainKahaDbStreaming() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-streaming");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      for (int i = 0; i < 50; i++) {
+         populateBroker(brokerToDrain);
+      }
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      System.setProperty(AMQ_DRAINER_STREAMING, "true");
+      System.setProperty(AMQ_DRAINER_STREAMING_MEMORY_LIMIT, String.valueOf(StreamingLimits.MIN_MEMORY_LIMIT));
+      System.setProperty(AMQ_DRAINER_ADAPTIVE_FLOW, "true");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_STREAMING);
+         System.clearProperty(AMQ_DRAINER_STREAMING_MEMORY_LIMIT);
+         System.clearProperty(AMQ_DRAINER_ADAPTIVE_FLOW);
+      }
+
+      assertEquals("all messages forwarded to mesh", 1000,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertTrue("peak heap reported", drainer.getMetrics().getPeakHeapBytes() > 0);
+   }
+
+   @org.junit.Test
+   public void testDrainJournalFanOut() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-fanout");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      populateBroker(brokerToDrain);
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      BrokerService otherMeshBroker = new BrokerService();
+      otherMeshBroker.setBrokerName("mesh-2");
+      otherMeshBroker.setPersistent(false);
+      otherMeshBroker.setUseJmx(false);
+      otherMeshBroker.setAdvisorySupport(false);
+      TransportConnector tcp = otherMeshBroker.addConnector("tcp://localhost:0");
+      otherMeshBroker.start();
+      BrokerRegistry.getInstance().unbind(otherMeshBroker.getBrokerName());
+      otherMeshUrls.add(tcp.getPublishableConnectString());
+
+      System.setProperty(AMQ_DRAINER_ENGINE, "journal");
+      System.setProperty(AMQ_DRAINER_FANOUT, "true");
+      System.setProperty(AMQ_DRAINER_JOURNAL_BATCH_SIZE, "1");
+      try {
+         BrokerServiceDrainer.main(new String[]{dataDir.getAbsolutePath()});
+
+         long first = ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount();
+         long second = ((RegionBroker)otherMeshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount();
+         log.info(String.format("Peers got %s and %s msgs.", first, second));
+         assertEquals("all messages forwarded to the mesh", 40, first + second);
+         assertTrue("both peers used", first > 0 && second > 0);
+      } finally {
+         System.clearProperty(AMQ_DRAINER_ENGINE);
+         System.clearProperty(AMQ_DRAINER_FANOUT);
+         System.clearProperty(AMQ_DRAINER_JOURNAL_BATCH_SIZE);
+         otherMeshUrls.clear();
+         otherMeshBroker.stop();
+      }
+   }
+
+   @org.junit.Test
+   public void testDrainJournalInOrderedLanes() throws Exception {
+      GroupPartitioner partitioner = new GroupPartitioner(4, GroupPartitioner.GROUP_ID);
+      ActiveMQQueue queue = new ActiveMQQueue("ONE.A");
+      Set<Integer> used = new HashSet<>();
+      for (int group = 0; group < 8; group++) {
+         ActiveMQTextMessage grouped = new ActiveMQTextMessage();
+         grouped.setGroupID("G-" + group);
+         used.add(partitioner.lane(queue, grouped));
+      }
+      assertTrue("groups spread over the lanes", used.size() > 1);
+
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-lanes");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      ProducerBrokerExchange exchange = new ProducerBrokerExchange();
+      exchange.setConnectionContext(brokerToDrain.getAdminConnectionContext());
+      exchange.setProducerState(new ProducerState(new ProducerInfo()));
+      // 8 groups and ungrouped messages, interleaved
+      for (int i = 0; i < 90; i++) {
+         ActiveMQTextMessage message = new ActiveMQTextMessage();
+         message.setPersistent(true);
+         message.setDestination(queue);
+         message.setMessageId(new MessageId("lanes:2:3:4:" + i));
+         if (i % 9 != 8) {
+            message.setGroupID("G-" + i % 9);
+         }
+         message.setIntProperty("seq", i);
+         brokerToDrain.getBroker().send(exchange, message);
+      }
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      BrokerService otherMeshBroker = new BrokerService();
+      otherMeshBroker.setBrokerName("mesh-2");
+      otherMeshBroker.setPersistent(false);
+      otherMeshBroker.setUseJmx(false);
+      otherMeshBroker.setAdvisorySupport(false);
+      TransportConnector tcp = otherMeshBroker.addConnector("tcp://localhost:0");
+      otherMeshBroker.start();
+      BrokerRegistry.getInstance().unbind(otherMeshBroker.getBrokerName());
+      otherMeshUrls.add(tcp.getPublishableConnectString());
+
+      System.setProperty(AMQ_DRAINER_ENGINE, "journal");
+      System.setProperty(AMQ_DRAINER_FANOUT, "true");
+      System.setProperty(AMQ_DRAINER_GROUP_LANES, "4");
+      System.setProperty(AMQ_DRAINER_JOURNAL_BATCH_SIZE, "2");
+      try {
+         BrokerServiceDrainer.main(new String[]{dataDir.getAbsolutePath()});
+
+         Map<String, String> peerOfGroup = new HashMap<>();
+         int received = 0;
+         for (String peer : Arrays.asList(meshUrl, tcp.getPublishableConnectString())) {
+            javax.jms.Connection connection = new ActiveMQConnectionFactory(peer).createConnection();
+            try {
+               connection.start();
+               Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+               MessageConsumer consumer = session.createConsumer(session.createQueue("ONE.A"));
+               Map<String, Integer> last = new HashMap<>();
+               javax.jms.Message message;
+               while ((message = consumer.receive(1000)) != null) {
+                  received++;
+                  String group = String.valueOf(message.getStringProperty("JMSXGroupID"));
+                  int seq = message.getIntProperty("seq");
+                  assertTrue("order kept within " + group, !last.containsKey(group) || last.get(group) < seq);
+                  last.put(group, seq);
+                  String before = peerOfGroup.put(group, peer);
+                  assertTrue(group + " on a single peer", before == null || before.equals(peer));
+               }
+            } finally {
+               connection.close();
+            }
+         }
+         assertEquals("all messages forwarded to the mesh", 90, received);
+      } finally {
+         System.clearProperty(AMQ_DRAINER_ENGINE);
+         System.clearProperty(AMQ_DRAINER_FANOUT);
+         System.clearProperty(AMQ_DRAINER_GROUP_LANES);
+         System.clearProperty(AMQ_DRAINER_JOURNAL_BATCH_SIZE);
+         otherMeshUrls.clear();
+         otherMeshBroker.stop();
+      }
+   }
+
+   @org.junit.Test
+   public void testSpoolWhenNoMeshPeer() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-spool");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      meshDown = true;
+      System.setProperty(AMQ_DRAINER_PEER_TIMEOUT, "1");
+      System.setProperty(AMQ_DRAINER_SPOOL_FALLBACK, "true");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_PEER_TIMEOUT);
+         System.clearProperty(AMQ_DRAINER_SPOOL_FALLBACK);
+      }
+
+      assertEquals("nothing forwarded to mesh", 0,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertEquals("store spooled", DrainMetrics.Status.SPOOLED, drainer.getMetrics().store("kahadb").getStatus());
+      assertEquals("spooled messages metered", 20, drainer.getMetrics().store("kahadb").getSpooled());
+      assertFalse("store emptied", KahaDBJournal.hasPendingMessages(kahaDataDir));
+
+      File[] spools = Spool.list(drainer.getSpoolDir());
+      assertEquals("one spool", 1, spools.length);
+      int one = 0;
+      int two = 0;
+      try (Spool.Reader reader = new Spool.Reader(spools[0])) {
+         Message message;
+         while ((message = reader.next()) != null) {
+            assertTrue("persistent kept", message.isPersistent());
+            if ("ONE.A".equals(message.getDestination().getPhysicalName())) {
+               one++;
+            } else if ("TWO.A".equals(message.getDestination().getPhysicalName())) {
+               two++;
+            }
+         }
+      }
+      assertEquals("ONE.A spooled", 10, one);
+      assertEquals("TWO.A spooled", 10, two);
+   }
+
+   @org.junit.Test
+   public void testImportSpoolResumesFromCheckpoint() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-spool-import");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      System.setProperty(AMQ_DRAINER_ENGINE, "spool");
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_ENGINE);
+      }
+      File[] spools = Spool.list(drainer.getSpoolDir());
+      assertEquals("one spool", 1, spools.length);
+
+      // an earlier import got the first half of the spool in
+      try (Spool.Reader reader = new Spool.Reader(spools[0])) {
+         for (int i = 0; i < 10; i++) {
+            reader.next();
+         }
+         SpoolImporter.writeCheckpoint(SpoolImporter.getCheckpointFile(spools[0]), reader.getOffset());
+      }
+
+      log.info("do drain without spool import..");
+      drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      drainer.drain();
+      assertEquals("spool left alone unless asked to import", 0,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertTrue("spool kept", spools[0].exists());
+
+      log.info("do drain with spool import..");
+      System.setProperty(AMQ_DRAINER_SPOOL_IMPORT, "true");
+      System.setProperty(AMQ_DRAINER_SPOOL_PRODUCERS, "2");
+      System.setProperty(AMQ_DRAINER_SPOOL_BATCH_SIZE, "3");
+      try {
+         drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_SPOOL_IMPORT);
+         System.clearProperty(AMQ_DRAINER_SPOOL_PRODUCERS);
+         System.clearProperty(AMQ_DRAINER_SPOOL_BATCH_SIZE);
+      }
+
+      assertEquals("rest of the spool imported to mesh", 10,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertEquals("import metered", 10, drainer.getMetrics().getForwardedMessages());
+      assertFalse("spool deleted", spools[0].exists());
+      assertFalse("checkpoint deleted", SpoolImporter.getCheckpointFile(spools[0]).exists());
+   }
+
+   @org.junit.Test
+   public void testSpoolImportWithoutSpools() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-no-spool");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      System.setProperty(AMQ_DRAINER_SPOOL_IMPORT, "true");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_SPOOL_IMPORT);
+      }
+
+      assertEquals("stores drained as usual", 20,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertEquals("only the store metered", 1, drainer.getMetrics().getStoreProgress().size());
+      assertFalse("no spool directory made", drainer.getSpoolDir().exists());
+   }
+
+   @org.junit.Test
+   public void testResumeDrainFromCheckpoint() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-resume");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final MultiKahaDBPersistenceAdapter multiKahaDBPersistenceAdapter = new MultiKahaDBPersistenceAdapter();
+      multiKahaDBPersistenceAdapter.setDirectory(kahaDataDir);
+
+      ArrayList<FilteredKahaDBPersistenceAdapter> adapters = new ArrayList<>();
+
+      FilteredKahaDBPersistenceAdapter template = new FilteredKahaDBPersistenceAdapter();
+      template.setPersistenceAdapter(new KahaDBPersistenceAdapter());
+      template.setPerDestination(true);
+      adapters.add(template);
+      multiKahaDBPersistenceAdapter.setFilteredPersistenceAdapters(adapters);
+      brokerToDrain.setPersistenceAdapter(multiKahaDBPersistenceAdapter);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      File one = null;
+      File two = null;
+      for (File store : kahaDataDir.listFiles()) {
+         if (store.getName().endsWith("ONE.A")) {
+            one = store;
+         } else if (store.getName().endsWith("TWO.A")) {
+            two = store;
+         }
+      }
+      List<String> ids = new ArrayList<>();
+      KahaDBJournal journal = new KahaDBJournal(one, OpenWireFormat.DEFAULT_STORE_VERSION);
+      journal.open();
+      try {
+         ids.addAll(journal.recoverLiveMessages().get(new ActiveMQQueue("ONE.A")).keySet());
+      } finally {
+         journal.close();
+      }
+
+      // the killed run finished TWO.A, got a batch of ONE.A to the mesh but not out of the store, and was cut
+      // short writing the next batch
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      String checkpoint = "done\t" + two.getName() + "\t" + KahaDBJournal.getJournalState(two) + "\n"
+         + "sent\t" + one.getName() + "\tONE.A\t" + ids.get(0) + "\t" + ids.get(1) + "\t" + ids.get(2) + "\n"
+         + "sent\t" + one.getName() + "\tONE.A\t" + ids.get(3);
+      Files.write(drainer.getCheckpointFile().toPath(), checkpoint.getBytes(StandardCharsets.UTF_8));
+
+      log.info("do resumed journal drain..");
+      System.setProperty(AMQ_DRAINER_ENGINE, "journal");
+      System.setProperty(AMQ_DRAINER_CHECKPOINT, "true");
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_ENGINE);
+         System.clearProperty(AMQ_DRAINER_CHECKPOINT);
+      }
+
+      assertEquals("batch of the killed run not forwarded again", 7,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertEquals("resumed forwarding metered", 7, drainer.getMetrics().getForwardedMessages());
+      assertEquals("finished store skipped", DrainMetrics.Status.SKIPPED, drainer.getMetrics().store(two.getName()).getStatus());
+      assertTrue("duplicates removed from the store", KahaDBJournal.countLiveMessages(one).isEmpty());
+      assertFalse("checkpoint deleted", drainer.getCheckpointFile().exists());
+
+      log.info("do drain without checkpoint..");
+      drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      drainer.drain();
+
+      assertEquals("skipped store drained once it is no longer checkpointed", 17,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+   }
+
+   @org.junit.Test
+   public void testDeadlineSpoolsWhatIsLeft() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-deadline");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      // the reserve takes up the whole deadline, nothing may be forwarded
+      System.setProperty(AMQ_DRAINER_DEADLINE, "1");
+      System.setProperty(AMQ_DRAINER_DEADLINE_RESERVE, "1");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+
+         assertEquals("left in the store without the fallback", DrainMetrics.Status.UNFINISHED,
+                      drainer.getMetrics().store("kahadb").getStatus());
+         assertEquals("no spool without the fallback", 0, Spool.list(drainer.getSpoolDir()).length);
+         assertTrue("store untouched", KahaDBJournal.hasPendingMessages(kahaDataDir));
+
+         log.info("do drain with spool fallback..");
+         System.setProperty(AMQ_DRAINER_SPOOL_FALLBACK, "true");
+         drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_DEADLINE);
+         System.clearProperty(AMQ_DRAINER_DEADLINE_RESERVE);
+         System.clearProperty(AMQ_DRAINER_SPOOL_FALLBACK);
+      }
+
+      assertEquals("nothing forwarded to mesh", 0,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      DrainMetrics.Store store = drainer.getMetrics().store("kahadb");
+      assertEquals("store spooled", DrainMetrics.Status.SPOOLED, store.getStatus());
+      assertEquals("ONE.A unfinished", Long.valueOf(10), store.getUnfinished().get("ONE.A"));
+      assertEquals("TWO.A unfinished", Long.valueOf(10), store.getUnfinished().get("TWO.A"));
+      assertTrue("unfinished in summary", drainer.getMetrics().toJson().contains("\"unfinished\":{\"ONE.A\":10,\"TWO.A\":10}"));
+      assertEquals("one spool", 1, Spool.list(drainer.getSpoolDir()).length);
+   }
+
+   @org.junit.Test
+   public void testDrainCriticalDestinationsFirst() throws Exception {
+      DrainScheduler scheduler = new DrainScheduler("TWO.>", 0, 0);
+      List<DrainScheduler.Backlog> backlogs = new ArrayList<>();
+      backlogs.add(new DrainScheduler.Backlog("ONE.BIG", 100, 4, scheduler.isCritical("ONE.BIG"), false));
+      backlogs.add(new DrainScheduler.Backlog("ONE.SMALL", 10, 4, scheduler.isCritical("ONE.SMALL"), false));
+      backlogs.add(new DrainScheduler.Backlog("ONE.URGENT", 1000, 9, scheduler.isCritical("ONE.URGENT"), false));
+      backlogs.add(new DrainScheduler.Backlog("TWO.A", 5000, 4, scheduler.isCritical("TWO.A"), false));
+      Collections.sort(backlogs, DrainScheduler.ORDER);
+      List<String> order = new ArrayList<>();
+      for (DrainScheduler.Backlog backlog : backlogs) {
+         order.add(backlog.getName());
+      }
+      assertEquals("critical, then priority, then smallest backlog", Arrays.asList("TWO.A", "ONE.URGENT", "ONE.SMALL", "ONE.BIG"), order);
+
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-critical");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      System.setProperty(AMQ_DRAINER_CRITICAL_DESTINATIONS, "TWO.>");
+      System.setProperty(AMQ_DRAINER_DEADLINE, "300");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_CRITICAL_DESTINATIONS);
+         System.clearProperty(AMQ_DRAINER_DEADLINE);
+      }
+
+      assertEquals("all messages forwarded to mesh", 20,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertEquals("store done", DrainMetrics.Status.DONE, drainer.getMetrics().store("kahadb").getStatus());
+      assertTrue("nothing unfinished", drainer.getMetrics().getUnfinished().isEmpty());
+   }
+
+   @org.junit.Test
+   public void testDrainReportsPhaseTimings() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-phases");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      drainer.drain();
+
+      DrainMetrics.Store store = drainer.getMetrics().store("kahadb");
+      assertEquals("store done", DrainMetrics.Status.DONE, store.getStatus());
+      for (String phase : Arrays.asList(DrainMetrics.PHASE_RECOVERY, DrainMetrics.PHASE_BRIDGE, DrainMetrics.PHASE_TRANSFER, DrainMetrics.PHASE_STOP)) {
+         assertTrue("phase timed: " + phase, store.getPhases().containsKey(phase));
+         assertEquals("one run in the histogram of " + phase, 1, drainer.getMetrics().histogram(phase).getCount());
+      }
+      assertTrue("time to first forward", store.getTimeToFirstForwardMillis() >= 0);
+      assertEquals("both destinations timed", new HashSet<>(Arrays.asList("ONE.A", "TWO.A")), store.getDestinationMillis().keySet());
+
+      String json = drainer.getMetrics().toJson();
+      assertTrue(json, json.contains("\"phases\":{"));
+      assertTrue(json, json.contains("\"phaseHistograms\":{"));
+      assertTrue(json, json.contains("\"destinationMillis\":{\"ONE.A\":"));
+      String text = drainer.getMetrics().toText();
+      assertTrue(text, text.contains("drain_phase_seconds_bucket{phase=\"recovery\",le=\"+Inf\"} 1"));
+      assertTrue(text, text.contains("drain_destination_transfer_millis{store=\"kahadb\",destination=\"ONE.A\"}"));
+   }
+
+   @org.junit.Test
+   public void testPeerRateLimit() throws Exception {
+      PeerRateLimiter.Bucket bucket = new PeerRateLimiter(1000, 0, null, null).bucket("peer");
+      bucket.adjust(80, 50);
+      assertEquals("halved above the ceiling", 500d, bucket.getRate(), 0.1);
+      bucket.adjust(45, 50);
+      assertEquals("held just under the ceiling", 500d, bucket.getRate(), 0.1);
+      bucket.adjust(10, 50);
+      assertEquals("grows with headroom", 625d, bucket.getRate(), 0.1);
+      for (int i = 0; i < 10; i++) {
+         bucket.adjust(10, 50);
+      }
+      assertEquals("up to the maximum", 1000d, bucket.getRate(), 0.1);
+
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-limited");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final PersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(kahaDataDir);
+      brokerToDrain.setPersistenceAdapter(adaptor);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+
+      System.setProperty(AMQ_DRAINER_PEER_RATE, "20");
+      System.setProperty(AMQ_DRAINER_PEER_USAGE_CEILING, "90");
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      try {
+         drainer.drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_PEER_RATE);
+         System.clearProperty(AMQ_DRAINER_PEER_USAGE_CEILING);
+      }
+
+      long enqueues = 0;
+      for (String queue : Arrays.asList("ONE.A", "TWO.A")) {
+         enqueues += ((Queue) meshBroker.getDestination(new ActiveMQQueue(queue))).getDestinationStatistics().getEnqueues().getCount();
+      }
+      assertEquals("all messages forwarded to mesh", 20, enqueues);
+      assertTrue("20 msgs at 20 msgs/s take most of a second", drainer.getMetrics().store("kahadb").getPhases().get(DrainMetrics.PHASE_TRANSFER) >= 500);
+   }
+
+   @org.junit.Test
+   public void testPeerRateLimitWithSlowStatistics() throws Exception {
+      final BrokerService peer = new BrokerService();
+      peer.setUseJmx(false);
+      peer.setAdvisorySupport(false);
+      peer.setPersistent(false);
+      peer.setBrokerName("peer-slow-statistics");
+      peer.start();
+
+      // a loaded peer, its statistics come back well after the probe gave up waiting
+      ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory("vm://peer-slow-statistics?create=false");
+      // without advisories the reply queue of the probe would look deleted
+      factory.setWatchTopicAdvisories(false);
+      javax.jms.Connection connection = factory.createConnection();
+      PeerRateLimiter limiter = new PeerRateLimiter(1000, 90, null, null);
+      try {
+         connection.start();
+         final Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+         final MessageProducer producer = session.createProducer(null);
+         session.createConsumer(session.createQueue(PeerRateLimiter.STATISTICS_DESTINATION)).setMessageListener(new MessageListener() {
+            public void onMessage(javax.jms.Message request) {
+               try {
+                  TimeUnit.MILLISECONDS.sleep(800);
+                  MapMessage statistics = session.createMapMessage();
+                  statistics.setInt("memoryPercentUsage", 95);
+                  producer.send(request.getJMSReplyTo(), statistics);
+               } catch (Exception e) {
+                  log.warn("Statistics reply failed", e);
+               }
+            }
+         });
+
+         PeerRateLimiter.Bucket bucket = limiter.bucket("vm://peer-slow-statistics?create=false");
+         long deadline = System.currentTimeMillis() + 10000;
+         while (bucket.getRate() >= 1000 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+         }
+         assertTrue("backed off on the late statistics", bucket.getRate() < 1000);
+      } finally {
+         connection.close();
+         limiter.stop();
+         peer.stop();
+         peer.waitUntilStopped();
+      }
+   }
+
+   @org.junit.Test
+   public void testWireCompression() throws Exception {
+      final String xml = xml(32 * 1024);
+      BodyCompressor compressor = new BodyCompressor(1024);
+
+      ActiveMQTextMessage text = new ActiveMQTextMessage();
+      text.setText(xml);
+      ActiveMQTextMessage compressedText = (ActiveMQTextMessage) text.copy();
+      assertTrue("text compressed", compressor.compress(compressedText));
+      assertTrue("to a fraction", compressedText.getContent().getLength() < xml.length() / 4);
+      compressedText.storeContentAndClear();
+      assertEquals("text inflated", xml, compressedText.getText());
+
+      ActiveMQBytesMessage bytes = new ActiveMQBytesMessage();
+      bytes.setContent(new ByteSequence(xml.getBytes("UTF-8")));
+      assertTrue("bytes compressed", compressor.compress(bytes));
+      bytes.setReadOnlyBody(true);
+      byte[] read = new byte[xml.length()];
+      assertEquals("bytes inflated", xml.length(), bytes.readBytes(read));
+      assertEquals(xml, new String(read, "UTF-8"));
+
+      byte[] noise = new byte[32 * 1024];
+      new Random(1).nextBytes(noise);
+      ActiveMQBytesMessage random = new ActiveMQBytesMessage();
+      random.setContent(new ByteSequence(noise));
+      assertFalse("random left alone", compressor.compress(random));
+      assertFalse(random.isCompressed());
+      assertTrue("random body unchanged", random.getContent().getData() == noise);
+
+      ActiveMQTextMessage small = new ActiveMQTextMessage();
+      small.setText(xml.substring(0, 512));
+      assertFalse("small left alone", compressor.compress(small));
+      assertEquals(1, compressor.getIncompressible());
+
+      // bytes on the wire as received by the mesh
+      CountingTransportServer server = CountingTransportServer.bindLocal();
+      TransportConnector counting = meshBroker.startTransportConnector(meshBroker.addConnector(new TransportConnector(server)));
+      meshUrl = counting.getPublishableConnectString();
+
+      long[] plain = drainOnWire(textStore("plain", xml), server, false, "broker");
+      long[] compressed = drainOnWire(textStore("compressed", xml), server, true, "broker");
+      long[] journal = drainOnWire(textStore("journal", xml), server, true, "journal");
+      log.info(String.format("Wire bytes and drain millis of 20 msgs of %s bytes: plain %s in %s ms, compressed %s in %s ms, journal compressed %s in %s ms.",
+         xml.length(), plain[0], plain[1], compressed[0], compressed[1], journal[0], journal[1]));
+
+      assertEquals("all messages forwarded to mesh", 60,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+      assertTrue("plain bodies on the wire", plain[0] > 20 * xml.length());
+      assertTrue("broker engine sends a fraction", compressed[0] < plain[0] / 4);
+      assertTrue("journal engine sends a fraction", journal[0] < plain[0] / 4);
+
+      javax.jms.Connection connection = new ActiveMQConnectionFactory(meshUrl).createConnection();
+      try {
+         connection.start();
+         Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+         MessageConsumer consumer = session.createConsumer(session.createQueue("TWO.A"));
+         for (int i = 0; i < 30; i++) {
+            TextMessage forwarded = (TextMessage) consumer.receive(5000);
+            assertEquals("consumers get the text back", xml, forwarded.getText());
+         }
+      } finally {
+         connection.close();
+      }
+   }
+
+   @org.junit.Test
+   public void testInventory() throws Exception {
+      File dataDir = folder.newFolder("data-dir");
+
+      final BrokerService brokerToDrain = new BrokerService();
+      brokerToDrain.setUseJmx(false);
+      brokerToDrain.setAdvisorySupport(false);
+      brokerToDrain.setBrokerName("source-inventory");
+
+      brokerToDrain.setDataDirectoryFile(dataDir);
+
+      File kahaDataDir = new File(dataDir, "kahadb");
+      final MultiKahaDBPersistenceAdapter multiKahaDBPersistenceAdapter = new MultiKahaDBPersistenceAdapter();
+      multiKahaDBPersistenceAdapter.setDirectory(kahaDataDir);
+
+      ArrayList<FilteredKahaDBPersistenceAdapter> adapters = new ArrayList<>();
+
+      FilteredKahaDBPersistenceAdapter template = new FilteredKahaDBPersistenceAdapter();
+      template.setPersistenceAdapter(new KahaDBPersistenceAdapter());
+      template.setPerDestination(true);
+      adapters.add(template);
+      multiKahaDBPersistenceAdapter.setFilteredPersistenceAdapters(adapters);
+      brokerToDrain.setPersistenceAdapter(multiKahaDBPersistenceAdapter);
+
+      brokerToDrain.start();
+      populateBroker(brokerToDrain);
+      populateBroker(brokerToDrain, 500);
+      ProducerBrokerExchange exchange = new ProducerBrokerExchange();
+      exchange.setConnectionContext(brokerToDrain.getAdminConnectionContext());
+      exchange.setProducerState(new ProducerState(new ProducerInfo()));
+      ActiveMQTextMessage urgent = new ActiveMQTextMessage();
+      urgent.setPersistent(true);
+      urgent.setPriority((byte) 9);
+      urgent.setDestination(new ActiveMQQueue("ONE.A"));
+      urgent.setMessageId(new MessageId(idRoot + ":2:3:5:1"));
+      brokerToDrain.getBroker().send(exchange, urgent);
+
+      // the broker keeps its stores locked, the inventory reads them anyway
+      BrokerServiceDrainer drainer = new BrokerServiceDrainer(dataDir.getAbsolutePath());
+      for (StoreInventory.Store store : drainer.inventory().getStores()) {
+         assertEquals("store read next to the broker", null, store.getError());
+      }
+
+      brokerToDrain.stop();
+      brokerToDrain.waitUntilStopped();
+      TimeUnit.MILLISECONDS.sleep(600);
+
+      Files.write(drainer.getSummaryFile().toPath(),
+                  "{\"forwardedMessages\":1000,\"messagesPerSecond\":10.0,\"bytesPerSecond\":0.0,\"stores\":[]}".getBytes(StandardCharsets.UTF_8));
+      StoreInventory inventory = drainer.inventory();
+
+      assertEquals("one store per queue", 2, inventory.getStores().size());
+      assertEquals("all messages", 41, inventory.getMessages());
+      assertEquals("expired messages", 20, inventory.getExpired());
+      assertTrue("message bytes", inventory.getBytes() > 0);
+      for (StoreInventory.Store store : inventory.getStores()) {
+         assertTrue("journal size", store.getJournalBytes() >= store.getBytes());
+         assertTrue("index size", store.getIndexBytes() > 0);
+      }
+      Map<String, Long> priorities = new HashMap<>();
+      for (StoreInventory.Store store : inventory.getStores()) {
+         if (store.getDestinations().containsKey("ONE.A")) {
+            priorities = store.getDestinations().get("ONE.A").getPriorities();
+         }
+      }
+      assertEquals("priority distribution", Long.valueOf(1), priorities.get("9"));
+      assertEquals("priority distribution", Long.valueOf(20), priorities.get("0"));
+      assertEquals("21 msgs left to drain at the last measured 10 msgs/s", 2100, inventory.getEstimatedDrainMillis());
+      assertTrue("inventory written", new File(dataDir, "drain-inventory.json").isFile());
+      assertEquals("nothing forwarded", 0,
+                   ((RegionBroker)meshBroker.getRegionBroker()).getDestinationStatistics().getEnqueues().getCount());
+   }
+
+   /**
+    * @return bytes received by the mesh and millis of the drain
+    */
+   private long[] drainOnWire(File dataDir, CountingTransportServer server, boolean compression, String engine) throws Exception {
+      long before = server.getReceivedBytes();
+      System.setProperty(AMQ_DRAINER_WIRE_COMPRESSION, String.valueOf(compression));
+      System.setProperty(AMQ_DRAINER_ENGINE, engine);
+      long start = System.currentTimeMillis();
+      try {
+         new BrokerServiceDrainer(dataDir.getAbsolutePath()).drain();
+      } finally {
+         System.clearProperty(AMQ_DRAINER_WIRE_COMPRESSION);
+         System.clearProperty(AMQ_DRAINER_ENGINE);
+      }
+      return new long[]{server.getReceivedBytes() - before, System.currentTimeMillis() - start};
+   }
+
+   private File textStore(String name, String text) throws Exception {
+      File dataDir = folder.newFolder(name);
+      BrokerService broker = new BrokerService();
+      broker.setUseJmx(false);
+      broker.setAdvisorySupport(false);
+      broker.setBrokerName("source-" + name);
+      broker.setDataDirectoryFile(dataDir);
+      KahaDBPersistenceAdapter adaptor = new KahaDBPersistenceAdapter();
+      adaptor.setDirectory(new File(dataDir, "kahadb"));
+      broker.setPersistenceAdapter(adaptor);
+      broker.start();
+
+      idRoot++;
+      ProducerBrokerExchange exchange = new ProducerBrokerExchange();
+      exchange.setConnectionContext(broker.getAdminConnectionContext());
+      exchange.setProducerState(new ProducerState(new ProducerInfo()));
+      ActiveMQTextMessage message = new ActiveMQTextMessage();
+      message.setPersistent(true);
+      message.setDestination(new ActiveMQQueue("ONE.A,TWO.A"));
+      message.setText(text);
+      for (int i = 0; i < 10; i++) {
+         Message copy = message.copy();
+         copy.setMessageId(new MessageId(idRoot + ":2:3:4:" + i));
+         broker.getBroker().send(exchange, copy);
+      }
+      broker.stop();
+      broker.waitUntilStopped();
+      return dataDir;
+   }
+
+   private static String xml(int size) {
+      StringBuilder xml = new StringBuilder("<orders>");
+      for (int i = 0; xml.length() < size; i++) {
+         xml.append("<order id=\"").append(i).append("\"><customer>customer-").append(i % 97).append("</customer><amount>")
+            .append(i * 7 % 1000).append(".00</amount></order>");
+      }
+      return xml.append("</orders>").toString();
+   }
+
    private void populateBroker(BrokerService broker) throws Exception {
       populateBroker(broker, 0l);
    }
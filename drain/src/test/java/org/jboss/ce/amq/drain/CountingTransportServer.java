@@ -0,0 +1,97 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.ce.amq.drain;
+
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ServerSocketFactory;
+
+import org.apache.activemq.openwire.OpenWireFormatFactory;
+import org.apache.activemq.transport.Transport;
+import org.apache.activemq.transport.tcp.TcpTransport;
+import org.apache.activemq.transport.tcp.TcpTransportFactory;
+import org.apache.activemq.transport.tcp.TcpTransportServer;
+import org.apache.activemq.wireformat.WireFormat;
+
+/**
+ * TCP transport server that counts the bytes it receives from all clients, to measure what a drain puts on
+ * the wire. Shared by the tests and the benchmarks through the test jar.
+ */
+public class CountingTransportServer extends TcpTransportServer {
+   private final AtomicLong received = new AtomicLong();
+
+   private CountingTransportServer() throws Exception {
+      super(new TcpTransportFactory(), new URI("tcp://localhost:0"), ServerSocketFactory.getDefault());
+      setWireFormatFactory(new OpenWireFormatFactory());
+      setTransportOption(new HashMap<String, Object>());
+   }
+
+   /**
+    * @return a server bound to a free port, to add to a broker as a {@link org.apache.activemq.broker.TransportConnector}
+    */
+   public static CountingTransportServer bindLocal() throws Exception {
+      CountingTransportServer server = new CountingTransportServer();
+      server.bind();
+      return server;
+   }
+
+   public long getReceivedBytes() {
+      return received.get();
+   }
+
+   @Override
+   protected Transport createTransport(Socket socket, WireFormat format) throws IOException {
+      return new TcpTransport(format, socket) {
+         @Override
+         protected void initializeStreams() throws Exception {
+            super.initializeStreams();
+            dataIn = new DataInputStream(new FilterInputStream(dataIn) {
+               @Override
+               public int read() throws IOException {
+                  int read = super.read();
+                  if (read >= 0) {
+                     received.incrementAndGet();
+                  }
+                  return read;
+               }
+
+               @Override
+               public int read(byte[] buffer, int offset, int length) throws IOException {
+                  int read = super.read(buffer, offset, length);
+                  if (read > 0) {
+                     received.addAndGet(read);
+                  }
+                  return read;
+               }
+            });
+         }
+      };
+   }
+}
@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.ce.amq.drain;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+
+import org.apache.activemq.command.DiscoveryEvent;
+import org.apache.activemq.transport.discovery.DiscoveryAgent;
+import org.apache.activemq.transport.discovery.DiscoveryAgentFactory;
+import org.apache.activemq.transport.discovery.DiscoveryListener;
+import org.apache.activemq.util.FactoryFinder;
+
+/**
+ * Stands in for the kube discovery agent of the mesh, announcing the peers of an in-process mesh instead.
+ * Shared by the tests and the benchmarks through the test jar.
+ */
+public class KubeDiscoveryFixture {
+   private static final FactoryFinder.ObjectFactory fallback = FactoryFinder.getObjectFactory();
+
+   private static volatile Peers peers;
+   private static boolean installed;
+
+   public interface Peers {
+      /**
+       * @return urls announced when a discovery agent starts, none while the mesh is down
+       */
+      List<String> list();
+   }
+
+   private KubeDiscoveryFixture() {
+   }
+
+   /**
+    * Routes kube discovery to the peers given from now on, later calls only swap the peers.
+    */
+   public static synchronized void install(Peers peers) {
+      KubeDiscoveryFixture.peers = peers;
+      if (installed) {
+         return;
+      }
+      FactoryFinder.setObjectFactory(new FactoryFinder.ObjectFactory() {
+         public Object create(String path) throws IllegalAccessException, InstantiationException, IOException, ClassNotFoundException {
+            if (!path.endsWith("kube")) {
+               return fallback.create(path);
+            }
+            return new DiscoveryAgentFactory() {
+               @Override
+               protected DiscoveryAgent doCreateDiscoveryAgent(URI uri) throws IOException {
+                  return new DiscoveryAgent() {
+                     private DiscoveryListener listener;
+
+                     public void setDiscoveryListener(DiscoveryListener listener) {
+                        this.listener = listener;
+                     }
+
+                     public void registerService(String name) throws IOException {
+                     }
+
+                     public void serviceFailed(DiscoveryEvent event) throws IOException {
+                     }
+
+                     public void start() throws Exception {
+                        for (String url : KubeDiscoveryFixture.peers.list()) {
+                           DiscoveryEvent event = new DiscoveryEvent();
+                           event.setServiceName(url);
+                           listener.onServiceAdd(event);
+                        }
+                     }
+
+                     public void stop() throws Exception {
+                     }
+                  };
+               }
+            };
+         }
+      });
+      installed = true;
+   }
+}